@@ -0,0 +1,165 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Benchmark.java
+ * This class is a small benchmark harness for the client's hot paths. Each
+ * benchmark is warmed up and then timed over several fixed-length iterations,
+ * and the harness reports the mean throughput together with the number of
+ * bytes allocated per operation by the benchmarking thread (the same counter
+ * that JMH reports as gc.alloc.rate.norm). Results of the measured operations
+ * are fed into a sink so that the JIT cannot eliminate them.
+ */
+public class Benchmark
+{
+	/**
+	 * A single operation to be measured.
+	 */
+	public interface Op
+	{
+		/**
+		 * Runs the operation once.
+		 * @return any value derived from the result, consumed by the harness
+		 * @throws Exception
+		 */
+		public long run() throws Exception;
+	}
+
+	/** Default length of a warm-up or measurement iteration, in milliseconds. */
+	public static final long DEFAULT_ITERATION_MILLIS = 1000;
+	/** Default number of warm-up iterations. */
+	public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+	/** Default number of measurement iterations. */
+	public static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+
+	/** Sink for the results of the measured operations. */
+	public static volatile long sink;
+
+	// Length of each iteration, in milliseconds
+	private long iterationMillis = DEFAULT_ITERATION_MILLIS;
+	// Number of warm-up and measurement iterations
+	private int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+	private int measurementIterations = DEFAULT_MEASUREMENT_ITERATIONS;
+	// Only benchmarks whose name contains this string are run
+	private String filter = "";
+
+	// Allocation counter of the current thread, if the JVM provides one
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	/**
+	 * Constructor for the Benchmark class. Recognized arguments are -i (iteration length in
+	 * milliseconds), -wi and -mi (number of warm-up and measurement iterations), and an
+	 * optional filter on benchmark names.
+	 * @param args command line arguments
+	 */
+	public Benchmark(String[] args)
+	{
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-i") && i + 1 < args.length) {
+				iterationMillis = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("-wi") && i + 1 < args.length) {
+				warmupIterations = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-mi") && i + 1 < args.length) {
+				measurementIterations = Integer.parseInt(args[++i]);
+			}
+			else {
+				filter = args[i];
+			}
+		}
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		else {
+			threadBean = null;
+		}
+		System.out.println(String.format(Locale.ROOT, "%-40s %16s %10s %12s", "Benchmark", "ops/s", "error %", "B/op"));
+	}
+
+	/**
+	 * Measures an operation and prints a line with its throughput and allocation rate,
+	 * unless its name does not match the filter.
+	 * @param name name of the benchmark
+	 * @param op operation to be measured
+	 * @throws Exception
+	 */
+	public void measure(String name, Op op) throws Exception
+	{
+		if (!name.contains(filter)) {
+			return;
+		}
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			iteration(op);
+		}
+		double[] rates = new double[measurementIterations];
+		long totalOps = 0L;
+		long totalBytes = 0L;
+		for (int i = 0; i < measurementIterations; i++)
+		{
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long ops = iteration(op);
+			long elapsed = System.nanoTime() - start;
+			totalBytes += allocatedBytes() - bytesBefore;
+			totalOps += ops;
+			rates[i] = ops * 1e9 / elapsed;
+		}
+		double mean = 0.0;
+		for (double rate : rates)
+		{
+			mean += rate;
+		}
+		mean /= rates.length;
+		double variance = 0.0;
+		for (double rate : rates)
+		{
+			variance += (rate - mean) * (rate - mean);
+		}
+		double error = (rates.length > 1) ? Math.sqrt(variance / (rates.length - 1)) / mean * 100 : 0.0;
+		String bytesPerOp = (threadBean != null) ? String.format(Locale.ROOT, "%12.1f", (double) totalBytes / totalOps) : "         n/a";
+		System.out.println(String.format(Locale.ROOT, "%-40s %16.1f %10.2f %s", name, mean, error, bytesPerOp));
+	}
+
+	/*
+	 * Runs the operation repeatedly for one iteration and returns how many times it ran.
+	 * The clock is only checked every few hundred calls to keep its cost out of the result.
+	 */
+	private long iteration(Op op) throws Exception
+	{
+		long deadline = System.nanoTime() + iterationMillis * 1000000L;
+		long ops = 0L;
+		long acc = 0L;
+		do {
+			for (int i = 0; i < 256; i++)
+			{
+				acc += op.run();
+			}
+			ops += 256;
+		} while (System.nanoTime() < deadline);
+		sink = acc;
+		return ops;
+	}
+
+	/*
+	 * Returns the number of bytes allocated so far by the current thread, or 0 if unknown.
+	 */
+	private long allocatedBytes()
+	{
+		if (threadBean == null) {
+			return 0L;
+		}
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+
+import GivenTools.TorrentInfo;
+
+/**
+ * PeerScaleBenchmark.java
+ * This class benchmarks how the client scales with the number of peer connections
+ * in each I/O mode: the event loops (nio), blocking platform threads per peer
+ * (thread), and blocking virtual threads per peer (virtual, Java 21). Every peer
+ * connects over loopback to a single-threaded seed that answers the handshake and
+ * serves every request. The seed only unchokes the peers once every handshake has
+ * completed or timed out, so connecting and downloading are measured separately.
+ * For each mode and peer count the benchmark reports how long it took for every
+ * handshake to complete, how long the download took, the peak number of platform
+ * threads, and the heap in use once every peer was connected. Run it with
+ * java -cp bin app.PeerScaleBenchmark [peer counts (default 100,1000,5000)] [modes (default nio,thread,virtual)].
+ */
+public class PeerScaleBenchmark
+{
+	/** Length of the benchmark torrent. */
+	public static final int FILE_LENGTH = 8 * 1024 * 1024;
+	/** Piece length of the benchmark torrent; one block per piece. */
+	public static final int PIECE_LENGTH = 16 * 1024;
+	/** Number of milliseconds a run may take before it is reported as incomplete. */
+	public static final long RUN_TIMEOUT_MILLIS = 120 * 1000;
+
+	/**
+	 * Main method for PeerScaleBenchmark.java.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String[] counts = ((args.length > 0) ? args[0] : "100,1000,5000").split(",");
+		String[] modes = ((args.length > 1) ? args[1] : "nio,thread,virtual").split(",");
+
+		byte[] data = new byte[FILE_LENGTH];
+		new Random(352).nextBytes(data);
+		TorrentInfo info = makeTorrent(data, PIECE_LENGTH);
+
+		PrintStream console = System.out;
+		// the client logs every message; keep it out of the results
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b)
+			{	return;	}
+
+			public void write(byte[] b, int off, int len)
+			{	return;	}
+		}));
+		for (String mode : modes)
+		{	// warm up the code paths of every mode before anything is measured
+			run(info, data, TorrentClient.parseIoMode(mode), mode, 10);
+		}
+		console.println(String.format(Locale.ROOT, "%-8s %6s %9s %11s %12s %9s %9s %9s",
+				"Mode", "Peers", "Connected", "Connect ms", "Download ms", "MiB/s", "Threads", "Heap MiB"));
+		for (String mode : modes)
+		{
+			for (String count : counts)
+			{
+				console.println(run(info, data, TorrentClient.parseIoMode(mode), mode, Integer.parseInt(count)));
+			}
+		}
+		System.setOut(console);
+	}
+
+	/*
+	 * Downloads the torrent from the given number of loopback peers and returns a result line.
+	 */
+	private static String run(TorrentInfo info, byte[] data, int ioMode, String mode, int numPeers) throws Exception
+	{
+		LoopbackSeed seed = new LoopbackSeed(info, data);
+		seed.start();
+		File output = File.createTempFile("rubt-scale", ".bin");
+		output.deleteOnExit();
+
+		System.gc();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		TorrentClient client = new TorrentClient(info, output);
+		client.ioMode = ioMode;
+		client.maxConnecting = numPeers;	// measure the I/O mode, not the connection cap
+		client.localHostBitfield = new PieceBitfield(info.piece_hashes.length);
+		ArrayList<Peer> peers = new ArrayList<Peer>();
+		for (int i = 0; i < numPeers; i++)
+		{
+			byte[] peerID = new byte[20];
+			System.arraycopy(Integer.toString(i).getBytes(), 0, peerID, 0, Integer.toString(i).length());
+			peers.add(new Peer(peerID, seed.getPort(), "127.0.0.1", client));
+		}
+
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + RUN_TIMEOUT_MILLIS;
+		client.isRunning = true;
+		client.start();
+		// every peer has the seed's address, so they are added directly rather than through the peer manager
+		client.init(new ArrayList<Peer>());
+		for (Peer p : peers)
+		{
+			client.addPeer(p);
+		}
+
+		// every handshake either completes or times out well before the deadline
+		long connectNanos = -1;
+		long downloadStart = System.nanoTime();
+		int connected = 0;
+		while (System.currentTimeMillis() < deadline)
+		{
+			connected = 0;
+			int pending = 0;
+			for (Peer p : peers)
+			{
+				if (p.isConnected()) {
+					connected++;
+				}
+				else if (p.isConnecting()) {
+					pending++;
+				}
+			}
+			if (pending == 0) {
+				downloadStart = System.nanoTime();
+				connectNanos = downloadStart - start;
+				break;
+			}
+			Thread.sleep(5);
+		}
+		System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		seed.unchokeAll();
+		client.join(Math.max(1, deadline - System.currentTimeMillis()));
+		long downloadNanos = System.nanoTime() - downloadStart;
+		boolean isComplete = client.isDownloadComplete;
+		int peakThreads = threads.getPeakThreadCount();
+		client.close();
+		seed.close();
+		output.delete();
+
+		return String.format(Locale.ROOT, "%-8s %6d %9d %11s %12s %9s %9d %9.1f",
+				mode, numPeers, connected,
+				(connectNanos < 0) ? "timeout" : String.format(Locale.ROOT, "%.1f", connectNanos / 1e6),
+				isComplete ? String.format(Locale.ROOT, "%.1f", downloadNanos / 1e6) : "incomplete",
+				isComplete ? String.format(Locale.ROOT, "%.1f", FILE_LENGTH / 1048576.0 / (downloadNanos / 1e9)) : "-",
+				peakThreads, heap / 1048576.0);
+	}
+
+	/*
+	 * Returns the metainfo of a single-file torrent holding the data, bencoded by hand.
+	 */
+	private static TorrentInfo makeTorrent(byte[] data, int pieceLength) throws Exception
+	{
+		int numPieces = (data.length + pieceLength - 1) / pieceLength;
+		byte[] hashes = new byte[20 * numPieces];
+		for (int i = 0; i < numPieces; i++)
+		{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			sha1.update(data, i * pieceLength, Math.min(pieceLength, data.length - i * pieceLength));
+			System.arraycopy(sha1.digest(), 0, hashes, i * 20, 20);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("d8:announce27:http://127.0.0.1:1/announce4:infod6:lengthi" + data.length
+				+ "e4:name9:scale.bin12:piece lengthi" + pieceLength + "e6:pieces" + hashes.length + ":").getBytes("UTF-8"));
+		out.write(hashes);
+		out.write("ee".getBytes("UTF-8"));
+		return new TorrentInfo(out.toByteArray());
+	}
+
+	/**
+	 * A seed on a loopback socket that serves every connection from a single thread.
+	 */
+	static final class LoopbackSeed extends Thread
+	{
+		// Metainfo and content of the torrent being served
+		private final TorrentInfo info;
+		private final byte[] data;
+		// Socket the peers connect to, and the selector watching every connection
+		private final ServerSocketChannel server;
+		private final Selector selector;
+		// Handshake and bitfield sent to every peer after its handshake
+		private final byte[] greeting;
+		// Determines if the thread is running or not
+		private volatile boolean isRunning = true;
+		// True once every peer is to be unchoked, and once they have been
+		private volatile boolean isUnchoking = false;
+		private boolean isUnchoked = false;
+
+		/**
+		 * Constructor for the LoopbackSeed class.
+		 * @param info
+		 * @param data
+		 * @throws IOException
+		 */
+		LoopbackSeed(TorrentInfo info, byte[] data) throws IOException
+		{
+			super("Loopback seed");
+			this.info = info;
+			this.data = data;
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 8192);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			setDaemon(true);
+
+			byte[] seedID = new byte[20];
+			java.util.Arrays.fill(seedID, (byte) 'S');
+			boolean[] all = new boolean[info.piece_hashes.length];
+			java.util.Arrays.fill(all, true);
+			ByteBuffer buf = ByteBuffer.allocate(68 + new Message.Bitfield(Utils.booleanArrayToBitfield(all)).getEncodedLength());
+			buf.put(Peer.generateHandshake(seedID, info.info_hash.array()));
+			buf.put(27, (byte) 0);	// no Fast Extension
+			Message.encode(new Message.Bitfield(Utils.booleanArrayToBitfield(all)), buf);
+			greeting = buf.array();
+		}
+
+		/**
+		 * Returns the port the seed listens on.
+		 * @return the port number
+		 */
+		int getPort()
+		{
+			return server.socket().getLocalPort();
+		}
+
+		/**
+		 * Unchokes every peer that is connected now or connects later.
+		 */
+		void unchokeAll()
+		{
+			isUnchoking = true;
+			selector.wakeup();
+		}
+
+		/**
+		 * Stops the seed and closes every connection.
+		 * @throws IOException
+		 */
+		void close() throws IOException
+		{
+			isRunning = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * @see java.lang.Thread#run()
+		 */
+		public void run()
+		{
+			try {
+				while (isRunning)
+				{
+					selector.select();
+					if (isUnchoking && !isUnchoked) {
+						unchoke();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						try {
+							if (key.isAcceptable()) {
+								accept();
+							}
+							else {
+								serve(key);
+							}
+						}
+						catch (IOException ioe) {
+							key.cancel();
+							key.channel().close();
+						}
+					}
+				}	// end of while (isRunning)
+				for (SelectionKey key : selector.keys())
+				{
+					key.channel().close();
+				}
+				selector.close();
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}
+
+		/*
+		 * Sends UNCHOKE to every peer whose handshake was answered.
+		 */
+		private void unchoke() throws IOException
+		{
+			isUnchoked = true;
+			for (SelectionKey key : selector.keys())
+			{
+				Connection conn = (Connection) key.attachment();
+				if (conn == null || !conn.isGreeted || !key.isValid()) {
+					continue;
+				}
+				ByteBuffer unchoke = ByteBuffer.allocate(5 + ((conn.out != null) ? conn.out.remaining() : 0));
+				if (conn.out != null) {
+					unchoke.put(conn.out);
+				}
+				Message.encode(Message.UNCHOKE, unchoke);
+				unchoke.flip();
+				try {
+					((SocketChannel) key.channel()).write(unchoke);
+				}
+				catch (IOException ioe) {
+					key.cancel();
+					key.channel().close();
+					continue;
+				}
+				conn.out = unchoke.hasRemaining() ? unchoke : null;
+				key.interestOps((conn.out != null) ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+
+		/*
+		 * Accepts every pending connection.
+		 */
+		private void accept() throws IOException
+		{
+			SocketChannel ch;
+			while ((ch = server.accept()) != null)
+			{
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+				ch.register(selector, SelectionKey.OP_READ, new Connection());
+			}
+		}
+
+		/*
+		 * Reads the messages of a peer and answers them, or finishes a write that didn't fit.
+		 */
+		private void serve(SelectionKey key) throws IOException
+		{
+			SocketChannel ch = (SocketChannel) key.channel();
+			Connection conn = (Connection) key.attachment();
+			if (key.isWritable()) {
+				ch.write(conn.out);
+				if (conn.out.hasRemaining()) {
+					return;
+				}
+				conn.out = null;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			if (!key.isReadable() || conn.out != null) {
+				return;
+			}
+			if (ch.read(conn.in) == -1) {
+				throw new IOException("closed");
+			}
+			conn.in.flip();
+			ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			if (!conn.isGreeted) {
+				if (conn.in.remaining() < 68) {
+					conn.in.compact();
+					return;
+				}
+				conn.in.position(68);
+				reply.write(greeting);
+				if (isUnchoked) {
+					reply.write(new byte[] {0, 0, 0, 1, Message.UNCHOKE_ID});
+				}
+				conn.isGreeted = true;
+			}
+			while (conn.in.remaining() >= 4 && conn.in.remaining() >= 4 + conn.in.getInt(conn.in.position()))
+			{
+				int length = conn.in.getInt();
+				int end = conn.in.position() + length;
+				if (length >= 13 && conn.in.get() == Message.REQUEST_ID) {
+					int index = conn.in.getInt();
+					int offset = conn.in.getInt();
+					int blockLength = conn.in.getInt();
+					ByteBuffer frame = ByteBuffer.allocate(13 + blockLength);
+					Message.encode(new Message.Piece(index, offset,
+							ByteBuffer.wrap(data, index * info.piece_length + offset, blockLength)), frame);
+					reply.write(frame.array());
+				}
+				conn.in.position(end);
+			}
+			conn.in.compact();
+			if (reply.size() > 0) {
+				ByteBuffer out = ByteBuffer.wrap(reply.toByteArray());
+				ch.write(out);
+				if (out.hasRemaining()) {	// finish it before reading any more requests
+					conn.out = out;
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+		}
+
+		/**
+		 * State of one connection to the seed.
+		 */
+		static final class Connection
+		{
+			/** Bytes received and not yet parsed. */
+			ByteBuffer in = ByteBuffer.allocate(4096);
+			/** Reply still being written, or null. */
+			ByteBuffer out;
+			/** True once the peer's handshake has been answered. */
+			boolean isGreeted = false;
+		}
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * WireBenchmark.java
+ * This class benchmarks the peer wire protocol hot path: encoding and decoding
+ * every message type, both into Message objects and through the allocation-free
+ * handler dispatch used by peer connections, generating and checking handshakes,
+ * parsing bitfields, and verifying piece hashes. Run it with
+ * java -cp bin app.WireBenchmark [-i millis] [-wi n] [-mi n] [filter].
+ */
+public class WireBenchmark
+{
+	/** Number of pieces used for the bitfield benchmarks (a 4 GiB torrent of 256 KiB pieces). */
+	public static final int NUM_PIECES = 16384;
+	/** Piece length used for the hashing benchmarks. */
+	public static final int PIECE_LENGTH = 256 * 1024;
+
+	/**
+	 * Main method for WireBenchmark.java.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Benchmark bench = new Benchmark(args);
+		final BufferPool pool = new BufferPool(PIECE_LENGTH, 16, 4);
+		Random random = new Random(352);
+
+		byte[] bits = new byte[NUM_PIECES / 8];
+		random.nextBytes(bits);
+		ByteBuffer block = ByteBuffer.allocateDirect(BufferPool.BLOCK_SIZE);
+		Message[] messages = new Message[] {
+				Message.KEEP_ALIVE, Message.CHOKE, Message.UNCHOKE, Message.INTERESTED, Message.UNINTERESTED,
+				new Message.Have(1234), new Message.Bitfield(bits), new Message.Request(1234, 16384, 16384),
+				new Message.Piece(1234, 16384, block), new Message.Suggest(1234), Message.HAVE_ALL,
+				Message.HAVE_NONE, new Message.Reject(1234, 16384, 16384), new Message.AllowedFast(1234)
+		};
+
+		// encoding into a reused buffer
+		final ByteBuffer out = ByteBuffer.allocateDirect(MessageCodec.DEFAULT_BUFFER_SIZE);
+		for (final Message msg : messages)
+		{
+			bench.measure("encode." + name(msg), new Benchmark.Op() {
+				public long run()
+				{
+					out.clear();
+					Message.encode(msg, out);
+					return out.position();
+				}
+			});
+		}
+
+		// decoding into Message objects
+		for (final Message msg : messages)
+		{
+			final ByteBuffer frame = encode(msg);
+			final int length = msg.length;
+			bench.measure("decode." + name(msg), new Benchmark.Op() {
+				public long run() throws Exception
+				{
+					frame.position(4);
+					Message decoded = Message.decode(frame, length, pool);
+					if (decoded instanceof Message.Piece) {
+						pool.releaseBlock(((Message.Piece) decoded).block);
+					}
+					return decoded.length;
+				}
+			});
+		}
+
+		// decoding through the codec's handler dispatch, one frame per channel read
+		for (final Message msg : messages)
+		{
+			final MessageCodec codec = new MessageCodec(pool);
+			final RepeatingChannel channel = new RepeatingChannel(encode(msg));
+			final CountingHandler handler = new CountingHandler();
+			bench.measure("dispatch." + name(msg), new Benchmark.Op() {
+				public long run() throws Exception
+				{
+					return codec.read(channel, handler) + handler.count;
+				}
+			});
+		}
+
+		// handshakes
+		final byte[] peerID = Utils.generatePeerID();
+		final byte[] infoHash = new byte[20];
+		random.nextBytes(infoHash);
+		final byte[] handshake = Peer.generateHandshake(peerID, infoHash);
+		bench.measure("handshake.generate", new Benchmark.Op() {
+			public long run()
+			{
+				return Peer.generateHandshake(peerID, infoHash)[27];
+			}
+		});
+		bench.measure("handshake.check", new Benchmark.Op() {
+			public long run()
+			{
+				return Peer.checkHandshake(infoHash, handshake) ? 1 : 0;
+			}
+		});
+
+		// bitfield parsing
+		final byte[] bitfield = bits;
+		bench.measure("bitfield.toBooleanArray", new Benchmark.Op() {
+			public long run()
+			{
+				return Utils.bitfieldToBooleanArray(bitfield, NUM_PIECES).length;
+			}
+		});
+		final ByteBuffer bitfieldBuffer = ByteBuffer.wrap(bits);
+		final boolean[] pieces = new boolean[NUM_PIECES];
+		bench.measure("bitfield.intoBooleanArray", new Benchmark.Op() {
+			public long run()
+			{
+				return Utils.bitfieldToBooleanArray(bitfieldBuffer, pieces) ? 1 : 0;
+			}
+		});
+
+		// piece verification
+		final byte[] piece = new byte[PIECE_LENGTH];
+		new SecureRandom().nextBytes(piece);
+		final ByteBuffer hash = ByteBuffer.wrap(java.security.MessageDigest.getInstance("SHA-1").digest(piece));
+		bench.measure("verifySHA1.heap", new Benchmark.Op() {
+			public long run()
+			{
+				return TorrentClient.verifySHA1(piece, hash) ? 1 : 0;
+			}
+		});
+		final ByteBuffer directPiece = ByteBuffer.allocateDirect(PIECE_LENGTH);
+		directPiece.put(piece);
+		directPiece.flip();
+		bench.measure("verifySHA1.direct", new Benchmark.Op() {
+			public long run()
+			{
+				return TorrentClient.verifySHA1(directPiece, hash) ? 1 : 0;
+			}
+		});
+	}
+
+	/*
+	 * Returns the benchmark name of a message type.
+	 */
+	private static String name(Message msg)
+	{
+		return (msg.length == 0) ? "keepAlive" : Message.TYPE_NAMES[msg.id].replace(" ", "");
+	}
+
+	/*
+	 * Returns a buffer holding the encoded frame of a message, including its length prefix.
+	 */
+	private static ByteBuffer encode(Message msg)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(msg.getEncodedLength());
+		Message.encode(msg, frame);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * A channel that returns one copy of the same frame on every read.
+	 */
+	static final class RepeatingChannel implements ReadableByteChannel
+	{
+		/** Encoded frame returned by every read. */
+		private final ByteBuffer frame;
+
+		/**
+		 * Constructor for the RepeatingChannel class.
+		 * @param frame the encoded frame
+		 */
+		RepeatingChannel(ByteBuffer frame)
+		{
+			this.frame = frame;
+		}
+
+		/** Copies one frame into the buffer if it fits. */
+		public int read(ByteBuffer dst)
+		{
+			if (dst.remaining() < frame.limit()) {
+				return 0;
+			}
+			frame.rewind();
+			dst.put(frame);
+			return frame.limit();
+		}
+
+		public boolean isOpen()
+		{	return true;	}
+
+		public void close()
+		{	return;	}
+	}
+
+	/**
+	 * A handler that only counts what it receives.
+	 */
+	static final class CountingHandler implements PeerMessageHandler
+	{
+		/** Sum of the values received. */
+		long count = 0L;
+		/** Destination of every block payload. */
+		private final ByteBuffer block = ByteBuffer.allocateDirect(BufferPool.BLOCK_SIZE);
+
+		public void onKeepAlive()
+		{	count++;	}
+
+		public void onChoke()
+		{	count++;	}
+
+		public void onUnchoke()
+		{	count++;	}
+
+		public void onInterested()
+		{	count++;	}
+
+		public void onUninterested()
+		{	count++;	}
+
+		public void onHave(int index)
+		{	count += index;	}
+
+		public void onBitfield(ByteBuffer bitfield)
+		{	count += bitfield.remaining();	}
+
+		public void onRequest(int index, int offset, int length)
+		{	count += index + offset + length;	}
+
+		public ByteBuffer onPieceHeader(int index, int offset, int length)
+		{
+			block.clear();
+			block.limit(length);
+			return block;
+		}
+
+		public void onPieceReceived(int index, int offset, int length)
+		{	count += index + offset + length;	}
+
+		public void onSuggest(int index)
+		{	count += index;	}
+
+		public void onHaveAll()
+		{	count++;	}
+
+		public void onHaveNone()
+		{	count++;	}
+
+		public void onReject(int index, int offset, int length)
+		{	count += index + offset + length;	}
+
+		public void onCancel(int index, int offset, int length)
+		{	count += index + offset + length;	}
+
+		public void onAllowedFast(int index)
+		{	count += index;	}
+
+		public void onExtended(int extendedId, ByteBuffer payload)
+		{	count += extendedId + payload.remaining();	}
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * BufferPool.java
+ * This class is a bounded arena of direct ByteBuffers shared by every peer of a
+ * torrent. It hands out two kinds of buffers: fixed-size block slabs that hold a
+ * single block on its way in or out of a socket, and piece-sized regions that the
+ * blocks of a piece are written into once and then hashed and written to disk
+ * directly. Buffers are allocated lazily up to the configured limits and reused
+ * after they are released. When a limit is reached the pool falls back to an
+ * ordinary heap buffer and counts the event so that the limits can be tuned.
+ */
+public class BufferPool
+{
+	/** Size of a block slab, which is the block size requested from peers. */
+	public static final int BLOCK_SIZE = 16384;	// 2^14
+
+	// Released block slabs waiting to be reused
+	private final ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<ByteBuffer>();
+	// Released piece regions waiting to be reused
+	private final ArrayDeque<ByteBuffer> freePieces = new ArrayDeque<ByteBuffer>();
+
+	// Capacity of each piece region
+	private final int pieceSize;
+	// Upper bound on the number of block slabs ever allocated
+	private final int maxBlocks;
+	// Upper bound on the number of piece regions ever allocated
+	private final int maxPieces;
+
+	// Number of block slabs and piece regions allocated so far
+	private int allocatedBlocks = 0;
+	private int allocatedPieces = 0;
+	// Number of block slabs and piece regions currently handed out
+	private int blocksInUse = 0;
+	private int piecesInUse = 0;
+	// Highest number of buffers handed out at the same time
+	private int peakBlocksInUse = 0;
+	private int peakPiecesInUse = 0;
+	// Number of requests that could not be served from the pool
+	private long blockExhaustions = 0L;
+	private long pieceExhaustions = 0L;
+
+	/**
+	 * Constructor for the BufferPool class.
+	 * @param pieceSize the capacity of each piece region, normally the piece length of the torrent
+	 * @param maxBlocks the maximum number of block slabs to allocate
+	 * @param maxPieces the maximum number of piece regions to allocate
+	 */
+	public BufferPool(int pieceSize, int maxBlocks, int maxPieces)
+	{
+		this.pieceSize = pieceSize;
+		this.maxBlocks = maxBlocks;
+		this.maxPieces = maxPieces;
+	}
+
+	/**
+	 * Returns a block slab whose limit is set to the given length.
+	 * @param length the number of bytes the caller will store, at most BLOCK_SIZE to be pooled
+	 * @return a cleared ByteBuffer with its limit set to length
+	 */
+	public synchronized ByteBuffer acquireBlock(int length)
+	{
+		ByteBuffer buf;
+		if (length > BLOCK_SIZE) {	// peer sent a block larger than we ever request
+			return ByteBuffer.allocate(length);
+		}
+		if ((buf = freeBlocks.poll()) == null) {
+			if (allocatedBlocks < maxBlocks) {
+				buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+				allocatedBlocks++;
+			}
+			else {	// pool exhausted; serve from the heap instead
+				if (blockExhaustions++ == 0) {
+					System.err.println("Warning: Block pool exhausted. " + this);
+				}
+				return ByteBuffer.allocate(length);
+			}
+		}
+		if (++blocksInUse > peakBlocksInUse) {
+			peakBlocksInUse = blocksInUse;
+		}
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
+
+	/**
+	 * Returns a block slab to the pool. Buffers not allocated by the pool are ignored.
+	 * @param buf ByteBuffer previously returned by acquireBlock
+	 */
+	public synchronized void releaseBlock(ByteBuffer buf)
+	{
+		if (buf == null || !buf.isDirect() || buf.capacity() != BLOCK_SIZE) {
+			return;
+		}
+		blocksInUse--;
+		freeBlocks.push(buf);
+	}
+
+	/**
+	 * Returns a piece region whose limit is set to the given length.
+	 * @param length the length of the piece, at most the piece size of the pool
+	 * @return a cleared ByteBuffer with its limit set to length
+	 */
+	public synchronized ByteBuffer acquirePiece(int length)
+	{
+		ByteBuffer buf;
+		if ((buf = freePieces.poll()) == null) {
+			if (allocatedPieces < maxPieces) {
+				buf = ByteBuffer.allocateDirect(pieceSize);
+				allocatedPieces++;
+			}
+			else {	// pool exhausted; serve from the heap instead
+				if (pieceExhaustions++ == 0) {
+					System.err.println("Warning: Piece pool exhausted. " + this);
+				}
+				return ByteBuffer.allocate(length);
+			}
+		}
+		if (++piecesInUse > peakPiecesInUse) {
+			peakPiecesInUse = piecesInUse;
+		}
+		buf.clear();
+		buf.limit(length);
+		return buf;
+	}
+
+	/**
+	 * Returns a piece region to the pool. Buffers not allocated by the pool are ignored.
+	 * @param buf ByteBuffer previously returned by acquirePiece
+	 */
+	public synchronized void releasePiece(ByteBuffer buf)
+	{
+		if (buf == null || !buf.isDirect() || buf.capacity() != pieceSize) {
+			return;
+		}
+		piecesInUse--;
+		freePieces.push(buf);
+	}
+
+	/**
+	 * Returns the number of times a block slab was requested while the pool was exhausted.
+	 * @return the block exhaustion count
+	 */
+	public synchronized long getBlockExhaustions()
+	{
+		return blockExhaustions;
+	}
+
+	/**
+	 * Returns the number of times a piece region was requested while the pool was exhausted.
+	 * @return the piece exhaustion count
+	 */
+	public synchronized long getPieceExhaustions()
+	{
+		return pieceExhaustions;
+	}
+
+	/**
+	 * Returns the current usage of the pool.
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return "Blocks: " + blocksInUse + "/" + allocatedBlocks + " in use (peak " + peakBlocksInUse
+				+ ", max " + maxBlocks + ", exhausted " + blockExhaustions + ")"
+				+ " Pieces: " + piecesInUse + "/" + allocatedPieces + " in use (peak " + peakPiecesInUse
+				+ ", max " + maxPieces + ", exhausted " + pieceExhaustions + ")";
+	}
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop.java
+ * This class runs a thread that owns a Selector and performs all of the network
+ * I/O of the peers registered with it: connecting, exchanging handshakes, reading
+ * and dispatching messages, and draining their outboxes whenever the sockets can
+ * take more bytes. A client runs a small fixed number of event loops and spreads
+ * its peers across them, so the number of threads no longer grows with the number
+ * of connections. Timeouts and keep-alives are driven by the client's TimerWheel,
+ * whose checks are handed to the loop as tasks.
+ */
+public class EventLoop extends Thread
+{
+	/** Determines if the thread is running or not. */
+	volatile boolean isRunning = true;
+
+	// Selector watching the channels of every peer registered with this loop
+	private final Selector selector;
+	// Peers waiting to be registered with the selector
+	private final ConcurrentLinkedQueue<Peer> registrations = new ConcurrentLinkedQueue<Peer>();
+	// Peers with messages queued in their outbox since their last flush
+	private final ConcurrentLinkedQueue<Peer> pendingWrites = new ConcurrentLinkedQueue<Peer>();
+	// Tasks to be run on this loop's thread
+	private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+
+	/**
+	 * Constructor for the EventLoop class.
+	 * @param name name of the thread
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public EventLoop(String name) throws IOException
+	{
+		super(name);
+		selector = Selector.open();
+		setDaemon(true);
+	}
+
+	/**
+	 * Hands a peer whose channel is open and non-blocking to this loop. The peer's
+	 * channel is registered with the selector on the loop's thread.
+	 * @param peer the peer to register
+	 */
+	public void register(Peer peer)
+	{
+		registrations.add(peer);
+		selector.wakeup();
+	}
+
+	/**
+	 * Schedules the outbox of a peer to be flushed on this loop's thread.
+	 * @param peer the peer with newly queued messages
+	 */
+	public void scheduleWrite(Peer peer)
+	{
+		pendingWrites.add(peer);
+		if (Thread.currentThread() != this) {	// the loop flushes before it selects again anyway
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Schedules a task to be run on this loop's thread on behalf of a peer, which is
+	 * disconnected if the task fails.
+	 * @param peer the peer the task belongs to
+	 * @param task the task to run
+	 */
+	public void execute(Peer peer, Runnable task)
+	{
+		tasks.add(new Task(peer, task));
+		if (Thread.currentThread() != this) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Returns whether the calling thread is this loop's thread.
+	 * @return true if called from the event loop, false otherwise
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Stops the loop and closes its selector.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run()
+	{
+		while (isRunning)
+		{
+			try {
+				selector.select();	// woken up for new registrations, writes and tasks
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					handle(key);
+				}
+				runPending();
+			}
+			catch (IOException ioe) {	// the selector itself failed
+				ioe.printStackTrace();
+				break;
+			}
+		}	// end of while (isRunning)
+		try {
+			for (SelectionKey key : selector.keys())
+			{
+				((Peer) key.attachment()).disconnect();
+			}
+			selector.close();
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+	}
+
+	/*
+	 * Handles the readiness of one peer's channel. A failure only ever closes that peer.
+	 */
+	private void handle(SelectionKey key)
+	{
+		Peer peer = (Peer) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				peer.handleConnect();
+			}
+			if (key.isValid() && key.isWritable()) {
+				peer.handleWrite();
+			}
+			if (key.isValid() && key.isReadable()) {
+				peer.handleRead();
+			}
+		}
+		catch (CancelledKeyException cke) {
+			closeQuietly(peer);
+		}
+		catch (IOException ioe) {
+			if (peer.isConnected() || peer.isConnecting()) {	// not just closed by another thread
+				System.err.println("Error: Connection to " + peer + " failed: " + ioe.getMessage());
+			}
+			closeQuietly(peer);
+		}
+		catch (RuntimeException re) {	// a bug in one peer must not stop the loop for every other peer
+			re.printStackTrace();
+			closeQuietly(peer);
+		}
+	}
+
+	/*
+	 * Registers new peers, runs scheduled tasks, and flushes the outboxes of peers that
+	 * queued messages. Writes go last, since registering a peer or running a task may
+	 * queue messages of its own.
+	 */
+	private void runPending()
+	{
+		Peer peer;
+		while ((peer = registrations.poll()) != null)
+		{
+			try {
+				peer.register(selector);
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Could not register " + peer + ": " + ioe.getMessage());
+				closeQuietly(peer);
+			}
+			catch (RuntimeException re) {	// a bug in one peer must not stop the loop for every other peer
+				re.printStackTrace();
+				closeQuietly(peer);
+			}
+		}
+		Task task;
+		while ((task = tasks.poll()) != null)
+		{
+			try {
+				task.task.run();
+			}
+			catch (RuntimeException re) {
+				re.printStackTrace();
+				closeQuietly(task.peer);
+			}
+		}
+		while ((peer = pendingWrites.poll()) != null)
+		{
+			try {
+				peer.handleWrite();
+			}
+			catch (CancelledKeyException cke) {
+				closeQuietly(peer);
+			}
+			catch (IOException ioe) {
+				if (peer.isConnected()) {	// not just closed by another thread
+					System.err.println("Error: Writing to " + peer + " failed: " + ioe.getMessage());
+				}
+				closeQuietly(peer);
+			}
+			catch (RuntimeException re) {
+				re.printStackTrace();
+				closeQuietly(peer);
+			}
+		}
+	}
+
+	/*
+	 * Disconnects a peer, reporting rather than propagating any failure.
+	 */
+	private static void closeQuietly(Peer peer)
+	{
+		try {
+			peer.disconnect();
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+		catch (RuntimeException re)
+		{	re.printStackTrace();	}
+	}
+
+	/*
+	 * A task scheduled with execute, and the peer it runs for.
+	 */
+	private static final class Task
+	{
+		final Peer peer;
+		final Runnable task;
+
+		Task(Peer peer, Runnable task)
+		{
+			this.peer = peer;
+			this.task = task;
+		}
+	}
+
+}
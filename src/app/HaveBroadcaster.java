@@ -0,0 +1,140 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.util.Arrays;
+
+/**
+ * HaveBroadcaster.java
+ * This class runs a thread that announces verified pieces to every peer with HAVE
+ * messages. Pieces are collected as they are verified and announced together once
+ * a short window has passed, so the thread that verified a piece never loops over
+ * the peers itself, and each peer gets all the HAVE messages of a window queued at
+ * once, to go out in a single write. Peers whose bitfield already contains a piece
+ * are not told about it.
+ */
+public class HaveBroadcaster extends Thread
+{
+	/** Number of milliseconds that verified pieces are collected before they are announced. */
+	public static final long COALESCE_MILLIS = 20;
+
+	/** TorrentClient whose peers are told about verified pieces. */
+	private TorrentClient client;
+	/** Determines if the thread is running or not. */
+	volatile boolean isRunning = true;
+
+	// Pieces verified since the last announcement, in the order they were verified
+	private int[] pending = new int[16];
+	private int pendingCount = 0;
+	// Pieces being announced, swapped with the pending pieces under the lock
+	private int[] announcing = new int[16];
+	// Snapshot of the client's peers, reused between announcements
+	private Peer[] peers = new Peer[0];
+	// HAVE messages of the pieces being announced, shared by every peer
+	private Message.Have[] haves = new Message.Have[16];
+
+	/** Number of HAVE messages queued so far. */
+	long havesSent = 0L;
+	/** Number of HAVE messages skipped because the peer already had the piece. */
+	long havesSuppressed = 0L;
+
+	/**
+	 * Constructor for the HaveBroadcaster class.
+	 * @param client
+	 */
+	public HaveBroadcaster(TorrentClient client)
+	{
+		super("HAVE broadcaster");
+		this.client = client;
+		setDaemon(true);
+	}
+
+	/**
+	 * Schedules a verified piece to be announced to every peer that doesn't have it.
+	 * Returns immediately.
+	 * @param index the index of the verified piece
+	 */
+	public synchronized void announce(int index)
+	{
+		if (pendingCount == pending.length) {
+			pending = Arrays.copyOf(pending, pendingCount * 2);
+		}
+		pending[pendingCount++] = index;
+		notifyAll();
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run()
+	{
+		while (isRunning)
+		{
+			int count;
+			try {
+				synchronized (this) {
+					while (pendingCount == 0)
+					{
+						wait();
+					}
+				}
+				// let the pieces verified in the meantime join this announcement
+				Thread.sleep(COALESCE_MILLIS);
+				synchronized (this) {
+					int[] swap = announcing;
+					announcing = pending;
+					pending = (swap.length >= announcing.length) ? swap : new int[announcing.length];
+					count = pendingCount;
+					pendingCount = 0;
+				}
+			}
+			catch (InterruptedException ie) {
+				break;
+			}
+			broadcast(announcing, count);
+		}	// end of while (isRunning)
+	}
+
+	/*
+	 * Queues the HAVE messages of a batch of pieces on every connected peer.
+	 */
+	private void broadcast(int[] pieces, int count)
+	{
+		int numPeers;
+		synchronized (client) {
+			numPeers = client.peerList.size();
+			if (peers.length < numPeers) {
+				peers = new Peer[numPeers];
+			}
+			client.peerList.toArray(peers);
+		}
+		if (haves.length < count) {
+			haves = new Message.Have[pieces.length];
+		}
+		for (int i = 0; i < count; i++)
+		{
+			haves[i] = new Message.Have(pieces[i]);
+		}
+		for (int i = 0; i < numPeers; i++)
+		{
+			int queued = peers[i].sendHaves(haves, count);
+			peers[i] = null;
+			if (queued == -1) {	// not connected yet, or any more; nothing was suppressed
+				continue;
+			}
+			havesSent += queued;
+			havesSuppressed += count - queued;
+		}
+	}
+
+	/**
+	 * @see java.lang.Thread#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return havesSent + " HAVE messages queued, " + havesSuppressed + " suppressed";
+	}
+
+}
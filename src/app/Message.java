@@ -3,11 +3,8 @@
  */
 package app;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Message.java
@@ -44,6 +41,27 @@ public class Message
 	/** Byte ID for the piece message. */
 	public static final byte PIECE_ID = 7;
 	
+	/** Byte ID for the cancel message. */
+	public static final byte CANCEL_ID = 8;
+	
+	/** Byte ID for the suggest piece message (Fast Extension). */
+	public static final byte SUGGEST_ID = 0x0D;
+	
+	/** Byte ID for the have all message (Fast Extension). */
+	public static final byte HAVE_ALL_ID = 0x0E;
+	
+	/** Byte ID for the have none message (Fast Extension). */
+	public static final byte HAVE_NONE_ID = 0x0F;
+	
+	/** Byte ID for the reject request message (Fast Extension). */
+	public static final byte REJECT_ID = 0x10;
+	
+	/** Byte ID for the allowed fast message (Fast Extension). */
+	public static final byte ALLOWED_FAST_ID = 0x11;
+	
+	/** Byte ID for the extended message (Extension Protocol). */
+	public static final byte EXTENDED_ID = 20;
+	
 	/** Static keep-alive message definition. */
 	public static final Message KEEP_ALIVE = new Message(0, (byte) 255);
 	
@@ -59,8 +77,15 @@ public class Message
 	/** Static uninterested message definition. */
 	public static final Message UNINTERESTED = new Message(1, UNINTERESTED_ID);
 	
+	/** Static have all message definition. */
+	public static final Message HAVE_ALL = new Message(1, HAVE_ALL_ID);
+	
+	/** Static have none message definition. */
+	public static final Message HAVE_NONE = new Message(1, HAVE_NONE_ID);
+	
 	/** Constant String array ordered relative to their respective ID's. */
-	private static final String[] TYPE_NAMES = new String[] {"Choke", "Unchoke", "Interested", "Uninterested", "Have", "Bitfield", "Request", "Piece"};
+	static final String[] TYPE_NAMES = new String[] {"Choke", "Unchoke", "Interested", "Uninterested", "Have", "Bitfield", "Request", "Piece",
+		"Cancel", "Port", null, null, null, "Suggest", "Have All", "Have None", "Reject", "Allowed Fast", null, null, "Extended"};
 	
 	/** ID value of the message. */
 	protected final byte id;
@@ -84,10 +109,9 @@ public class Message
 	 * Encodes the payload inside of the message.
 	 * This method is meant to be overriden.
 	 * 
-	 * @param dos
-	 * @throws IOException
+	 * @param buf ByteBuffer positioned just after the message id
 	 */
-	public void encodePayload(DataOutputStream dos) throws IOException
+	public void encodePayload(ByteBuffer buf)
 	{	return;	}
 	
 	/**
@@ -109,9 +133,9 @@ public class Message
 		}
 		
 		/** Encodes the payload inside of the message. */
-		public void encodePayload(DataOutputStream dos) throws IOException
+		public void encodePayload(ByteBuffer buf)
 		{
-			dos.writeInt(index);
+			buf.putInt(index);
 			return;
 		}
 	}
@@ -135,9 +159,9 @@ public class Message
 		}
 		
 		/** Encodes the payload inside of the message. */
-		public void encodePayload(DataOutputStream dos) throws IOException
+		public void encodePayload(ByteBuffer buf)
 		{
-			dos.write(bitfield);
+			buf.put(bitfield);
 			return;
 		}
 	}
@@ -153,6 +177,8 @@ public class Message
 		final int offset;
 		/** Message length prefix of the message. */
 		final int msgLength;
+		/** Time the request was sent, in nanoseconds; kept by the requesting peer to measure latency. */
+		long sentTime;
 		
 		/**
 		 * Constructor for the Request class.
@@ -181,11 +207,11 @@ public class Message
 		/**
 		 * Encodes the payload inside of the message.
 		 */
-		public void encodePayload(DataOutputStream dos) throws IOException
+		public void encodePayload(ByteBuffer buf)
 		{
-			dos.writeInt(index);
-			dos.writeInt(offset);
-			dos.writeInt(msgLength);
+			buf.putInt(index);
+			buf.putInt(offset);
+			buf.putInt(msgLength);
 		}
 	}
 	
@@ -198,18 +224,18 @@ public class Message
 		final int index;
 		/** Byte offset of the piece index that the sender is transmitting a copy of. */
 		final int offset;
-		/** Block of data of the piece index. */
-		final byte[] block;
+		/** Block of data of the piece index, between the buffer's position and limit. */
+		final ByteBuffer block;
 		
 		/**
 		 * Constructor for the Piece class.
 		 * @param index the index of the piece being sent
 		 * @param offset the byte offset within the piece that the data starts at
-		 * @param block the length of the data
+		 * @param block the data of the block, between the buffer's position and limit
 		 */
-		public Piece(final int index, final int offset, final byte[] block)
+		public Piece(final int index, final int offset, final ByteBuffer block)
 		{
-			super(9 + block.length, PIECE_ID);
+			super(9 + block.remaining(), PIECE_ID);
 			this.index = index;
 			this.offset = offset;
 			this.block = block;
@@ -226,34 +252,202 @@ public class Message
 		/**
 		 * Encodes the payload inside of the message.
 		 */
-		public void encodePayload(DataOutputStream dos) throws IOException
+		public void encodePayload(ByteBuffer buf)
 		{
-			dos.writeInt(index);
-			dos.writeInt(offset);
-			dos.write(block);
+			buf.putInt(index);
+			buf.putInt(offset);
+			buf.put(block.duplicate());
 		}
 	}
 	
 	/**
-	 * Decodes a message and parses it to determine its type.
-	 * 
-	 * @param input InputStream object
-	 * @return a message with variable id
-	 * @throws IOException
+	 * Static class for the Cancel type of Message.
+	 */
+	public static final class Cancel extends Message
+	{
+		/** Piece index of the request being withdrawn. */
+		final int index;
+		/** Byte offset of the request being withdrawn. */
+		final int offset;
+		/** Block length of the request being withdrawn. */
+		final int msgLength;
+		
+		/**
+		 * Constructor for the Cancel class.
+		 * @param index the index of the piece that was requested
+		 * @param offset the byte offset of the piece that was requested
+		 * @param length the length of the data that was requested
+		 */
+		public Cancel(final int index, final int offset, final int length)
+		{
+			super(13, CANCEL_ID);
+			this.index = index;
+			this.offset = offset;
+			msgLength = length;
+		}
+		
+		/**
+		 * Returns the index, offset, and block size contained in the message.
+		 */
+		public String toString()
+		{
+			return new String("Cancel Index: " + index + " Offset: " + offset + " Block: " + msgLength);
+		}
+		
+		/** Encodes the payload inside of the message. */
+		public void encodePayload(ByteBuffer buf)
+		{
+			buf.putInt(index);
+			buf.putInt(offset);
+			buf.putInt(msgLength);
+		}
+	}
+	
+	/**
+	 * Static class for the Suggest type of Message.
+	 */
+	public static final class Suggest extends Message
+	{
+		/** Piece index that the sender suggests downloading. */
+		public final int index;
+		
+		/**
+		 * Constructor for the Suggest class.
+		 * @param index the index of the suggested piece
+		 */
+		public Suggest(final int index)
+		{
+			super(5, SUGGEST_ID);
+			this.index = index;
+		}
+		
+		/** Encodes the payload inside of the message. */
+		public void encodePayload(ByteBuffer buf)
+		{
+			buf.putInt(index);
+		}
+	}
+	
+	/**
+	 * Static class for the Reject type of Message.
+	 */
+	public static final class Reject extends Message
+	{
+		/** Piece index of the rejected request. */
+		final int index;
+		/** Byte offset of the rejected request. */
+		final int offset;
+		/** Block length of the rejected request. */
+		final int msgLength;
+		
+		/**
+		 * Constructor for the Reject class.
+		 * @param index the index of the piece that was requested
+		 * @param offset the byte offset of the piece that was requested
+		 * @param length the length of the data that was requested
+		 */
+		public Reject(final int index, final int offset, final int length)
+		{
+			super(13, REJECT_ID);
+			this.index = index;
+			this.offset = offset;
+			msgLength = length;
+		}
+		
+		/**
+		 * Returns the index, offset, and block size contained in the message.
+		 */
+		public String toString()
+		{
+			return new String("Reject Index: " + index + " Offset: " + offset + " Block: " + msgLength);
+		}
+		
+		/** Encodes the payload inside of the message. */
+		public void encodePayload(ByteBuffer buf)
+		{
+			buf.putInt(index);
+			buf.putInt(offset);
+			buf.putInt(msgLength);
+		}
+	}
+	
+	/**
+	 * Static class for the Allowed Fast type of Message.
 	 */
-	public static Message decode(final InputStream input) throws IOException
+	public static final class AllowedFast extends Message
 	{
-		DataInputStream dataIn = new DataInputStream(input);
+		/** Piece index that the receiver may request while choked. */
+		public final int index;
 		
-		// read the first part of the message, length prefix
-		int length = dataIn.readInt();
+		/**
+		 * Constructor for the AllowedFast class.
+		 * @param index the index of the piece that may be requested while choked
+		 */
+		public AllowedFast(final int index)
+		{
+			super(5, ALLOWED_FAST_ID);
+			this.index = index;
+		}
+		
+		/** Encodes the payload inside of the message. */
+		public void encodePayload(ByteBuffer buf)
+		{
+			buf.putInt(index);
+		}
+	}
+	
+	/**
+	 * Static class for the Extended type of Message.
+	 */
+	public static final class Extended extends Message
+	{
+		/** Extended message ID; 0 is the extension handshake. */
+		public final int extendedId;
+		/** Bencoded payload of the message. */
+		public final byte[] payload;
+		
+		/**
+		 * Constructor for the Extended class.
+		 * @param extendedId the extended message ID, 0 for the extension handshake
+		 * @param payload the bencoded payload
+		 */
+		public Extended(final int extendedId, final byte[] payload)
+		{
+			super(2 + payload.length, EXTENDED_ID);
+			this.extendedId = extendedId;
+			this.payload = payload;
+		}
 		
+		/** Encodes the payload inside of the message. */
+		public void encodePayload(ByteBuffer buf)
+		{
+			buf.put((byte) extendedId);
+			buf.put(payload);
+		}
+	}
+	
+	/**
+	 * Decodes a single frame that has already been read in full. The buffer must be
+	 * positioned at the message id and its limit set to the end of the frame; the
+	 * header fields are parsed in place without copying the frame.
+	 * 
+	 * The payload of a PIECE message is copied once into a block slab taken from
+	 * the pool; the caller must release it once the block has been stored.
+	 * 
+	 * @param frame ByteBuffer holding the frame after its length prefix
+	 * @param length the length prefix of the frame
+	 * @param pool BufferPool supplying block slabs, or null to allocate them on the heap
+	 * @return a message with variable id, or null if the id is unknown
+	 * @throws IOException if the frame is too short for the fixed fields of its message
+	 */
+	public static Message decode(final ByteBuffer frame, final int length, final BufferPool pool) throws IOException
+	{
 		if (length == 0) {	// a length of 0 means it's a keep-alive message
 			return KEEP_ALIVE;
 		}
 		
 		// read the second part of the message, message id
-		byte id = dataIn.readByte();
+		byte id = frame.get();
 		
 		switch (id) {
 		case (CHOKE_ID): {
@@ -269,52 +463,112 @@ public class Message
 			return UNINTERESTED;
 		}
 		case (HAVE_ID): {
-			int index = dataIn.readInt();
+			requirePayload(length, 4);
+			int index = frame.getInt();
 			return new Have(index);
 		}
 		case (BITFIELD_ID): {
 			byte[] bitfield = new byte[length - 1];
-			dataIn.readFully(bitfield);
+			frame.get(bitfield);
 			return new Bitfield(bitfield);
 		}
 		case (PIECE_ID): {
-			int pieceIndex = dataIn.readInt();
-			int offset = dataIn.readInt();
-			byte[] block = new byte[length - 9];
-			dataIn.readFully(block);
+			requirePayload(length, 8);
+			int pieceIndex = frame.getInt();
+			int offset = frame.getInt();
+			ByteBuffer block = (pool != null) ? pool.acquireBlock(length - 9) : ByteBuffer.allocate(length - 9);
+			block.put(frame);
+			block.flip();
 			return new Piece(pieceIndex, offset, block);
 		}
 		case (REQUEST_ID): {
-			int pieceIndex = dataIn.readInt();
-			int offset = dataIn.readInt();
-			length = dataIn.readInt();
-			return new Request(pieceIndex, offset, length);
+			requirePayload(length, 12);
+			int pieceIndex = frame.getInt();
+			int offset = frame.getInt();
+			int blockLength = frame.getInt();
+			return new Request(pieceIndex, offset, blockLength);
+		}
+		case (CANCEL_ID): {
+			requirePayload(length, 12);
+			int pieceIndex = frame.getInt();
+			int offset = frame.getInt();
+			int blockLength = frame.getInt();
+			return new Cancel(pieceIndex, offset, blockLength);
+		}
+		case (SUGGEST_ID): {
+			requirePayload(length, 4);
+			return new Suggest(frame.getInt());
+		}
+		case (HAVE_ALL_ID): {
+			return HAVE_ALL;
+		}
+		case (HAVE_NONE_ID): {
+			return HAVE_NONE;
+		}
+		case (REJECT_ID): {
+			requirePayload(length, 12);
+			int pieceIndex = frame.getInt();
+			int offset = frame.getInt();
+			int blockLength = frame.getInt();
+			return new Reject(pieceIndex, offset, blockLength);
+		}
+		case (ALLOWED_FAST_ID): {
+			requirePayload(length, 4);
+			return new AllowedFast(frame.getInt());
+		}
+		case (EXTENDED_ID): {
+			requirePayload(length, 1);
+			int extendedId = frame.get() & 0xFF;
+			byte[] payload = new byte[length - 2];
+			frame.get(payload);
+			return new Extended(extendedId, payload);
 		}
 		}	// end of switch (id)
 		return null;
-	}	// end of decode(InputStream)
+	}	// end of decode(ByteBuffer, int, BufferPool)
+
+	/**
+	 * Throws an IOException if the payload of a frame is shorter than its fixed fields.
+	 * @param length the length prefix of the frame
+	 * @param required the number of bytes the message needs after its id
+	 * @throws IOException
+	 */
+	static void requirePayload(int length, int required) throws IOException
+	{
+		if (length - 1 < required) {
+			throw new IOException("Error: Malformed frame of length " + length + ".");
+		}
+	}
 	
 	
 	/**
-	 * Encodes a message prior to sending.
+	 * Encodes a message, including its length prefix, into the given buffer.
+	 * The buffer must have at least (4 + message.length) bytes remaining.
 	 * 
 	 * @param message Message
-	 * @param out OutputStream object
-	 * @throws IOException
+	 * @param buf ByteBuffer to write into
 	 */
-	public static void encode(final Message message, final OutputStream out) throws IOException
+	public static void encode(final Message message, final ByteBuffer buf)
 	{
 		if (message != null) {	// validate message
-			DataOutputStream dos = new DataOutputStream(out);
-			dos.writeInt(message.length);	// first write length prefix
+			buf.putInt(message.length);	// first write length prefix
 			if (message.length > 0) {	// message is not a keep-alive message
-				dos.write(message.id);
-				message.encodePayload(dos);
+				buf.put(message.id);
+				message.encodePayload(buf);
 			}
-			dos.flush();
 		}
 	}
 	
+	/**
+	 * Returns the number of bytes the message occupies on the wire, including its length prefix.
+	 * 
+	 * @return the encoded size of the message
+	 */
+	public int getEncodedLength()
+	{
+		return 4 + length;
+	}
+	
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -324,6 +578,9 @@ public class Message
 		if (length == 0) {
 			return "Keep-Alive";
 		}
+		if (id < 0 || id >= TYPE_NAMES.length || TYPE_NAMES[id] == null) {
+			return "Unknown (" + id + ")";
+		}
 		return TYPE_NAMES[id];
 	}
 
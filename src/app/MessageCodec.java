@@ -0,0 +1,462 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MessageCodec.java
+ * This class reads and writes length-prefixed peer wire frames on a channel. Each
+ * peer owns one codec, so the read and write buffers are allocated once for the
+ * lifetime of the connection and reused for every message. Incoming bytes are read
+ * in bulk and as many frames as are available are parsed out of the same buffer,
+ * either into Message objects or straight into the calls of a PeerMessageHandler,
+ * and every outgoing message is written with a single call to the channel.
+ */
+public class MessageCodec
+{
+	/** Default size of the read and write buffers; fits a 16 KiB block and its header. */
+	public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+	/** Largest frame accepted from a peer (a bitfield for a very large torrent). */
+	public static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+	/** Length of a PIECE frame up to its payload: length prefix, id, index and offset. */
+	public static final int PIECE_HEADER_LENGTH = 13;
+
+	// Buffer that bytes from the channel are read into, kept in fill mode between calls
+	private ByteBuffer readBuffer;
+	// Buffer that outgoing messages are encoded into, allocated on first use
+	private ByteBuffer writeBuffer;
+	// Pool that PIECE payloads are decoded into by read(ReadableByteChannel)
+	private final BufferPool pool;
+
+	// Destination of the piece payload being received, or null if it is being skipped
+	private ByteBuffer pieceTarget;
+	// Index, offset and length of the piece payload being received
+	private int pieceIndex;
+	private int pieceOffset;
+	private int pieceLength;
+	// Number of bytes of the piece payload still to be read from the channel
+	private int payloadRemaining = 0;
+	// True while the handler has asked for no more frames; buffered frames wait until resumed
+	private boolean isPaused = false;
+
+	// Recorder that every dispatched frame is captured by, or null if the session isn't recorded
+	private SessionRecorder recorder;
+	// Number of the peer in the recording
+	private int recordedPeer;
+
+	/**
+	 * Constructor for the MessageCodec class.
+	 * @param pool BufferPool supplying block slabs for PIECE payloads, or null to use the heap
+	 */
+	public MessageCodec(BufferPool pool)
+	{
+		this.pool = pool;
+		readBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Captures every frame dispatched from now on into a session recording.
+	 * @param recorder SessionRecorder to capture frames into
+	 * @param peer the number of the peer in the recording
+	 */
+	public void setRecorder(SessionRecorder recorder, int peer)
+	{
+		this.recorder = recorder;
+		this.recordedPeer = peer;
+	}
+
+	/**
+	 * Returns the next message from the channel, reading from it only when the buffer
+	 * does not already hold a complete frame. Frames with an unknown id are skipped.
+	 * This form allocates a Message for every frame; the connection itself uses
+	 * read(ReadableByteChannel, PeerMessageHandler) instead.
+	 *
+	 * @param channel ReadableByteChannel connected to the peer
+	 * @return the next message, or null if the channel is non-blocking and no complete frame is available
+	 * @throws IOException if the channel fails, reaches end of stream, or the peer sends an oversized frame
+	 */
+	public Message read(ReadableByteChannel channel) throws IOException
+	{
+		while (true)
+		{
+			readBuffer.flip();
+			int length;
+			while ((length = nextFrameLength()) != -1)
+			{
+				// parse the frame in place by limiting the buffer to its end
+				int frameEnd = readBuffer.position() + 4 + length;
+				int oldLimit = readBuffer.limit();
+				readBuffer.position(readBuffer.position() + 4);
+				readBuffer.limit(frameEnd);
+				Message msg = Message.decode(readBuffer, length, pool);
+				readBuffer.limit(oldLimit);
+				readBuffer.position(frameEnd);
+				if (msg != null) {
+					readBuffer.compact();
+					return msg;
+				}
+			}	// end of while ((length = nextFrameLength()) != -1)
+			ensureCapacity();
+			readBuffer.compact();
+
+			int n = channel.read(readBuffer);
+			if (n == -1) {
+				throw new EOFException("Error: Peer closed the connection.");
+			}
+			if (n == 0) {	// non-blocking channel with nothing to read
+				return null;
+			}
+		}	// end of while (true)
+	}
+
+	/**
+	 * Stops or restarts the dispatching of frames. A handler may pause the codec from inside
+	 * one of its callbacks, in which case read returns after that frame without reading the
+	 * channel again; frames already buffered are dispatched by the first read after the
+	 * codec is resumed. Must be called on the thread that reads.
+	 * @param paused true to pause, false to resume
+	 */
+	public void setPaused(boolean paused)
+	{
+		isPaused = paused;
+	}
+
+	/**
+	 * Returns whether the codec was paused by its handler.
+	 * @return true if frames are held back, false otherwise
+	 */
+	public boolean isPaused()
+	{
+		return isPaused;
+	}
+
+	/**
+	 * Dispatches every complete frame already buffered, reads from the channel, and
+	 * dispatches the frames that read completed. Each frame is parsed in place and passed
+	 * to the handler as primitives and buffer views, so no object is allocated per message.
+	 * PIECE payloads are not buffered: as soon as the 13-byte header has been parsed the
+	 * handler supplies the payload's destination and the rest of the payload is read from
+	 * the channel straight into it. Returns early once the handler pauses the codec.
+	 *
+	 * @param channel ReadableByteChannel connected to the peer
+	 * @param handler PeerMessageHandler receiving the decoded messages
+	 * @return the number of frames dispatched
+	 * @throws IOException if the channel fails, reaches end of stream, or the peer sends a malformed frame
+	 */
+	public int read(ReadableByteChannel channel, PeerMessageHandler handler) throws IOException
+	{
+		int frames = 0;
+		while (!isPaused)
+		{
+			if (payloadRemaining > 0) {	// in the middle of a piece payload
+				if (!readPayload(channel, handler)) {	// non-blocking channel ran dry
+					return frames;
+				}
+				frames++;
+			}
+			frames += dispatchFrames(handler);
+			if (payloadRemaining > 0) {	// a piece header was parsed; read its payload directly
+				continue;
+			}
+			if (isPaused) {	// leave the rest in the socket so that TCP pushes back on the peer
+				break;
+			}
+			int n = channel.read(readBuffer);
+			if (n == -1) {
+				throw new EOFException("Error: Peer closed the connection.");
+			}
+			if (n == 0) {
+				return frames;
+			}
+			frames += dispatchFrames(handler);
+			if (payloadRemaining == 0) {
+				return frames;
+			}
+		}	// end of while (!isPaused)
+		return frames;
+	}
+
+	/*
+	 * Dispatches every complete frame in the read buffer and compacts what is left. A PIECE
+	 * frame is dispatched as soon as its header is buffered; whatever part of its payload
+	 * is already buffered is moved to its destination and the rest is left pending.
+	 */
+	private int dispatchFrames(PeerMessageHandler handler) throws IOException
+	{
+		int frames = 0;
+		int length;
+		readBuffer.flip();
+		while (!isPaused)
+		{
+			if (isPieceHeaderBuffered()) {
+				if (startPiece(handler)) {	// whole payload was already buffered
+					frames++;
+					continue;
+				}
+				break;	// the read buffer has been drained into the payload's destination
+			}
+			if ((length = nextFrameLength()) == -1) {
+				break;
+			}
+			int frameEnd = readBuffer.position() + 4 + length;
+			int oldLimit = readBuffer.limit();
+			if (recorder != null) {
+				recorder.recordFrame(recordedPeer, SessionRecorder.INBOUND, readBuffer, readBuffer.position(), frameEnd);
+			}
+			readBuffer.position(readBuffer.position() + 4);
+			readBuffer.limit(frameEnd);
+			dispatch(length, handler);
+			readBuffer.limit(oldLimit);
+			readBuffer.position(frameEnd);
+			frames++;
+		}	// end of while (!isPaused)
+		ensureCapacity();
+		readBuffer.compact();
+		return frames;
+	}
+
+	/*
+	 * Returns whether the buffer starts with the complete 13-byte header of a PIECE frame.
+	 */
+	private boolean isPieceHeaderBuffered() throws IOException
+	{
+		if (readBuffer.remaining() < PIECE_HEADER_LENGTH
+				|| readBuffer.get(readBuffer.position() + 4) != Message.PIECE_ID) {
+			return false;
+		}
+		int length = readBuffer.getInt(readBuffer.position());
+		if (length < 9 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Error: Invalid piece frame length " + length + ".");
+		}
+		return true;
+	}
+
+	/*
+	 * Parses the PIECE header at the head of the buffer, asks the handler where the payload
+	 * goes, and moves the buffered part of the payload there. Returns true if the whole
+	 * payload was buffered and the piece has been completed.
+	 */
+	private boolean startPiece(PeerMessageHandler handler) throws IOException
+	{
+		int length = readBuffer.getInt();
+		readBuffer.get();	// message id
+		pieceIndex = readBuffer.getInt();
+		pieceOffset = readBuffer.getInt();
+		pieceLength = length - 9;
+		pieceTarget = handler.onPieceHeader(pieceIndex, pieceOffset, pieceLength);
+		if (pieceTarget != null && pieceTarget.remaining() != pieceLength) {
+			throw new IOException("Error: Destination of piece " + pieceIndex + " has the wrong size.");
+		}
+
+		int buffered = Math.min(readBuffer.remaining(), pieceLength);
+		if (pieceTarget != null) {
+			int oldLimit = readBuffer.limit();
+			readBuffer.limit(readBuffer.position() + buffered);
+			pieceTarget.put(readBuffer);
+			readBuffer.limit(oldLimit);
+		}
+		else {	// handler doesn't want the block; skip it
+			readBuffer.position(readBuffer.position() + buffered);
+		}
+		payloadRemaining = pieceLength - buffered;
+		if (payloadRemaining == 0) {
+			finishPiece(handler);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Reads the rest of a piece payload from the channel straight into its destination.
+	 * Returns true once the payload is complete, false if the channel has no more bytes.
+	 * The read buffer is always empty while a payload is pending.
+	 */
+	private boolean readPayload(ReadableByteChannel channel, PeerMessageHandler handler) throws IOException
+	{
+		while (payloadRemaining > 0)
+		{
+			int n;
+			if (pieceTarget != null) {
+				n = channel.read(pieceTarget);
+			}
+			else {	// discard the payload through the read buffer
+				readBuffer.limit(Math.min(readBuffer.capacity(), payloadRemaining));
+				n = channel.read(readBuffer);
+				readBuffer.clear();
+			}
+			if (n == -1) {
+				throw new EOFException("Error: Peer closed the connection.");
+			}
+			if (n == 0) {
+				return false;
+			}
+			payloadRemaining -= n;
+		}	// end of while (payloadRemaining > 0)
+		finishPiece(handler);
+		return true;
+	}
+
+	/*
+	 * Tells the handler that the pending piece payload has been consumed. When the session is
+	 * recorded, the frame is captured from the payload's destination.
+	 */
+	private void finishPiece(PeerMessageHandler handler) throws IOException
+	{
+		if (recorder != null) {
+			ByteBuffer payload = null;
+			if (pieceTarget != null) {
+				payload = pieceTarget.duplicate();
+				payload.position(payload.position() - pieceLength);
+			}
+			recorder.recordPiece(recordedPeer, SessionRecorder.INBOUND, pieceIndex, pieceOffset, payload, pieceLength);
+		}
+		pieceTarget = null;
+		handler.onPieceReceived(pieceIndex, pieceOffset, pieceLength);
+	}
+
+	/*
+	 * Calls the handler for the frame between the buffer's position and limit. The
+	 * buffer is positioned just after the length prefix.
+	 */
+	private void dispatch(int length, PeerMessageHandler handler) throws IOException
+	{
+		if (length == 0) {	// a length of 0 means it's a keep-alive message
+			handler.onKeepAlive();
+			return;
+		}
+		byte id = readBuffer.get();
+		switch (id) {
+		case (Message.CHOKE_ID):
+			handler.onChoke();
+			break;
+		case (Message.UNCHOKE_ID):
+			handler.onUnchoke();
+			break;
+		case (Message.INTERESTED_ID):
+			handler.onInterested();
+			break;
+		case (Message.UNINTERESTED_ID):
+			handler.onUninterested();
+			break;
+		case (Message.HAVE_ID):
+			Message.requirePayload(length, 4);
+			handler.onHave(readBuffer.getInt());
+			break;
+		case (Message.BITFIELD_ID):
+			handler.onBitfield(readBuffer);
+			break;
+		case (Message.REQUEST_ID): {
+			Message.requirePayload(length, 12);
+			int index = readBuffer.getInt();
+			int offset = readBuffer.getInt();
+			handler.onRequest(index, offset, readBuffer.getInt());
+			break;
+		}
+		case (Message.PIECE_ID):	// handled by startPiece before the frame is complete
+			break;
+		case (Message.CANCEL_ID): {
+			Message.requirePayload(length, 12);
+			int index = readBuffer.getInt();
+			int offset = readBuffer.getInt();
+			handler.onCancel(index, offset, readBuffer.getInt());
+			break;
+		}
+		case (Message.SUGGEST_ID):
+			Message.requirePayload(length, 4);
+			handler.onSuggest(readBuffer.getInt());
+			break;
+		case (Message.HAVE_ALL_ID):
+			handler.onHaveAll();
+			break;
+		case (Message.HAVE_NONE_ID):
+			handler.onHaveNone();
+			break;
+		case (Message.REJECT_ID): {
+			Message.requirePayload(length, 12);
+			int index = readBuffer.getInt();
+			int offset = readBuffer.getInt();
+			handler.onReject(index, offset, readBuffer.getInt());
+			break;
+		}
+		case (Message.ALLOWED_FAST_ID):
+			Message.requirePayload(length, 4);
+			handler.onAllowedFast(readBuffer.getInt());
+			break;
+		case (Message.EXTENDED_ID):
+			Message.requirePayload(length, 1);
+			handler.onExtended(readBuffer.get() & 0xFF, readBuffer);
+			break;
+		}	// end of switch (id)
+	}
+
+	/*
+	 * Returns the length prefix of the frame at the head of the buffer if the whole frame
+	 * has been received, or -1 otherwise. Must be called while the buffer is in drain mode.
+	 */
+	private int nextFrameLength() throws IOException
+	{
+		if (readBuffer.remaining() < 4) {
+			return -1;
+		}
+		int length = readBuffer.getInt(readBuffer.position());
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Error: Invalid frame length " + length + ".");
+		}
+		if (readBuffer.remaining() < 4 + length) {	// frame not completely received yet
+			return -1;
+		}
+		return length;
+	}
+
+	/*
+	 * Grows the read buffer if the frame at its head is larger than the buffer itself.
+	 * Must be called while the buffer is in drain mode.
+	 */
+	private void ensureCapacity()
+	{
+		if (readBuffer.remaining() < 4) {
+			return;
+		}
+		int frameSize = 4 + readBuffer.getInt(readBuffer.position());
+		if (frameSize > readBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocateDirect(frameSize);
+			larger.put(readBuffer);
+			larger.flip();
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Encodes a message and writes it to the channel in a single write.
+	 *
+	 * @param msg Message to be sent
+	 * @param channel WritableByteChannel connected to the peer
+	 * @throws IOException
+	 */
+	public void write(Message msg, WritableByteChannel channel) throws IOException
+	{
+		if (writeBuffer == null) {
+			writeBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+		}
+		ByteBuffer buf = writeBuffer;
+		if (msg.getEncodedLength() > buf.capacity()) {	// only very large bitfields
+			buf = ByteBuffer.allocate(msg.getEncodedLength());
+		}
+		buf.clear();
+		Message.encode(msg, buf);
+		buf.flip();
+		while (buf.hasRemaining())
+		{
+			channel.write(buf);
+		}
+	}
+
+}
@@ -3,23 +3,45 @@
  */
 package app;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import GivenTools.BencodingException;
+import GivenTools.Bencoder2;
 
 /**
  * Peer.java
  * This class represents the connection with a peer and manages the message communication
- * between both hosts. When blocks are received by the peer, the piece is reassembled, verified
- * against its hash in the metainfo, and subsequently written into the file.
+ * between both hosts. A peer holds the state of its connection only; its non-blocking channel
+ * is owned by one of the client's event loops, which connects it, exchanges the handshake, and
+ * calls back into the peer whenever the channel can be read or written. Messages from the peer
+ * are decoded and handled on that event loop's thread. When blocks are received by the peer,
+ * the piece is reassembled, verified against its hash in the metainfo, and subsequently written
+ * into the file.
  */
-public class Peer extends Thread
+public class Peer implements PeerMessageHandler
 {
 	/** The 20-byte array containing the peer ID of the remote host. */
 	protected byte[] peerID;
@@ -37,11 +59,157 @@ public class Peer extends Thread
 	/** True if the peer is interested in the local host. */
 	boolean isPeerInterested = false;	// semantically nonsensical; is peer interested in local host
 
-	/** Bitfield of the peer. */
+	/** Bitfield of the peer; changed through the client's PiecePicker, which counts it. */
 	boolean[] bitfield;
+	/** True if the client's PiecePicker counts the peer as a seed; guarded by the picker. */
+	boolean isSeed = false;
+	/** True once the client's PiecePicker stopped counting the peer's pieces; guarded by the picker. */
+	boolean isUncounted = false;
+	/** Pieces that the peer is downloading for the local host; changed through the client's PiecePicker. */
+	final PieceBitfield downloading;
+	/** Pieces of downloading that the peer shares with other peers at block granularity; changed through the client's PiecePicker. */
+	final PieceBitfield sharing;
+
+	/** Largest block a peer may request from the local host. */
+	public static final int MAX_REQUEST_LENGTH = 128 * 1024;
+
+	/** Bit of the last reserved handshake byte that advertises the Fast Extension. */
+	public static final byte FAST_EXTENSION_BIT = 0x04;
+
+	/** Bit of the sixth reserved handshake byte that advertises the Extension Protocol. */
+	public static final byte EXTENSION_PROTOCOL_BIT = 0x10;
+
+	/** Number of requests kept in flight to a peer before its link has been measured. */
+	public static final int INITIAL_REQUEST_WINDOW = 4;
+	/** Fewest requests kept in flight to a peer. */
+	public static final int MIN_REQUEST_WINDOW = 2;
+	/** Most requests kept in flight to a peer; also advertised to peers as the number of requests queued for them. */
+	public static final int MAX_REQUEST_WINDOW = 250;
+	/** Number of bandwidth-delay products the request window covers, leaving room for the window to grow. */
+	public static final double REQUEST_WINDOW_GAIN = 2.0;
+	/** Number of milliseconds of block arrivals in each sample of a peer's rate. */
+	public static final long RATE_SAMPLE_MILLIS = 500;
+
+	/** Key of the number of requests a peer queues in its extension handshake. */
+	public static final ByteBuffer KEY_REQQ = ByteBuffer.wrap(new byte[] {'r', 'e', 'q', 'q'});
+
+	/** Number of pieces in the allowed fast set granted to each peer. */
+	public static final int ALLOWED_FAST_SET_SIZE = 10;
+
+	/** Number of milliseconds allowed for establishing the connection. */
+	public static final long CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+	/** Number of milliseconds allowed for a uTP connection before falling back to TCP. */
+	public static final long UTP_CONNECT_TIMEOUT_MILLIS = 2 * 1000;
+	/** Number of milliseconds allowed for exchanging handshakes once the connection is established. */
+	public static final long HANDSHAKE_TIMEOUT_MILLIS = 5 * 1000;
+	/** Number of milliseconds without any message from the peer before it is disconnected. */
+	public static final long READ_TIMEOUT_MILLIS = 120 * 1000;
+	/** Number of milliseconds without any message to the peer before a keep-alive is sent. */
+	public static final long KEEP_ALIVE_MILLIS = 110 * 1000;
+	/** Number of milliseconds that requests may go unanswered before the peer is disconnected. */
+	public static final long REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+
+	/** State of a peer whose connection is being established. */
+	public static final int CONNECTING = 0;
+	/** State of a peer whose handshake is being exchanged. */
+	public static final int HANDSHAKING = 1;
+	/** State of a peer that exchanges messages. */
+	public static final int CONNECTED = 2;
+	/** State of a peer that was disconnected. */
+	public static final int CLOSED = 3;
+
+	/** True if the peer connected to the local host, false if the local host connected to it. */
+	boolean isInbound = false;
+
+	/** True if both hosts set the Fast Extension bit in their handshakes. */
+	boolean fastExtension = false;
+	/** True if both hosts set the Extension Protocol bit in their handshakes. */
+	boolean extensionProtocol = false;
+	/** Pieces the peer may request while choked by the local host. */
+	private boolean[] allowedFastOut;
+	/** Pieces the local host may request while choked by the peer. */
+	private boolean[] allowedFastIn;
+	/** Pieces the peer suggested downloading, most recent last. */
+	private final ArrayDeque<Integer> suggestedPieces = new ArrayDeque<Integer>();
+
+	/** Requests sent to the peer that have not been answered yet. */
+	private final ArrayDeque<Message.Request> outstandingRequests = new ArrayDeque<Message.Request>();
+	/** Requests that were rejected or dropped by a choke and must be sent again. */
+	private final ArrayDeque<Message.Request> retryRequests = new ArrayDeque<Message.Request>();
+	// Number of requests kept in flight, resized as the peer's link is measured
+	private int requestWindow = INITIAL_REQUEST_WINDOW;
+	// Most requests the peer queues, from the reqq of its extension handshake
+	private int peerRequestLimit = MAX_REQUEST_WINDOW;
+	// Smoothed rate that blocks arrive at, in bytes per second, or 0 until measured
+	private double arrivalRate = 0;
+	// Lowest time a block took to arrive once requested, in nanoseconds
+	private long baseLatency = Long.MAX_VALUE;
+	// Start of the current rate sample in nanoseconds, or 0 if no sample is running
+	private long rateSampleStart = 0L;
+	private long rateSampleBytes = 0L;
 
 	// Socket which connects to the peer.
 	private Socket sock;
+	// Channel backing the socket, used for framed message I/O
+	private SocketChannel channel;
+	// uTP connection used instead of the channel, or null if the peer is connected over TCP
+	private UtpSocket utp;
+	// True while the peer is waiting for its event loop to handle news from its uTP connection
+	private final AtomicBoolean transportScheduled = new AtomicBoolean(false);
+	// Codec owning the reusable read buffer for this connection
+	private final MessageCodec codec;
+	// Queue of messages waiting to be written to the peer
+	private final PeerOutbox outbox;
+	/** Limits of the bytes read from and written to the peer, between the connection and the codec and outbox. */
+	final ThrottledChannel throttle;
+	// True while a timer is set to read or write again once the throttle has tokens
+	private final AtomicBoolean isReadDeferred = new AtomicBoolean(false);
+	private final AtomicBoolean isWriteDeferred = new AtomicBoolean(false);
+
+	// Event loop performing the I/O of this peer, and the key of its channel there
+	private volatile EventLoop loop;
+	private SelectionKey key;
+	// Threads performing the blocking I/O of this peer when it isn't run by an event loop
+	private Thread reader;
+	private Thread writer;
+	// State of the connection: CONNECTING, HANDSHAKING, CONNECTED or CLOSED
+	private volatile int state = CONNECTING;
+	// Handshake sent to the peer, and the buffer that the peer's handshake is read into
+	private ByteBuffer handshakeOut;
+	private ByteBuffer handshakeIn;
+	// True while the peer is waiting for its event loop to flush the outbox
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	// True while this peer holds one of the client's connection slots
+	private boolean isAttemptPending = false;
+	// Times the connection and the handshake were started, and of the last read and write,
+	// in milliseconds; read by the timer that checks the peer for timeouts
+	private volatile long connectTime;
+	private volatile long handshakeTime;
+	private volatile long lastReadTime;
+	private volatile long lastWriteTime;
+	// Time requests have been waiting for a block since, in milliseconds, or 0 if none are in flight
+	private volatile long requestTime = 0L;
+	// Timer that checks the peer for timeouts, rescheduled for the next deadline each time it fires
+	private volatile TimerWheel.Timeout idleTimer;
+	// Number of this peer's pieces handed to the client's PieceVerifier and not yet checked
+	private final AtomicInteger pendingPieces = new AtomicInteger();
+	// True while reading from the peer is paused because too many of its pieces are pending
+	private final AtomicBoolean isReadPaused = new AtomicBoolean(false);
+	/** Number of times reading from the peer was paused. */
+	volatile long readPauses = 0L;
+	/** Number of block bytes received from the peer on this connection. */
+	volatile long bytesDownloaded = 0L;
+	/** True if the peer broke the protocol in a way that it should never be connected to again. */
+	volatile boolean isMisbehaving = false;
+	// Number of this peer in the client's session recording, or -1 if it isn't recorded
+	private int recordedPeer = -1;
+	// HAVE messages being queued by sendHaves, reused between calls
+	private Message[] haveBatch = new Message[16];
+	// Pieces the peer has and the local host is missing; the local host is interested while any are set
+	private final PieceBitfield wanted;
+	// Blocks that another peer delivered first, as piece index and offset, or -1 for every block of the piece;
+	// their requests to this peer are cancelled on the peer's own thread
+	private final ConcurrentLinkedQueue<long[]> cancelledBlocks = new ConcurrentLinkedQueue<long[]>();
 
 	/** InputStream object. */
 	protected InputStream in;
@@ -57,25 +225,24 @@ public class Peer extends Thread
 	private int piece_length;
 	// The total length of the file
 	private int file_length;
-	// The length of a block within a piece
-	private int blockSize;	// 2^14
 	// The total number of pieces 
 	private int numPieces;
 
-	// ByteArrayOutputStream used to store blocks for a piece
-	private ByteArrayOutputStream piece;
+	// Region in the client's PieceAssembler of the last piece a block was received for
+	private ByteBuffer pieceRegion;
+	// Reusable view of that region that block payloads are read into
+	private ByteBuffer pieceView;
+	// The piece and byte offset of the block being received, or -1 if its payload is skipped
+	private int blockIndex = -1;
+	private int blockOffset = 0;
 
 	//	private int totalBytesWritten = 0;
 
 	// True if the peer connection is active, false otherwise
 	private boolean isRunning = true;
-	/** Total amount of bytes downloaded. */
-	long totalDownloaded = 0L;
 
 	/** TorrentClient object. */
 	public TorrentClient client;
-	/** PeerKeepAliveTask object for keep-alive message sending. */
-	private PeerKeepAliveTask keepAliveTask;
 
 	/**
 	 * Constructor for the Peer class.
@@ -86,285 +253,1568 @@ public class Peer extends Thread
 	 */
 	public Peer(byte[] peerID, int port, String ip, TorrentClient client)
 	{
-		super("Peer ID: " + peerID);
 		this.peerID = peerID;
 		this.port = port;
 		this.ip = ip;
 
 		this.client = client;
+		codec = new MessageCodec(client.pool);
+		outbox = new PeerOutbox(client.pool);
+		throttle = client.newThrottle();
 		// calculate the relevant piee and block information
 		piece_length = client.info.piece_length;
 		file_length = client.info.file_length;
-		blockSize = 16384;	// 2^14 TODO actually retrieve value from metainfo
 		numPieces = client.info.piece_hashes.length;
-		// start the timer for keep-alive messages
-		keepAliveTask = new PeerKeepAliveTask(this);
 		// initialize the local bitfield
 		bitfield = new boolean[client.info.piece_hashes.length];
+		wanted = new PieceBitfield(bitfield.length);
+		downloading = new PieceBitfield(bitfield.length);
+		sharing = new PieceBitfield(bitfield.length);
 		Arrays.fill(bitfield, false);
+		allowedFastOut = new boolean[numPieces];
+		allowedFastIn = new boolean[numPieces];
+	}
+
+	/**
+	 * Constructor for a peer that connected to the local host. Its peer ID is only known once
+	 * its handshake has been read.
+	 * @param channel the channel accepted from the peer
+	 * @param client the TorrentClient object managing the list of peers
+	 */
+	public Peer(SocketChannel channel, TorrentClient client)
+	{
+		this(new byte[20], channel.socket().getPort(), channel.socket().getInetAddress().getHostAddress(), client);
+		this.channel = channel;
+		sock = channel.socket();
+		isInbound = true;
+	}
+
+	/**
+	 * Constructor for a peer that connected to the local host over uTP.
+	 * @param socket the connection accepted from the peer
+	 * @param client the TorrentClient object managing the list of peers
+	 */
+	public Peer(UtpSocket socket, TorrentClient client)
+	{
+		this(new byte[20], socket.getRemoteAddress().getPort(), socket.getRemoteAddress().getAddress().getHostAddress(), client);
+		utp = socket;
+		utp.setPeer(this);
+		isInbound = true;
+	}
+
+	/**
+	 * Starts the handshake of a peer that connected to the local host. The peer's handshake
+	 * is read first and the local host answers only if it names this torrent's info hash.
+	 * Like an outbound connection, the handshake is run by one of the client's event loops
+	 * in the nio I/O mode and by a reader thread otherwise, and times out the same way.
+	 * 
+	 * @return true if the handshake was started, false otherwise
+	 */
+	public boolean accept()
+	{
+		try {
+			isRunning = true;
+			connectTime = System.currentTimeMillis();
+			handshakeTime = connectTime;
+			state = HANDSHAKING;
+			startIdleTimer(HANDSHAKE_TIMEOUT_MILLIS);
+			if (utp == null) {
+				sock.setTcpNoDelay(true);
+			}
+			handshakeOut = ByteBuffer.allocate(0);	// filled in once the peer's handshake checks out
+			handshakeIn = ByteBuffer.allocate(68);
+
+			if (client.ioMode != TorrentClient.IO_MODE_NIO) {
+				reader = client.newPeerThread(new Runnable() {
+					public void run()
+					{
+						readBlocking();
+					}
+				}, "Reader for " + this);
+				reader.start();
+				return true;
+			}
+			if (utp == null) {
+				channel.configureBlocking(false);
+			}
+			loop = client.nextEventLoop();
+			loop.register(this);
+			return true;
+		}
+		catch (Exception e)
+		{	e.printStackTrace();	}
+		return false;
+	}
+
+	/**
+	 * Starts connecting to the peer. In the nio I/O mode the connection and the handshake are
+	 * completed by one of the client's event loops; otherwise they are completed by a reader
+	 * thread of this peer's own, platform or virtual. If either fails or times out, the peer
+	 * is disconnected. When the client prefers uTP, an event loop tries a uTP connection
+	 * first and falls back to TCP if the peer doesn't answer it.
+	 * 
+	 * @return true if the connection was started, false otherwise
+	 */
+	public boolean init()
+	{
+		try {
+			isRunning = true;
+			synchronized (this) {
+				isAttemptPending = true;
+			}
+			connectTime = System.currentTimeMillis();
+			handshakeOut = ByteBuffer.wrap(Peer.generateHandshake(TorrentClient.peerID, client.info.info_hash.array()));
+			handshakeIn = ByteBuffer.allocate(68);
+			if (client.transport == TorrentClient.TRANSPORT_UTP && client.ioMode == TorrentClient.IO_MODE_NIO) {
+				UtpMultiplexer mux = client.getUtpMultiplexer();
+				if (mux != null) {
+					startIdleTimer(UTP_CONNECT_TIMEOUT_MILLIS);
+					loop = client.nextEventLoop();
+					utp = mux.connect(new InetSocketAddress(ip, port), this);
+					loop.register(this);
+					return true;
+				}
+			}
+			startIdleTimer(CONNECT_TIMEOUT_MILLIS);
+			channel = SocketChannel.open();
+			sock = channel.socket();
+			sock.setTcpNoDelay(true);	// every batch of messages already goes out in one write
+
+			if (client.ioMode != TorrentClient.IO_MODE_NIO) {
+				reader = client.newPeerThread(new Runnable() {
+					public void run()
+					{
+						readBlocking();
+					}
+				}, "Reader for " + this);
+				reader.start();
+				return true;
+			}
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(ip, port));
+			loop = client.nextEventLoop();
+			loop.register(this);
+			return true;
+		}
+		catch (Exception e)
+		{	e.printStackTrace();	}
+		return false;
+	}
+
+	/*
+	 * Runs on the reader thread of a peer that isn't run by an event loop: connects, exchanges
+	 * handshakes with plain blocking calls, starts the writer thread, and then reads and
+	 * dispatches messages until the connection is closed. An inbound peer is already
+	 * connected and is only answered once its own handshake has been read.
+	 */
+	private void readBlocking()
+	{
+		try {
+			if (!isInbound) {
+				sock.connect(new InetSocketAddress(ip, port), (int) CONNECT_TIMEOUT_MILLIS);
+				state = HANDSHAKING;
+				handshakeTime = System.currentTimeMillis();
+			}
+			DataOutputStream dos = new DataOutputStream(sock.getOutputStream());
+			DataInputStream dis = new DataInputStream(sock.getInputStream());
+			writeHandshake(dos);
+			// the rest of the timeout applies to the peer's handshake
+			sock.setSoTimeout((int) Math.max(1, HANDSHAKE_TIMEOUT_MILLIS - (System.currentTimeMillis() - handshakeTime)));
+			dis.readFully(handshakeIn.array());
+			sock.setSoTimeout(0);	// from now on the writer thread watches for timeouts
+
+			lastReadTime = System.currentTimeMillis();
+			completeHandshake(handshakeIn.array());
+			writeHandshake(dos);	// an inbound peer's answer
+			writer = client.newPeerThread(new Runnable() {
+				public void run()
+				{
+					writeBlocking();
+				}
+			}, "Writer for " + this);
+			writer.start();
+
+			while (state == CONNECTED)
+			{
+				// decoded messages are handed straight to this peer's handler methods
+				codec.read(throttle, this);
+				lastReadTime = System.currentTimeMillis();
+				if (codec.isPaused()) {
+					awaitResume();
+				}
+				if (throttle.isReadThrottled()) {
+					Thread.sleep(throttle.getReadDelayMillis());
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			// interrupted while paused; the connection is closed below
+		}
+		catch (IOException ioe) {
+			if (state != CLOSED) {
+				System.err.println("Error: Connection to " + this + " failed: " + ioe.getMessage());
+			}
+		}
+		catch (RuntimeException re)
+		{	re.printStackTrace();	}
+		finally {
+			try {
+				disconnect();
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+			releaseBuffers();
+		}
+	}
+
+	/*
+	 * Writes whatever is left of the local host's handshake on a blocking connection.
+	 */
+	private void writeHandshake(DataOutputStream dos) throws IOException
+	{
+		if (handshakeOut.hasRemaining()) {
+			dos.write(handshakeOut.array(), handshakeOut.position(), handshakeOut.remaining());
+			dos.flush();
+			handshakeOut.position(handshakeOut.limit());
+		}
+	}
+
+	/*
+	 * Runs on the writer thread of a peer that isn't run by an event loop: drains the outbox
+	 * onto the socket until the connection is closed.
+	 */
+	private void writeBlocking()
+	{
+		try {
+			while (state == CONNECTED)
+			{
+				// disconnecting interrupts the wait, so the timeout is only a safety net
+				if (outbox.awaitWork(KEEP_ALIVE_MILLIS)) {
+					while (!outbox.flush(throttle))	// a blocking channel only stops short when throttled
+					{
+						Thread.sleep(throttle.getWriteDelayMillis());
+					}
+					lastWriteTime = System.currentTimeMillis();
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			return;
+		}
+		catch (IOException ioe) {
+			if (state != CLOSED) {
+				System.err.println("Error: Writing to " + this + " failed: " + ioe.getMessage());
+			}
+		}
+		try {
+			disconnect();
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+	}
+
+	/**
+	 * Registers the channel with the selector of the event loop. Called on the loop's thread.
+	 * @param selector the selector of the event loop
+	 * @throws IOException
+	 */
+	void register(Selector selector) throws IOException
+	{
+		if (utp != null) {	// told about its connection through transportReady instead
+			if (utp.isConnected()) {
+				if (state == CONNECTING) {
+					startHandshake();
+				}
+				handleRead();	// anything that arrived before the loop got to it
+			}
+			return;
+		}
+		SocketChannel ch = channel;
+		if (ch == null) {	// disconnected before the loop got to it
+			return;
+		}
+		key = ch.register(selector, 0, this);
+		if (ch.isConnected()) {
+			startHandshake();
+		}
+		else {
+			key.interestOps(SelectionKey.OP_CONNECT);
+		}
+	}
+
+	/**
+	 * Completes the connection once the channel is connectable. Called on the loop's thread.
+	 * @throws IOException if the connection failed
+	 */
+	void handleConnect() throws IOException
+	{
+		if (channel.finishConnect()) {
+			startHandshake();
+		}
+	}
+
+	/*
+	 * Sends the local host's handshake and starts waiting for the peer's.
+	 */
+	private void startHandshake() throws IOException
+	{
+		state = HANDSHAKING;
+		handshakeTime = System.currentTimeMillis();
+		lastReadTime = handshakeTime;
+		if (key != null) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		handleWrite();
+	}
+
+	/**
+	 * Reads whatever the channel holds: the rest of the peer's handshake, then messages,
+	 * which are dispatched to this peer's handler methods. Called on the loop's thread.
+	 * @throws IOException if the channel fails or the peer sends something invalid
+	 */
+	void handleRead() throws IOException
+	{
+		ReadableByteChannel ch = (utp != null) ? utp : channel;
+		if (ch == null) {
+			return;
+		}
+		lastReadTime = System.currentTimeMillis();
+		if (state == HANDSHAKING) {
+			if (ch.read(handshakeIn) == -1) {
+				throw new EOFException("Error: Peer closed the connection during the handshake.");
+			}
+			if (handshakeIn.hasRemaining()) {
+				return;
+			}
+			completeHandshake(handshakeIn.array());
+		}
+		if (state == CONNECTED) {
+			// decoded messages are handed straight to this peer's handler methods
+			codec.read(throttle, this);
+			if (throttle.isReadThrottled()) {
+				deferReading();
+			}
+		}
+	}
+
+	/**
+	 * Writes the rest of the handshake and then as much of the outbox as the channel takes,
+	 * and watches the channel for writability only while something is left over. Called on
+	 * the loop's thread.
+	 * @throws IOException if the channel fails
+	 */
+	void handleWrite() throws IOException
+	{
+		writeScheduled.set(false);
+		GatheringByteChannel ch = (utp != null) ? utp : channel;
+		if (ch == null || (key == null && utp == null)) {
+			return;
+		}
+		boolean isDone = true;
+		if (handshakeOut.hasRemaining()) {
+			ch.write(handshakeOut);
+			isDone = !handshakeOut.hasRemaining();
+		}
+		if (isDone && state == CONNECTED && !outbox.isEmpty()) {
+			isDone = outbox.flush(throttle);
+			lastWriteTime = System.currentTimeMillis();
+			if (!isDone && throttle.isWriteThrottled()) {	// continue once the throttle has tokens, not when the socket drains
+				deferWriting();
+				isDone = true;
+			}
+		}
+		if (utp != null) {	// a uTP connection calls transportReady once its send buffer drains
+			return;
+		}
+		if (isDone) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		else {	// socket buffer is full; continue once it drains
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/*
+	 * Stops reading from the peer until its throttle has download tokens again. An event
+	 * loop stops watching the channel for reads, which a timer restores; bytes the peer
+	 * keeps sending wait in the socket and push back on it as when reading is paused.
+	 */
+	private void deferReading()
+	{
+		SelectionKey k = key;
+		if (k != null && k.isValid()) {
+			k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+		}
+		if (!isReadDeferred.compareAndSet(false, true)) {	// the timer is already set
+			return;
+		}
+		client.timers.schedule(new Runnable() {
+			public void run()
+			{
+				loop.execute(Peer.this, new Runnable() {
+					public void run()
+					{
+						isReadDeferred.set(false);
+						SelectionKey k = key;
+						if (k != null && k.isValid() && !isReadPaused.get()) {
+							k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+						}
+						readOrClose();
+					}
+				});
+			}
+		}, throttle.getReadDelayMillis());
+	}
+
+	/*
+	 * Stops writing to the peer until its throttle has upload tokens again, when a timer
+	 * asks the event loop to flush the outbox.
+	 */
+	private void deferWriting()
+	{
+		if (!isWriteDeferred.compareAndSet(false, true)) {
+			return;
+		}
+		client.timers.schedule(new Runnable() {
+			public void run()
+			{
+				isWriteDeferred.set(false);
+				if (state == CONNECTED) {
+					scheduleWrite();
+				}
+			}
+		}, throttle.getWriteDelayMillis());
+	}
+
+	/*
+	 * Reads from the peer on the loop's thread, and disconnects it if that fails.
+	 */
+	private void readOrClose()
+	{
+		if (state != CONNECTED) {
+			return;
+		}
+		try {
+			handleRead();
+		}
+		catch (IOException ioe) {
+			if (state != CLOSED) {	// not just closed by another thread
+				System.err.println("Error: Connection to " + this + " failed: " + ioe.getMessage());
+			}
+			try {
+				disconnect();
+			}
+			catch (IOException e)
+			{	e.printStackTrace();	}
+		}
+	}
+
+	/**
+	 * Tells the peer that its uTP connection was established, received data, freed space in
+	 * its send buffer or failed. Called on the uTP multiplexer's thread; the news is handled
+	 * on the peer's event loop, once for any number of calls before it gets to them.
+	 */
+	void transportReady()
+	{
+		EventLoop l = loop;
+		if (l == null || !transportScheduled.compareAndSet(false, true)) {	// register catches up on the news
+			return;
+		}
+		l.execute(this, new Runnable() {
+			public void run()
+			{
+				transportScheduled.set(false);
+				handleTransport();
+			}
+		});
+	}
+
+	/*
+	 * Starts the handshake once the uTP connection is established, or falls back to TCP
+	 * if it failed before that, and then reads and writes whatever the connection allows.
+	 */
+	private void handleTransport()
+	{
+		UtpSocket u = utp;
+		if (u == null || state == CLOSED) {
+			return;
+		}
+		try {
+			if (state == CONNECTING) {
+				if (!u.isOpen()) {
+					fallBackToTcp();
+					return;
+				}
+				if (!u.isConnected()) {
+					return;
+				}
+				startHandshake();
+			}
+			handleRead();
+			handleWrite();
+		}
+		catch (IOException ioe) {
+			if (state != CLOSED) {	// not just closed by another thread
+				System.err.println("Error: Connection to " + this + " failed: " + ioe.getMessage());
+			}
+			try {
+				disconnect();
+			}
+			catch (IOException e)
+			{	e.printStackTrace();	}
+		}
+	}
+
+	/*
+	 * Gives up on a uTP connection that was never established and connects over TCP
+	 * instead, with the full connection timeout. Called on the loop's thread.
+	 */
+	private void fallBackToTcp() throws IOException
+	{
+		System.err.println("Error: No uTP connection to " + this + "; trying TCP.");
+		utp.close();
+		utp = null;
+		connectTime = System.currentTimeMillis();
+		channel = SocketChannel.open();
+		sock = channel.socket();
+		sock.setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(ip, port));
+		loop.register(this);
+	}
+
+	/*
+	 * Schedules the timer that checks the peer for timeouts.
+	 */
+	private void startIdleTimer(long delayMillis)
+	{
+		final Runnable check = new Runnable() {
+			public void run()
+			{
+				runIdleCheck();
+			}
+		};
+		idleTimer = client.timers.schedule(new Runnable() {
+			public void run()
+			{
+				if (state == CLOSED) {
+					return;
+				}
+				if (loop != null) {	// the peer's state is only touched on its event loop
+					loop.execute(Peer.this, check);
+				}
+				else {	// the checks only read volatile times and queue messages
+					check.run();
+				}
+			}
+		}, delayMillis);
+	}
+
+	/*
+	 * Checks the peer for timeouts and reschedules the timer for the next deadline, or
+	 * disconnects the peer if it timed out.
+	 */
+	private void runIdleCheck()
+	{
+		if (state == CLOSED) {
+			return;
+		}
+		try {
+			client.timers.reschedule(idleTimer, checkIdle(System.currentTimeMillis()));
+		}
+		catch (IOException ioe) {
+			System.err.println("Error: " + this + " timed out: " + ioe.getMessage());
+			try {
+				disconnect();
+			}
+			catch (IOException e)
+			{	e.printStackTrace();	}
+		}
+	}
+
+	/**
+	 * Disconnects the peer if it has timed out, and sends a keep-alive if nothing has been
+	 * sent to it for a while. Reads and writes only update their times, so activity never
+	 * touches the timer; instead each check returns how long until the earliest deadline
+	 * given the latest times, and the timer is moved there.
+	 * @param now the current time in milliseconds
+	 * @return the number of milliseconds until the peer should be checked again
+	 * @throws IOException if the peer timed out
+	 */
+	long checkIdle(long now) throws IOException
+	{
+		if (state == CONNECTING) {
+			if (utp != null && !isInbound) {
+				if (now - connectTime >= UTP_CONNECT_TIMEOUT_MILLIS) {
+					fallBackToTcp();
+					return CONNECT_TIMEOUT_MILLIS;
+				}
+				return connectTime + UTP_CONNECT_TIMEOUT_MILLIS - now;
+			}
+			if (now - connectTime >= CONNECT_TIMEOUT_MILLIS) {
+				throw new IOException("Error: Not connected within " + CONNECT_TIMEOUT_MILLIS + " ms.");
+			}
+			return connectTime + CONNECT_TIMEOUT_MILLIS - now;
+		}
+		if (state == HANDSHAKING) {
+			if (now - handshakeTime >= HANDSHAKE_TIMEOUT_MILLIS) {
+				throw new IOException("Error: No handshake within " + HANDSHAKE_TIMEOUT_MILLIS + " ms.");
+			}
+			return handshakeTime + HANDSHAKE_TIMEOUT_MILLIS - now;
+		}
+		if (isReadPaused.get()) {	// the local host isn't reading, so the peer can't be blamed
+			lastReadTime = now;
+			if (requestTime != 0L) {
+				requestTime = now;
+			}
+		}
+		if (now - lastReadTime >= READ_TIMEOUT_MILLIS) {
+			throw new IOException("Error: No message within " + READ_TIMEOUT_MILLIS + " ms.");
+		}
+		long requested = requestTime;
+		if (requested != 0L && now - requested >= REQUEST_TIMEOUT_MILLIS) {
+			throw new IOException("Error: No block within " + REQUEST_TIMEOUT_MILLIS + " ms of a request.");
+		}
+		if (now - lastWriteTime >= KEEP_ALIVE_MILLIS) {
+			sendMessage(Message.KEEP_ALIVE);
+			lastWriteTime = now;	// the outbox is flushed shortly
+		}
+		long next = Math.min(lastReadTime + READ_TIMEOUT_MILLIS, lastWriteTime + KEEP_ALIVE_MILLIS);
+		if (requested != 0L) {
+			next = Math.min(next, requested + REQUEST_TIMEOUT_MILLIS);
+		}
+		return next - now;
+	}
+
+	/*
+	 * Verifies the peer's handshake and starts exchanging messages.
+	 */
+	private void completeHandshake(byte[] peerResponse) throws IOException
+	{
+		// verify the handshake received by the peer
+		if (!checkHandshake(client.info.info_hash.array(), peerResponse)) {
+			isMisbehaving = true;
+			throw new IOException("Error: Handshake from peer has the wrong info hash.");
+		}
+
+		if (isInbound) {	// answer the peer now that it asked for this torrent
+			byte[] id = Arrays.copyOfRange(peerResponse, 48, 68);
+			if (Arrays.equals(id, TorrentClient.peerID)) {
+				throw new IOException("Error: Peer is the local host itself.");
+			}
+			if (client.isDuplicatePeer(this, id)) {
+				throw new IOException("Error: Already connected to peer " + new String(id, "UTF-8") + ".");
+			}
+			peerID = id;
+			handshakeOut = ByteBuffer.wrap(Peer.generateHandshake(TorrentClient.peerID, client.info.info_hash.array()));
+		}
+
+		System.out.println("Handshake from peer: " + new String(peerResponse, "UTF-8"));
+		fastExtension = supportsFastExtension(peerResponse);
+		extensionProtocol = supportsExtensionProtocol(peerResponse);
+		if (client.recorder != null) {	// capture every frame of this connection from here on
+			recordedPeer = client.recorder.addPeer(ip, port, Arrays.copyOfRange(peerResponse, 48, 68), peerResponse);
+			codec.setRecorder(client.recorder, recordedPeer);
+		}
+
+		if (client.currentUnchoked.incrementAndGet() <= TorrentClient.MAX_UNCHOKED) {	// torrent client can take another peer
+			isChokingPeer = false;
+		}
+		else {	// client can't take another peer at this time
+			client.currentUnchoked.decrementAndGet();
+			isChokingPeer = true;
+		}
+
+		// from now on all reads go through the codec and all writes through the outbox, both throttled
+		if (utp != null) {
+			throttle.attach(utp, utp, ThrottledChannel.UTP_OVERHEAD, UtpSocket.MAX_PAYLOAD);
+		}
+		else {
+			throttle.attach(channel, channel, ThrottledChannel.TCP_OVERHEAD, ThrottledChannel.TCP_SEGMENT);
+		}
+		state = CONNECTED;
+		lastWriteTime = System.currentTimeMillis();
+		sendAvailability();
+		if (extensionProtocol) {
+			sendMessage(new Message.Extended(0, generateExtensionHandshake()));
+		}
+		scheduleWrite();	// anything queued during the handshake goes out now
+		finishAttempt();
+		if (!isInbound) {
+			client.peerManager.peerConnected(this);
+		}
+	}
+
+	/*
+	 * Hands this peer's connection slot back to the client, once per connection attempt.
+	 */
+	private void finishAttempt() throws IOException
+	{
+		synchronized (this) {
+			if (!isAttemptPending) {
+				return;
+			}
+			isAttemptPending = false;
+		}
+		client.connectAttemptFinished();
+	}
+
+	/**
+	 * Times a connection to the peer and the sending and receiving of a ping in nanoseconds.
+	 * @return the round trip time to send and receive a ping, in nanoseconds
+	 * @throws IOException
+	 */
+	public long pingPeer() throws IOException
+	{
+		long startTime = System.nanoTime();
+		connect();
+		// create data streams to peer
+		DataOutputStream dos = new DataOutputStream(out);
+		DataInputStream dis = new DataInputStream(in);
+
+		if (dis == null || dos == null) {
+			System.err.println("Error: Data streams cannot be created.");
+			disconnect();
+			return -1;
+		}
+		// send a small byte to ping
+		dos.write(0);
+		dos.flush();
+
+		int n = dis.read();
+		long endTime = System.nanoTime();
+		disconnect();
+		
+		return endTime - startTime;
+	}
+
+	/**
+	 * @see app.PeerMessageHandler#onKeepAlive()
+	 */
+	public void onKeepAlive()
+	{	return;	}
+
+	/**
+	 * Peer is choking local host.
+	 * @see app.PeerMessageHandler#onChoke()
+	 */
+	public void onChoke()
+	{
+		isChokedByPeer = true;
+		rateSampleStart = 0L;	// the time spent choked doesn't count against the peer's rate
+		rateSampleBytes = 0L;
+		if (!fastExtension) {	// a choke silently drops every pending request; send them again later
+			Message.Request request;
+			while ((request = outstandingRequests.pollLast()) != null)
+			{
+				retryRequests.addFirst(request);
+			}
+			requestTime = 0L;
+		}
+		// with the Fast Extension the peer rejects each request it drops
+	}
+
+	/**
+	 * Peer unchoked local host; start requesting if there is something we want.
+	 * @see app.PeerMessageHandler#onUnchoke()
+	 */
+	public void onUnchoke() throws IOException
+	{
+		isChokedByPeer = false;
+		if (isInterestedInPeer == true) {
+			fillRequestWindow();
+		}
+	}
+
+	/**
+	 * Peer determined that it wants some piece.
+	 * @see app.PeerMessageHandler#onInterested()
+	 */
+	public void onInterested()
+	{
+		isPeerInterested = true;
+		unchoke();
+	}
+
+	/**
+	 * Peer determined that it cannot gain any new pieces.
+	 * @see app.PeerMessageHandler#onUninterested()
+	 */
+	public void onUninterested()
+	{
+		isPeerInterested = false;
+	}
+
+	/**
+	 * Peer confirming the verification of a piece.
+	 * @see app.PeerMessageHandler#onHave(int)
+	 */
+	public void onHave(int index) throws IOException
+	{
+		if (index < 0 || index >= bitfield.length) {
+			System.err.println("Error: " + this + " sent HAVE for invalid piece " + index + ".");
+			return;
+		}
+		// get the piece index from the message and mark that bitfield's index as true
+		if (client.picker.peerHas(this, index)) {
+			want(index);
+		}
+		if (updateInterest() && !isChokedByPeer) {	// the peer had nothing for us until now
+			fillRequestWindow();
+		}
+	}
+
+	/**
+	 * Peer provided a bitfield of the pieces it has.
+	 * @see app.PeerMessageHandler#onBitfield(java.nio.ByteBuffer)
+	 */
+	public void onBitfield(ByteBuffer bits) throws IOException
+	{
+		boolean[] pieces = new boolean[numPieces];
+		if (!Utils.bitfieldToBooleanArray(bits, pieces)) {
+			System.err.println("Error: " + this + " sent a bitfield that is too short.");
+			return;
+		}
+		replaceBitfield(pieces);
+	}
+
+	/**
+	 * Peer requested a block; serve it from the output file if the peer is unchoked.
+	 * @see app.PeerMessageHandler#onRequest(int, int, int)
+	 */
+	public void onRequest(final int index, final int offset, final int length) throws IOException
+	{
+		if (index < 0 || index >= numPieces || !client.localHostBitfield.get(index)
+				|| offset < 0 || length <= 0 || length > MAX_REQUEST_LENGTH
+				|| offset + length > client.getPieceLength(index)) {
+			System.err.println("Error: " + this + " requested an invalid block " + index + ":" + offset + ":" + length + ".");
+			rejectRequest(index, offset, length);
+			return;
+		}
+		if (isChokingPeer && !allowedFastOut[index]) {	// requests from choked peers are discarded
+			rejectRequest(index, offset, length);
+			return;
+		}
+		final ByteBuffer block = client.pool.acquireBlock(length);
+		try {
+			// read on a disk reader, so that a slow disk never holds up the peers sharing this thread
+			client.diskReaders.execute(new Runnable() {
+				public void run()
+				{
+					serveBlock(index, offset, block);
+				}
+			});
+		}
+		catch (RejectedExecutionException ree) {	// the client is closing
+			client.pool.releaseBlock(block);
+		}
+	}
+
+	/*
+	 * Reads a requested block from the output file on a disk reader thread and queues it
+	 * for the peer, unless the peer disconnected in the meantime.
+	 */
+	private void serveBlock(int index, int offset, ByteBuffer block)
+	{
+		try {
+			client.readBlock(index, offset, block);
+			block.flip();
+			if (state == CONNECTED) {
+				sendMessage(new Message.Piece(index, offset, block));	// block is counted and released once it is written
+				return;
+			}
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+		client.pool.releaseBlock(block);
+	}
+
+	/**
+	 * Peer withdrew a request; the block is dropped if it hasn't started going out yet. A
+	 * block still being read from the disk goes out anyway, as a peer must expect.
+	 * With the Fast Extension a dropped request is rejected, as the extension requires.
+	 * @see app.PeerMessageHandler#onCancel(int, int, int)
+	 */
+	public void onCancel(int index, int offset, int length) throws IOException
+	{
+		Message.Piece p = outbox.removePiece(index, offset, length);
+		if (p == null) {	// already sent, or never requested
+			return;
+		}
+		client.pool.releaseBlock(p.block);
+		rejectRequest(index, offset, length);
+	}
+
+	/**
+	 * Peer is about to send a block; its payload is read straight into the region of its
+	 * piece in the client's PieceAssembler, at the block's offset.
+	 * @see app.PeerMessageHandler#onPieceHeader(int, int, int)
+	 */
+	public ByteBuffer onPieceHeader(int index, int offset, int length) throws IOException
+	{
+		blockIndex = -1;
+		if (index < 0 || index >= numPieces) {
+			System.err.println("Error: " + this + " sent a block of invalid piece " + index + ".");
+			return null;
+		}
+		cancelRequests();
+		// the block is skipped if the piece is verified, or the block is in or on its way from another peer
+		ByteBuffer region = client.assembler.reserve(this, index, offset, length);
+		if (region == null) {
+			client.wastedBytes.addAndGet(length);
+			return null;
+		}
+		if (region != pieceRegion) {	// the view is reused for every block of the same region
+			pieceRegion = region;
+			pieceView = region.duplicate();
+		}
+		blockIndex = index;
+		blockOffset = offset;
+		pieceView.clear();
+		pieceView.limit(offset + length);
+		pieceView.position(offset);
+		return pieceView;
+	}
+
+	/**
+	 * Peer finished sending a block with some index, offset, and payload.
+	 * @see app.PeerMessageHandler#onPieceReceived(int, int, int)
+	 */
+	public void onPieceReceived(int index, int offset, int length) throws IOException
+	{
+		updateRequestWindow(removeRequest(outstandingRequests, index, offset), length);
+		// the peer is answering; the requests still in flight get a new deadline
+		requestTime = outstandingRequests.isEmpty() ? 0L : System.currentTimeMillis();
+		client.blockReceived();
+		if (blockIndex != -1) {
+			bytesDownloaded += length;
+			completeBlock();
+		}
+		if (!client.isDownloading) {	// nothing left to request
+			return;
+		}
+		if (!isChokedByPeer) {
+			// as long as the peer hasn't choked the local host, keep the window full
+			fillRequestWindow();
+		}
+		else if (outstandingRequests.isEmpty()) {	// still choked; keep going on allowed fast pieces
+			startAllowedFastPiece();
+		}
+	}
+
+	/**
+	 * Peer suggested a piece; it is preferred the next time a new piece is started.
+	 * @see app.PeerMessageHandler#onSuggest(int)
+	 */
+	public void onSuggest(int index)
+	{
+		if (!fastExtension || index < 0 || index >= numPieces) {
+			return;
+		}
+		suggestedPieces.add(index);
+	}
+
+	/**
+	 * Peer has every piece; replaces a full bitfield.
+	 * @see app.PeerMessageHandler#onHaveAll()
+	 */
+	public void onHaveAll() throws IOException
+	{
+		if (!fastExtension) {
+			System.err.println("Error: " + this + " sent HAVE ALL without the Fast Extension.");
+			return;
+		}
+		boolean[] pieces = new boolean[numPieces];
+		Arrays.fill(pieces, true);
+		replaceBitfield(pieces);
+	}
+
+	/**
+	 * Peer has no pieces; replaces an empty bitfield.
+	 * @see app.PeerMessageHandler#onHaveNone()
+	 */
+	public void onHaveNone() throws IOException
+	{
+		if (!fastExtension) {
+			System.err.println("Error: " + this + " sent HAVE NONE without the Fast Extension.");
+			return;
+		}
+		replaceBitfield(new boolean[numPieces]);
+	}
+
+	/**
+	 * Peer will not answer one of our requests; it is requested again later.
+	 * @see app.PeerMessageHandler#onReject(int, int, int)
+	 */
+	public void onReject(int index, int offset, int length)
+	{
+		if (!fastExtension) {
+			System.err.println("Error: " + this + " sent REJECT without the Fast Extension.");
+			return;
+		}
+		Message.Request request = removeRequest(outstandingRequests, index, offset);
+		if (request != null) {
+			retryRequests.add(request);
+		}
+		if (outstandingRequests.isEmpty()) {
+			requestTime = 0L;
+		}
+	}
+
+	/**
+	 * Peer allows a piece to be requested while it chokes the local host.
+	 * @see app.PeerMessageHandler#onAllowedFast(int)
+	 */
+	public void onAllowedFast(int index) throws IOException
+	{
+		if (!fastExtension || index < 0 || index >= numPieces) {
+			return;
+		}
+		allowedFastIn[index] = true;
+		if (isChokedByPeer && outstandingRequests.isEmpty()) {
+			startAllowedFastPiece();
+		}
+	}
+
+	/**
+	 * Peer sent an extended message. Only the extension handshake is understood, from which
+	 * the number of requests the peer queues caps the request window.
+	 * @see app.PeerMessageHandler#onExtended(int, java.nio.ByteBuffer)
+	 */
+	public void onExtended(int extendedId, ByteBuffer payload)
+	{
+		if (!extensionProtocol) {
+			System.err.println("Error: " + this + " sent EXTENDED without the Extension Protocol.");
+			return;
+		}
+		if (extendedId != 0) {	// the local host registers no extension messages
+			return;
+		}
+		byte[] dictionary = new byte[payload.remaining()];
+		payload.get(dictionary);
+		try {
+			Object decoded = Bencoder2.decode(dictionary);
+			if (!(decoded instanceof Map)) {
+				return;
+			}
+			Object reqq = ((Map<?, ?>) decoded).get(KEY_REQQ);
+			if (reqq instanceof Integer && (Integer) reqq > 0) {
+				peerRequestLimit = (Integer) reqq;
+				requestWindow = Math.max(1, Math.min(requestWindow, peerRequestLimit));
+			}
+		}
+		catch (BencodingException be) {
+			System.err.println("Error: " + this + " sent a malformed extension handshake.");
+		}
+	}
+
+	/*
+	 * While choked, starts downloading a piece from the allowed fast set that the peer has
+	 * and local host does not, unless a piece is already partly requested.
+	 */
+	private void startAllowedFastPiece() throws IOException
+	{
+		if (!retryRequests.isEmpty() || currentByteOffset != 0) {	// finish what was started first
+			fillRequestWindow();
+			return;
+		}
+		for (int i = 0; i < numPieces; i++)
+		{
+			if (allowedFastIn[i] && bitfield[i] && client.isPieceMissing(i)) {
+				currentPieceIndex = i;
+				client.picker.claim(this, i);
+				fillRequestWindow();
+				return;
+			}
+		}
 	}
 
-	/**
-	 * Initializes the thread running the Peer object.
-	 * 
-	 * @return true if the connection to the peer and the verification of the handshake was successful, false otherwise
+	/*
+	 * Tells the peer that a request will not be answered. Without the Fast Extension the
+	 * request is silently dropped, as the base protocol expects.
 	 */
-	public boolean init()
+	private void rejectRequest(int index, int offset, int length) throws IOException
 	{
-		try {
-			isRunning = true;
-			//			currentTime = System.currentTimeMillis();
-			connect();
-
-			// create data streams to peer
-			DataOutputStream dos = new DataOutputStream(out);
-			DataInputStream dis = new DataInputStream(in);
+		if (fastExtension) {
+			sendMessage(new Message.Reject(index, offset, length));
+		}
+	}
 
-			if (dis == null || dos == null) {
-				System.err.println("Error: Data streams cannot be created.");
-				disconnect();
-				return false;
+	/*
+	 * Removes and returns the request for the given block from a queue, or null if absent.
+	 */
+	private static Message.Request removeRequest(ArrayDeque<Message.Request> queue, int index, int offset)
+	{
+		for (Iterator<Message.Request> it = queue.iterator(); it.hasNext();)
+		{
+			Message.Request request = it.next();
+			if (request.index == index && request.offset == offset) {
+				it.remove();
+				return request;
 			}
-			// try to send a handshake message
-			dos.write(Peer.generateHandshake(TorrentClient.peerID, client.info.info_hash.array()));
-			dos.flush();
+		}
+		return null;
+	}
 
-			byte[] peerResponse = new byte[68];
-			// Set a 10 second timeout to get the handshake reply
-			sock.setSoTimeout(10000);
-			dis.readFully(peerResponse);
-			// Now set the timeout to the default 2 minute interval
-			sock.setSoTimeout(120000);
+	/*
+	 * Sends the local host's pieces right after the handshake. With the Fast Extension an
+	 * empty or complete bitfield is replaced by HAVE NONE or HAVE ALL, and the peer is told
+	 * which pieces it may download before it is unchoked.
+	 */
+	private void sendAvailability() throws IOException
+	{
+		boolean haveAll = client.localHostBitfield.isComplete();
+		boolean haveNone = client.localHostBitfield.cardinality() == 0;
+		if (fastExtension && haveAll) {
+			sendMessage(Message.HAVE_ALL);
+		}
+		else if (fastExtension && haveNone) {
+			sendMessage(Message.HAVE_NONE);
+		}
+		else if (!haveNone) {	// a bitfield is optional when there is nothing to announce
+			sendMessage(new Message.Bitfield(client.localHostBitfield.toBitfield()));
+		}
 
-			// verify the handshake received by the epeer
-			if (!checkHandshake(client.info.info_hash.array(), peerResponse)) {
-				return false;
+		InetAddress remote = (utp != null) ? utp.getRemoteAddress().getAddress() : channel.socket().getInetAddress();
+		byte[] address = remote.getAddress();
+		if (fastExtension && address.length == 4 && numPieces > ALLOWED_FAST_SET_SIZE) {
+			for (int index : Utils.generateAllowedFastSet(ALLOWED_FAST_SET_SIZE, address,
+					client.info.info_hash.array(), numPieces))
+			{
+				allowedFastOut[index] = true;
+				if (client.localHostBitfield.get(index)) {
+					sendMessage(new Message.AllowedFast(index));
+				}
 			}
+		}	// end of if (fastExtension && ...)
+	}
 
-			System.out.println("Handshake from peer: " + new String(peerResponse, "UTF-8"));
-
-			if (client.currentUnchoked < TorrentClient.MAX_UNCHOKED) {	// torrent client can take another peer
-				isChokingPeer = false;
-				client.currentUnchoked++;
+	/*
+	 * Replaces the peer's bitfield, as announced by BITFIELD, HAVE ALL or HAVE NONE, and
+	 * recounts the pieces wanted from the peer. This is the only time every piece is looked at.
+	 */
+	private void replaceBitfield(boolean[] pieces) throws IOException
+	{
+		client.picker.peerBitfield(this, pieces);
+		for (int i = 0; i < numPieces; i++)
+		{
+			if (pieces[i]) {
+				want(i);
 			}
-			else {	// client can't take another peer at this time
-				isChokingPeer = true;
+			else {
+				wanted.clear(i);
 			}
+		}
+		if (updateInterest() && !isChokedByPeer) {
+			fillRequestWindow();
+		}
+	}
 
-			// Determine if the client can pick up from the last verified index
-			currentPieceIndex = getResumeIndex();
+	/*
+	 * Counts a piece the peer has as wanted, if the local host is missing it. The local bit
+	 * is tested again after the piece is counted: if the piece was verified in between, the
+	 * HAVE broadcast may already have passed this peer, so the count is undone here.
+	 */
+	private void want(int index)
+	{
+		if (!client.localHostBitfield.get(index) && wanted.set(index) && client.localHostBitfield.get(index)) {
+			wanted.clear(index);
+		}
+	}
 
-			start();
+	/*
+	 * Sends INTERESTED when the peer gets a piece that the local host wants, and UNINTERESTED
+	 * once the local host has every piece the peer has. Only the number of wanted pieces is
+	 * looked at, never the bitfields. Returns whether the local host just became interested.
+	 */
+	private boolean updateInterest() throws IOException
+	{
+		synchronized (wanted) {	// called from the event loop and from the HaveBroadcaster
+			boolean interested = wanted.cardinality() > 0;
+			if (interested == isInterestedInPeer) {
+				return false;
+			}
+			isInterestedInPeer = interested;
+			sendMessage(interested ? Message.INTERESTED : Message.UNINTERESTED);
+			return interested;
+		}
+	}
 
-			return true;
+	/*
+	 * Sends requests until as many are in flight as the request window allows, so that the
+	 * peer always has the next blocks queued while earlier ones are still on their way.
+	 */
+	private void fillRequestWindow() throws IOException
+	{
+		while (outstandingRequests.size() < requestWindow)
+		{
+			if (!requestNextBlock()) {	// nothing more can be requested right now
+				break;
+			}
 		}
-		catch (Exception e)
-		{	e.printStackTrace();	}
-		return false;
 	}
 
-	/**
-	 * Times a connection to the peer and the sending and receiving of a ping in nanoseconds.
-	 * @return the round trip time to send and receive a ping, in nanoseconds
-	 * @throws IOException
+	/*
+	 * Sends the next request to the peer, if there is a block left to request.
+	 * Returns whether a request was sent.
 	 */
-	public long pingPeer() throws IOException
+	private boolean requestNextBlock() throws IOException
 	{
-		long startTime = System.nanoTime();
-		connect();
-		// create data streams to peer
-		DataOutputStream dos = new DataOutputStream(out);
-		DataInputStream dis = new DataInputStream(in);
+		cancelRequests();
+		// requests that were rejected or dropped go out again before any new block, unless another peer delivered it
+		Message.Request request = retryRequests.poll();
+		while (request != null && !client.assembler.isBlockNeeded(this, request.index, request.offset, false))
+		{
+			request = retryRequests.poll();
+		}
+		if (request == null) {
+			request = getNextRequest();
+		}
+		if (request == null) {
+			return false;
+		}
+		if (isChokedByPeer && !allowedFastIn[request.index]) {	// can't be sent until unchoked
+			retryRequests.addFirst(request);
+			return false;
+		}
+		request.sentTime = System.nanoTime();
+		if (outstandingRequests.isEmpty()) {
+			requestTime = System.currentTimeMillis();
+		}
+		outstandingRequests.add(request);
+		client.assembler.request(this, request.index, request.offset);
+		sendMessage(request);
+		return true;
+	}
 
-		if (dis == null || dos == null) {
-			System.err.println("Error: Data streams cannot be created.");
-			disconnect();
-			return -1;
+	/*
+	 * Measures the peer's link with a block that just arrived, and resizes the request window
+	 * to cover REQUEST_WINDOW_GAIN times the bandwidth-delay product: the arrival rate times
+	 * the lowest time a block has taken to arrive once requested. Like TCP Vegas, the lowest
+	 * latency stands for the link without any of the queueing that a full window causes.
+	 * While the window is what limits the rate, each resize doubles it; once the link is the
+	 * limit, it settles, and it shrinks again if the rate drops.
+	 */
+	private void updateRequestWindow(Message.Request request, int length)
+	{
+		long now = System.nanoTime();
+		if (request != null) {
+			baseLatency = Math.min(baseLatency, now - request.sentTime);
 		}
-		// send a small byte to ping
-		dos.write(0);
-		dos.flush();
+		rateSampleBytes += length;
+		if (rateSampleStart == 0L) {
+			rateSampleStart = now;
+			return;
+		}
+		long elapsed = now - rateSampleStart;
+		if (elapsed < RATE_SAMPLE_MILLIS * 1000000L || baseLatency == Long.MAX_VALUE) {
+			return;
+		}
+		double rate = rateSampleBytes * 1000000000.0 / elapsed;
+		arrivalRate = (arrivalRate == 0) ? rate : (arrivalRate + rate) / 2;
+		rateSampleStart = now;
+		rateSampleBytes = 0L;
 
-		int n = dis.read();
-		long endTime = System.nanoTime();
-		disconnect();
-		
-		return endTime - startTime;
+		double bandwidthDelay = arrivalRate * baseLatency / 1000000000.0;
+		int target = (int) Math.ceil(REQUEST_WINDOW_GAIN * bandwidthDelay / PieceAssembler.BLOCK_SIZE);
+		target = Math.max(MIN_REQUEST_WINDOW, Math.min(target, requestWindow * 2));
+		requestWindow = Math.min(target, Math.min(MAX_REQUEST_WINDOW, peerRequestLimit));
 	}
 
 	/**
-	 * @see java.lang.Thread#run()
+	 * Returns whether the peer is slow: its measured download rate, or the lack of one, would
+	 * take it longer than the picker's piece time to download a whole piece. Slow peers share
+	 * their pieces with others rather than hold them to themselves.
+	 * @return true if the peer is slow, false otherwise
 	 */
-	public void run()
+	public boolean isSlow()
 	{
-		// run for as long as the socket is connecting and running
-		while (sock != null && !sock.isClosed() && isRunning)
-		{
-			Message incMsg = null;
-			try {
-				incMsg = Message.decode(in);
-			}
-			catch (IOException ioe) {
-				ioe.printStackTrace();
-				break;
-			}
-			if (incMsg != null) {	// received some message
-				client.receiveMessage(new PeerMessage(this, incMsg));
-			}
-		}	// end of while (sock != null && !sock.isClosed() && isRunning)
+		return arrivalRate * client.picker.pieceTimeMillis < client.info.piece_length * 1000.0;
+	}
+
+	/**
+	 * Returns the number of requests currently kept in flight to the peer.
+	 * @return the size of the request window
+	 */
+	public int getRequestWindow()
+	{
+		return requestWindow;
 	}
-	
-	
+
 	public Message.Request getNextRequest()
 	{
-		int piece_length = client.info.piece_length;
-		int file_length = client.info.file_length;
-		int blockSize = 16384;
-		int numPieces = client.info.piece_hashes.length;
+		int piece_length;
 		
-		if (currentPieceIndex == -1) {
-			if ((currentPieceIndex = client.getNextPieceIndex()) == -1) {
-				System.err.println("Failed to get the next piece. Possibly completed download.");
-				return null;
+		while (true)
+		{
+			if (currentPieceIndex == -1) {
+				currentPieceIndex = nextSuggestedPiece();
 			}
-		}
-		if (currentPieceIndex == (numPieces - 1)) {
-			piece_length = file_length % client.info.piece_length;
+			if (currentPieceIndex == -1) {
+				if ((currentPieceIndex = client.picker.pick(this)) == -1) {	// nothing to pick right now
+					return null;
+				}
+			}
+			// the last piece is shorter, unless the file length is a multiple of the piece length
+			piece_length = client.getPieceLength(currentPieceIndex);
+			// blocks that other peers delivered, or are delivering, are not requested again
+			boolean isShared = sharing.get(currentPieceIndex);
+			while (currentByteOffset < piece_length && !client.assembler.isBlockNeeded(this, currentPieceIndex, currentByteOffset, isShared))
+			{
+				currentByteOffset += PieceAssembler.BLOCK_SIZE;
+			}
+			if (currentByteOffset < piece_length) {
+				break;
+			}
+			currentPieceIndex = -1;	// nothing left to request of this piece
+			currentByteOffset = 0;
 		}
 		
-		if ((currentByteOffset + blockSize) > piece_length) {
-			blockSize = piece_length % blockSize;
-		}
+		// the last block of a piece is shorter, unless the piece length is a multiple of the block size
+		int length = Math.min(PieceAssembler.BLOCK_SIZE, piece_length - currentByteOffset);
 		
-		Message.Request request = new Message.Request(currentPieceIndex, currentByteOffset, blockSize);
+		Message.Request request = new Message.Request(currentPieceIndex, currentByteOffset, length);
 		
-		if ((currentByteOffset + blockSize) >= piece_length) {
+		if ((currentByteOffset + length) >= piece_length) {
 			currentPieceIndex = -1;
 			currentByteOffset = 0;
 		}
 		else {
-			currentByteOffset += blockSize;
+			currentByteOffset += length;
 		}
 		
 		return request;
 	}
 
 
-//	/**
-//	 * Calculates the piece index, byte offset, and request size of the next Request message.
-//	 * Afterwards it updates the internal counters tracking piece index and byte offset.
-//	 * This method uses the "in-sequence" procedure of retrieving pieces.
-//	 * 
-//	 * @return a Request Message object with the next block of data to be requested
-//	 */
-//	public Message.Request getNextRequest()
-//	{
-//		// check if last piece is being requested, the one that's smaller than the rest
-//		// additionally, check if the piece_length has been modified (avoid second modification)
-//		if (currentPieceIndex == (numPieces - 1) && piece_length == 32768) {
-//			System.out.println("File length: " + file_length);
-//			System.out.println("Current piece length: " + piece_length);
-//			piece_length = file_length % piece_length;
-//			System.out.println("Last piece length is " + piece_length);
-//		}
-//		// check if requesting a full block will exceed the remainder of a piece
-//		if ((currentByteOffset + blockSize) > piece_length) {
-//			System.out.println("Current byte offset: " + currentByteOffset);
-//			System.out.println("Current block size: " + blockSize);
-//			blockSize = piece_length % blockSize;
-//			System.out.println("New block size: " + blockSize);
-//		}
-//		// create a new Request message with the calculated piece index, byte offset, and block size
-//		Message.Request request = new Message.Request(currentPieceIndex, currentByteOffset, blockSize);
-//
-//		// determine if the recent Request message will request the last block of a piece
-//		if ((currentByteOffset + blockSize) >= piece_length) {
-//			currentPieceIndex++;
-//			currentByteOffset = 0;
-//		}
-//		else {	// otherwise increment the offset by the amount requested
-//			currentByteOffset += blockSize;
-//		}
-//
-//		return request;
-//	}
-
-	/**
-	 * Determines whether the current ByteArrayOutputStream has a complete piece.
-	 * @return true if all blocks compose the piece, false otherwise
-	 */
-	private boolean isPieceIncomplete()
-	{
-		// TODO if the block size results in >2 blocks, this method will cause a runtime bug
-		if (currentByteOffset != 0) {
-			return true;
+	/**
+	 * Withdraws the requests for a block, or for a whole piece, that another peer delivered
+	 * first. The requests are cancelled on the thread that handles the peer's messages, right
+	 * away on an event loop and when the next block arrives in the blocking mode.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece, or -1 for the whole piece
+	 */
+	public void cancelRequests(int index, int offset)
+	{
+		cancelledBlocks.add(new long[] {index, offset});
+		if (loop != null) {
+			loop.execute(this, new Runnable() {
+				public void run()
+				{
+					try {
+						if (state == CONNECTED && cancelRequests() && !isChokedByPeer && client.isDownloading) {
+							fillRequestWindow();
+						}
+					}
+					catch (IOException ioe)
+					{	ioe.printStackTrace();	}
+				}
+			});
 		}
-		return false;
+	}
+
+	/*
+	 * Sends CANCEL for every request of the blocks that other peers delivered first, and
+	 * stops downloading the pieces that were completed. Returns whether any request was
+	 * cancelled.
+	 */
+	private boolean cancelRequests() throws IOException
+	{
+		boolean cancelled = false;
+		long[] block;
+		while ((block = cancelledBlocks.poll()) != null)
+		{
+			int index = (int) block[0];
+			int offset = (int) block[1];
+			for (Iterator<Message.Request> it = outstandingRequests.iterator(); it.hasNext();)
+			{
+				Message.Request request = it.next();
+				if (request.index == index && (offset == -1 || request.offset == offset)) {
+					it.remove();
+					sendMessage(new Message.Cancel(request.index, request.offset, request.msgLength));
+					client.cancelsSent.incrementAndGet();
+					cancelled = true;
+				}
+			}
+			for (Iterator<Message.Request> it = retryRequests.iterator(); it.hasNext();)
+			{
+				Message.Request request = it.next();
+				if (request.index == index && (offset == -1 || request.offset == offset)) {
+					it.remove();
+				}
+			}
+			if (offset == -1) {	// the piece is complete
+				if (currentPieceIndex == index) {
+					currentPieceIndex = -1;
+					currentByteOffset = 0;
+				}
+				client.picker.release(this, index);
+			}
+		}
+		if (cancelled && outstandingRequests.isEmpty()) {
+			requestTime = 0L;
+		}
+		return cancelled;
+	}
+
+	/*
+	 * Returns the most recently suggested piece that the peer has and local host doesn't, or -1.
+	 */
+	private int nextSuggestedPiece()
+	{
+		Integer index;
+		while ((index = suggestedPieces.pollLast()) != null)
+		{
+			if (bitfield[index] && client.isPieceMissing(index)) {
+				client.picker.claim(this, index);
+				return index;
+			}
+		}
+		return -1;
 	}
 
 	/**
-	 * Writes a block of a piece into a ByteBuffer, and if the ByteBuffer is a complete piece, verify
-	 * its hash to the hash in the metainfo. If the piece is validated, it is written into the output
-	 * file. Whether or not the piece was validated, it is discarded for either the next piece or the
-	 * same piece again.
+	 * Marks the block just received as in, and if it completed its piece, hands the piece's
+	 * region to the client's PieceVerifier. The piece's hash is checked and the piece written
+	 * into the output file on the worker of its shard, which returns the region to the pool
+	 * afterwards, so this peer goes on with its next piece right away. Once as many of this
+	 * peer's pieces are waiting as the client allows, reading from the peer pauses until the
+	 * verifier catches up. In endgame, the other peers downloading the piece cancel their
+	 * requests for the block, or for the whole piece once it is complete.
 	 * 
-	 * @param pieceMsg
-	 * @param hashes
-	 * @param client
-	 * @return
+	 * @return true if the block completed a piece that was handed off, false otherwise
 	 */
-	public boolean appendToPiece(Message.Piece pieceMsg, ByteBuffer[] hashes, TorrentClient client)
+	public boolean completeBlock()
 	{
-		// check if the message's piece index is the final piece
-		int currentPieceLength;
-		if (pieceMsg.index == (client.info.piece_hashes.length - 1)) {
-			currentPieceLength = client.info.file_length % client.info.piece_length;
-		}
-		else {	// is some piece whose size matches the piece length specified in the torrent info
-			currentPieceLength = client.info.piece_length;
+		int index = blockIndex;
+		int offset = blockOffset;
+		blockIndex = -1;
+		PieceAssembler.Partial done = client.assembler.complete(this, index, offset);
+		if (done == null) {
+			if (client.picker.getCopies(index) > 1) {	// endgame; the other requests for the block are no longer needed
+				client.cancelRequests(this, index, offset);
+			}
+			return false;
 		}
 
-		if (piece == null) {	// piece does not yet exist on local host
-			piece = new ByteArrayOutputStream();
+		// the region belongs to the verifier now; counted first, since the check may finish right away
+		pendingPieces.incrementAndGet();
+		if (!client.verifier.submit(this, done.isShared ? null : done.source, index, done.region)) {
+			pendingPieces.decrementAndGet();
 		}
-		// now write the data contained in the message into the ByteBuffer
-		try {
-			//piece.write(pieceMsg.block, pieceMsg.offset, pieceMsg.block.length);
-			piece.write(pieceMsg.block, 0, pieceMsg.block.length);
+		client.assembler.remove(index);
+		if (client.picker.release(this, index) > 0) {	// the other peers stop downloading it
+			client.cancelRequests(this, index, -1);
 		}
-		catch (Exception e)
-		{	e.printStackTrace();	}
+		if (pendingPieces.get() >= client.maxPendingPieces) {
+			pauseReading();
+		}
+		return true;
+	}
 
-		// Have not downloaded any pieces yet
-		//		if (currentPieceIndex == -1) {
-		//			totalBytesWritten = 0;
-		//		client.peerBitfield[previousIndex] = false;
+	/**
+	 * Notes that one of this peer's pieces has been checked by the verifier, and resumes
+	 * reading from the peer if it was paused. Called on the verifier's worker thread.
+	 */
+	void pieceVerified()
+	{
+		if (pendingPieces.decrementAndGet() < client.maxPendingPieces) {
+			resumeReading();
+		}
+	}
 
-		if (currentPieceIndex != -1) {	// if it equals -1, that means it's not working on a certain piece
-			System.out.println("Piece not yet complete.");
-			return false;
+	/**
+	 * Returns the number of this peer's pieces waiting for the verifier.
+	 * @return the depth of the peer's queue of pieces
+	 */
+	public int getPendingPieces()
+	{
+		return pendingPieces.get();
+	}
+
+	/**
+	 * Returns whether reading from the peer is paused until the verifier catches up.
+	 * @return true if the peer's socket is not being read, false otherwise
+	 */
+	public boolean isReadPaused()
+	{
+		return isReadPaused.get();
+	}
+
+	/*
+	 * Stops reading from the peer. Called on the thread that reads, from inside the codec,
+	 * which then stops dispatching frames. An event loop stops watching the channel for
+	 * reads, and a reader thread waits in awaitResume. The bytes the peer keeps sending
+	 * fill the socket's receive buffer, and the shrinking TCP window slows the peer down.
+	 */
+	private void pauseReading()
+	{
+		codec.setPaused(true);
+		isReadPaused.set(true);
+		readPauses++;
+		SelectionKey k = key;
+		if (k != null && k.isValid()) {	// a uTP connection's window closes as its buffer fills instead
+			k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+		}
+		// the verifier may have caught up before the flag was set, and then won't resume
+		if (pendingPieces.get() < client.maxPendingPieces) {
+			resumeReading();
 		}
+	}
 
-		try {
-			// check if the client wrote to the file without any problems
-			if (client.updateFile(pieceMsg, hashes[pieceMsg.index], piece.toByteArray())) {
-				totalDownloaded += currentPieceLength;
-				System.out.println(">>Total downloaded: " + totalDownloaded);
-				// update bitfield and discard piece after writing it
-				client.localHostBitfield[pieceMsg.index] = true;
-				piece = null;
-				return true;
-			}
-			else {	// client reported bad piece; discard
-				piece = null;
+	/*
+	 * Reads from the peer again, once. An event loop is handed a task that watches the
+	 * channel again and dispatches the frames held back in the codec; a reader thread
+	 * waiting in awaitResume is woken up.
+	 */
+	private void resumeReading()
+	{
+		if (!isReadPaused.compareAndSet(true, false)) {	// not paused, or resumed already
+			return;
+		}
+		if (reader != null || loop == null) {
+			synchronized (this) {
+				notifyAll();
 			}
+			return;
 		}
-		catch (Exception e) {
-			e.printStackTrace();
-			piece = null;
+		loop.execute(this, new Runnable() {
+			public void run()
+			{
+				SelectionKey k = key;
+				if (state != CONNECTED || (utp == null && (k == null || !k.isValid()))) {
+					return;
+				}
+				codec.setPaused(false);
+				lastReadTime = System.currentTimeMillis();
+				if (k != null && !isReadDeferred.get()) {	// a throttled peer reads again once its timer fires
+					k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+				}
+				readOrClose();
+			}
+		});
+	}
+
+	/*
+	 * Blocks the reader thread while reading is paused, then lets the codec dispatch again.
+	 */
+	private synchronized void awaitResume() throws InterruptedException
+	{
+		while (isReadPaused.get() && state == CONNECTED)
+		{
+			wait();	// woken by resumeReading or disconnect
 		}
-		//		}	// end of if (currentPieceIndex == -1)
-		return false;
+		codec.setPaused(false);
+		lastReadTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Gives up the block being received, so that another peer can deliver it.
+	 */
+	private void abortBlock()
+	{
+		client.assembler.abort(blockIndex, blockOffset);
+		blockIndex = -1;
 	}
 
 	/**
@@ -374,36 +1824,90 @@ public class Peer extends Thread
 	 */
 	public synchronized void connect() throws IOException
 	{
-		sock = new Socket(ip, port);
+		channel = SocketChannel.open(new InetSocketAddress(ip, port));
+		sock = channel.socket();
+		sock.setTcpNoDelay(true);	// every message already goes out in one write
 		in = sock.getInputStream();
 		out = sock.getOutputStream();
 	}
 
 	/**
-	 * Disconnects from a peer and frees the socket and associated streams.
+	 * Disconnects from a peer and frees the socket and associated streams. May be called
+	 * from any thread; the buffers of the connection are released on its event loop.
 	 * 
 	 * @throws IOException
 	 */
 	public synchronized void disconnect() throws IOException
 	{
+		if (state == CLOSED) {
+			return;
+		}
+		if (state == CONNECTED) {
+			throttle.detach();
+		}
+		state = CLOSED;
+		if (idleTimer != null) {
+			client.timers.cancel(idleTimer);
+		}
 		if (!isChokingPeer) {	// peer was receiving information prior to disconnect
-			client.currentUnchoked--;
+			client.currentUnchoked.decrementAndGet();
 		}
 		try {
-			if (sock != null) {
-				keepAliveTask.isRunning = false;
-				keepAliveTask.interrupt();
-				sock.close();
+			if (key != null) {
+				key.cancel();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+			if (utp != null) {
+				utp.close();
+			}
+			if (recordedPeer != -1) {
+				client.recorder.recordClose(recordedPeer);
 			}
 		}
 		catch (IOException ioe)
 		{	ioe.printStackTrace();	}
 		finally {
 			sock = null;
+			channel = null;
+			utp = null;
 			in = null;
 			out = null;
 			isRunning = false;
 		}
+		client.picker.peerGone(this);
+		client.assembler.forget(this);
+		client.peerDisconnected(this);
+		finishAttempt();
+		notifyAll();	// a paused reader thread stops waiting
+		if (reader != null) {	// the reader thread releases them once it stops
+			if (writer != null) {
+				writer.interrupt();
+			}
+		}
+		else if (loop == null || loop.inEventLoop()) {
+			releaseBuffers();
+		}
+		else {	// the loop may still be writing into them
+			loop.execute(this, new Runnable() {
+				public void run()
+				{
+					releaseBuffers();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Returns the piece region and the blocks of queued or partly written pieces to the pool.
+	 */
+	private synchronized void releaseBuffers()
+	{
+		if (blockIndex != -1) {
+			abortBlock();
+		}
+		outbox.releaseAll();
 	}
 
 	/**
@@ -427,8 +1931,10 @@ public class Peer extends Thread
 		// copy the "BitTorrent protocol" byte array right after byte 19 in the handshake message
 		System.arraycopy(BitTorrentProtocolBytes, 0, handshakeMsg, index, BitTorrentProtocolBytes.length);
 		index += BitTorrentProtocolBytes.length;
-		// append the eight 0's
+		// append the eight reserved bytes, advertising the Extension Protocol and the Fast Extension
 		byte[] reserved = new byte[8];
+		reserved[5] |= EXTENSION_PROTOCOL_BIT;
+		reserved[7] |= FAST_EXTENSION_BIT;
 		System.arraycopy(reserved, 0, handshakeMsg, index, reserved.length);
 		index += reserved.length;
 		// append the info hash of the metainfo
@@ -440,6 +1946,41 @@ public class Peer extends Thread
 		return handshakeMsg;
 	}
 
+	/**
+	 * Returns whether a handshake advertises the Extension Protocol (BEP 10).
+	 * 
+	 * @param handshake the 68-byte handshake message
+	 * @return true if the Extension Protocol bit is set in the reserved bytes
+	 */
+	public static boolean supportsExtensionProtocol(byte[] handshake)
+	{
+		return (handshake[25] & EXTENSION_PROTOCOL_BIT) != 0;
+	}
+
+	/**
+	 * Creates the bencoded payload of the extension handshake the local host sends: no
+	 * extension messages, the number of requests queued for each peer, and the client name.
+	 * 
+	 * @return the bencoded dictionary
+	 */
+	public static byte[] generateExtensionHandshake()
+	{
+		// keys of a bencoded dictionary are sorted: m, reqq, v
+		String dictionary = "d1:mde4:reqqi" + MAX_REQUEST_WINDOW + "e1:v4:RUBTe";
+		return dictionary.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns whether a handshake advertises the Fast Extension (BEP 6).
+	 * 
+	 * @param handshake the 68-byte handshake message
+	 * @return true if the Fast Extension bit is set in the reserved bytes
+	 */
+	public static boolean supportsFastExtension(byte[] handshake)
+	{
+		return (handshake[27] & FAST_EXTENSION_BIT) != 0;
+	}
+
 	/**
 	 * Returns the boolean value of comparing the info hash given by the peer to the
 	 * info hash in the metainfo.
@@ -448,7 +1989,7 @@ public class Peer extends Thread
 	 * @param responseMsg
 	 * @return true if the two hashes are equal, false otherwise
 	 */
-	public boolean checkHandshake(byte[] info_hash, byte[] responseMsg)
+	public static boolean checkHandshake(byte[] info_hash, byte[] responseMsg)
 	{
 		// copy the 20-byte info hash contained in the response message at index 28
 		byte[] peer_info_hash = new byte[20];
@@ -458,34 +1999,122 @@ public class Peer extends Thread
 	}
 
 	/**
-	 * Sends the specified Message to the peer.
+	 * Queues the specified Message to be sent to the peer. The message is written to the
+	 * socket by the peer's event loop, so this method never blocks on the network.
 	 * @param msg Message object to be sent
 	 * @throws IOException
 	 */
-	public synchronized void sendMessage(Message msg) throws IOException
+	public void sendMessage(Message msg) throws IOException
 	{
-		if (out == null) {
+		if (channel == null && utp == null) {
 			throw new IOException("Error: " + this + "can't send a message on a null socket.");
 		}
-		System.out.println("Sending " + msg + " to " + this);
-		Message.encode(msg, out);
-		keepAliveTask.interrupt();
+		if (recordedPeer != -1) {	// record before the outbox can release a block
+			client.recorder.recordMessage(recordedPeer, SessionRecorder.OUTBOUND, msg);
+		}
+		outbox.add(msg);
+		scheduleWrite();
+	}
+
+	/*
+	 * Asks the event loop to flush the outbox, unless it has already been asked.
+	 */
+	private void scheduleWrite()
+	{
+		if (loop != null && writeScheduled.compareAndSet(false, true)) {
+			loop.scheduleWrite(this);
+		}
 	}
 
 	/**
-	 * Determines the index at which the client should resume a download.
-	 * @return an int representing the next index with an unverified piece
+	 * Queues HAVE messages for the pieces that the peer's bitfield doesn't already contain,
+	 * all at once so that they go out in one write. Called by the client's HaveBroadcaster.
+	 * @param haves array holding the HAVE messages of verified pieces
+	 * @param count number of messages at the start of the array
+	 * @return the number of messages queued, or -1 if the peer isn't connected
 	 */
-	public int getResumeIndex()
+	public int sendHaves(Message.Have[] haves, int count)
 	{
-		int i;
-		for (i = 0; i < client.localHostBitfield.length; i++)
+		boolean lostInterest = false;
+		for (int i = 0; i < count; i++)
+		{
+			lostInterest |= wanted.clear(haves[i].index);	// no longer wanted from this peer
+		}
+		if (state != CONNECTED) {	// the bitfield sent after the handshake covers these pieces
+			return -1;
+		}
+		if (lostInterest) {
+			try {
+				updateInterest();
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}
+		if (haveBatch.length < count) {
+			haveBatch = new Message[haves.length];
+		}
+		int queued = 0;
+		for (int i = 0; i < count; i++)
 		{
-			if (client.localHostBitfield[i] == false) {	// this piece was not verified
-				return i;
+			if (bitfield[haves[i].index]) {	// peer already has the piece
+				continue;
 			}
+			haveBatch[queued++] = haves[i];
 		}
-		return i;
+		if (queued == 0) {
+			return 0;
+		}
+		try {
+			if (recordedPeer != -1) {
+				for (int i = 0; i < queued; i++)
+				{
+					client.recorder.recordMessage(recordedPeer, SessionRecorder.OUTBOUND, haveBatch[i]);
+				}
+			}
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+		outbox.addAll(haveBatch, queued);
+		Arrays.fill(haveBatch, 0, queued, null);
+		scheduleWrite();
+		return queued;
+	}
+
+	/**
+	 * Determines the index at which the client should resume a download.
+	 * @return an int representing the next index with an unverified piece
+	 */
+	public int getResumeIndex()
+	{
+		int i = client.localHostBitfield.nextClearBit(0);	// the first piece that was not verified
+		return (i == -1) ? client.localHostBitfield.length() : i;
+	}
+
+	/**
+	 * Returns whether the handshake was exchanged and the connection is still open.
+	 * @return true if the peer is connected, false otherwise
+	 */
+	public boolean isConnected()
+	{
+		return state == CONNECTED;
+	}
+
+	/**
+	 * Returns whether the connection or the handshake is still in progress.
+	 * @return true if the peer is connecting, false otherwise
+	 */
+	public boolean isConnecting()
+	{
+		return state == CONNECTING || state == HANDSHAKING;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "Peer " + ip + ":" + port;
 	}
 
 	/**
@@ -493,12 +2122,23 @@ public class Peer extends Thread
 	 */
 	public void choke()
 	{
+		isChokingPeer = true;
 		try {
 			sendMessage(Message.CHOKE);
+			// choking discards every request the peer has pending, so drop the queued pieces;
+			// with the Fast Extension each one is rejected explicitly, except allowed fast pieces
+			for (Message.Piece p : outbox.clearBulk())
+			{
+				if (fastExtension && allowedFastOut[p.index]) {
+					sendMessage(p);
+					continue;
+				}
+				rejectRequest(p.index, p.offset, p.block.remaining());
+				client.pool.releaseBlock(p.block);
+			}
 		}
 		catch (IOException ioe)
 		{	ioe.printStackTrace();	}
-		isChokingPeer = true;
 	}
 
 	/**
@@ -0,0 +1,167 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * PeerAcceptor.java
+ * This class runs a thread that accepts connections from peers on the client's listen
+ * port and hands each of them to the client as an inbound peer. The handshakes of inbound
+ * peers are read and checked by the client's event loops, so the acceptor only ever
+ * blocks in accept and a slow peer never holds up the next one. Several acceptors may
+ * listen on the same port through SO_REUSEPORT, in which case the kernel spreads the
+ * incoming connections across them.
+ */
+public class PeerAcceptor extends Thread
+{
+	/** Number of connections the kernel may queue before they are accepted. */
+	public static final int BACKLOG = 128;
+	/** Number of milliseconds to wait before accepting again after a failure, such as running out of descriptors. */
+	public static final long ACCEPT_RETRY_MILLIS = 100;
+
+	/** Determines if the thread is running or not. */
+	volatile boolean isRunning = true;
+
+	/** Number of connections handed to the client. */
+	long accepted = 0L;
+	/** Number of connections closed because the client had no room for them. */
+	long rejected = 0L;
+
+	// TorrentClient that accepted peers are handed to
+	private final TorrentClient client;
+	// Channel listening for connections
+	private final ServerSocketChannel server;
+	// True if the channel was bound with SO_REUSEPORT
+	private boolean isReusingPort = false;
+
+	/**
+	 * Constructor for the PeerAcceptor class. Binds the listen socket right away.
+	 * @param client the TorrentClient that accepted peers are handed to
+	 * @param port the port to listen on
+	 * @param reusePort true to bind with SO_REUSEPORT so that other acceptors can share the port
+	 * @param name name of the thread
+	 * @throws IOException if the port cannot be bound
+	 */
+	public PeerAcceptor(TorrentClient client, int port, boolean reusePort, String name) throws IOException
+	{
+		super(name);
+		this.client = client;
+		setDaemon(true);
+		server = ServerSocketChannel.open();
+		try {
+			SocketOption<Boolean> option = reusePort ? getReusePortOption() : null;
+			if (option != null && server.supportedOptions().contains(option)) {
+				server.setOption(option, Boolean.TRUE);
+				isReusingPort = true;
+			}
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(port), BACKLOG);
+		}
+		catch (IOException ioe) {
+			server.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Returns the port this acceptor listens on.
+	 * @return the local port of the listen socket
+	 */
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns whether the listen socket was bound with SO_REUSEPORT.
+	 * @return true if other acceptors can listen on the same port, false otherwise
+	 */
+	public boolean isReusingPort()
+	{
+		return isReusingPort;
+	}
+
+	/**
+	 * Stops accepting connections and closes the listen socket.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		try {
+			server.close();	// wakes the thread from accept
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run()
+	{
+		while (isRunning)
+		{
+			SocketChannel ch;
+			try {
+				ch = server.accept();
+			}
+			catch (ClosedChannelException cce) {	// shut down
+				break;
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Could not accept a peer on port " + getPort() + ": " + ioe.getMessage());
+				try {
+					Thread.sleep(ACCEPT_RETRY_MILLIS);
+				}
+				catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			try {
+				if (client.acceptPeer(ch)) {
+					accepted++;
+				}
+				else {
+					rejected++;
+				}
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}	// end of while (isRunning)
+	}
+
+	/**
+	 * Returns the SO_REUSEPORT socket option, which was added in Java 9 and is looked up
+	 * reflectively so that the client still runs on Java 8.
+	 * @return the option, or null if this runtime doesn't have it
+	 */
+	@SuppressWarnings("unchecked")
+	public static SocketOption<Boolean> getReusePortOption()
+	{
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		}
+		catch (ReflectiveOperationException roe) {
+			return null;
+		}
+	}
+
+	/**
+	 * @see java.lang.Thread#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "port " + getPort() + ": " + accepted + " accepted, " + rejected + " rejected";
+	}
+
+}
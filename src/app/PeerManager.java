@@ -0,0 +1,362 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * PeerManager.java
+ * This class keeps every peer the client has heard of, whether it is connected or not,
+ * and keeps the client connected to a target number of them. A known peer is a candidate,
+ * connecting, active, backing off after its connection ended, or banned. Connections that
+ * fail or end are retried after a delay that doubles with every consecutive failure, and
+ * peers are scored on the throughput they delivered and on their failures, so that the best
+ * candidates are connected first whenever there is room. Peers that send data which fails
+ * its hash check, or answer for another torrent, are banned for the rest of the session.
+ *
+ * Inbound peers are not managed; their number is capped by the client as they connect.
+ */
+public class PeerManager
+{
+	/** State of a peer that may be connected to. */
+	public static final int CANDIDATE = 0;
+	/** State of a peer that is being connected to, or waits for a connection slot. */
+	public static final int CONNECTING = 1;
+	/** State of a peer that completed its handshake and is still connected. */
+	public static final int ACTIVE = 2;
+	/** State of a peer whose connection ended and that is retried once its delay passes. */
+	public static final int BACKOFF = 3;
+	/** State of a peer that is never connected to again. */
+	public static final int BANNED = 4;
+
+	/** Constant for the default number of outbound connections the manager keeps. */
+	public static final int DEFAULT_TARGET_PEERS = 30;
+	/** Number of milliseconds between two passes promoting candidates. */
+	public static final long MAINTAIN_MILLIS = 1000;
+	/** Number of milliseconds a peer waits before its first retry; doubled for every further failure. */
+	public static final long MIN_BACKOFF_MILLIS = 5000;
+	/** Upper bound on the number of milliseconds a peer waits before it is retried. */
+	public static final long MAX_BACKOFF_MILLIS = 15 * 60 * 1000;
+	/** Number of pieces failing their hash check after which a peer is banned. */
+	public static final int MAX_HASH_FAILURES = 3;
+	/** Weight of the newest connection in a peer's throughput score. */
+	public static final double SCORE_WEIGHT = 0.5;
+
+	/** Number of outbound connections kept; set from the rubt.peers system property. */
+	int targetPeers = Math.max(1, Integer.getInteger("rubt.peers", DEFAULT_TARGET_PEERS));
+
+	// TorrentClient that the peers are connected to
+	private final TorrentClient client;
+	// Every known peer, keyed by its address
+	private final HashMap<String, PeerRecord> records = new HashMap<String, PeerRecord>();
+	// Number of peers in each state
+	private final int[] counts = new int[5];
+	// Timer of the next pass promoting candidates, or null until the manager starts
+	private TimerWheel.Timeout maintainTimer;
+	// Determines if the manager is running
+	private boolean isRunning = false;
+
+	/**
+	 * Constructor for the PeerManager class.
+	 * @param client the TorrentClient that the peers are connected to
+	 */
+	public PeerManager(TorrentClient client)
+	{
+		this.client = client;
+	}
+
+	/**
+	 * Starts promoting candidates: right away, and then on the client's timer wheel every
+	 * MAINTAIN_MILLIS, which also retries peers whose backoff has passed.
+	 */
+	public void start()
+	{
+		synchronized (this) {
+			isRunning = true;
+			maintainTimer = client.timers.schedule(new Runnable() {
+				public void run()
+				{
+					maintain();
+					synchronized (PeerManager.this) {
+						if (isRunning) {
+							client.timers.reschedule(maintainTimer, MAINTAIN_MILLIS);
+						}
+					}
+				}
+			}, MAINTAIN_MILLIS);
+		}
+		maintain();
+	}
+
+	/**
+	 * Stops promoting candidates. Connected peers are closed by the client.
+	 */
+	public synchronized void shutdown()
+	{
+		isRunning = false;
+		if (maintainTimer != null) {
+			client.timers.cancel(maintainTimer);
+		}
+	}
+
+	/**
+	 * Adds a peer returned by the tracker as a candidate, unless a peer with the same
+	 * address is known already. Candidates are connected on the next pass; the first
+	 * connection uses the given peer and retries use new peers with the same address.
+	 * @param p the unconnected peer
+	 * @return true if the peer was new, false otherwise
+	 */
+	public synchronized boolean addCandidate(Peer p)
+	{
+		String address = addressOf(p);
+		if (records.containsKey(address)) {
+			return false;
+		}
+		PeerRecord r = new PeerRecord(p.ip, p.port, p.peerID);
+		r.unused = p;
+		records.put(address, r);
+		counts[CANDIDATE]++;
+		return true;
+	}
+
+	/**
+	 * Connects to the best candidates and to the peers whose backoff has passed, until the
+	 * client has as many outbound connections as targeted. The connections are started
+	 * without holding the manager's lock.
+	 */
+	public void maintain()
+	{
+		ArrayList<Peer> started = new ArrayList<Peer>();
+		synchronized (this) {
+			if (!isRunning) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			ArrayList<PeerRecord> ready = new ArrayList<PeerRecord>();
+			for (PeerRecord r : records.values())
+			{
+				if (r.state == BACKOFF && now >= r.retryTime) {
+					setState(r, CANDIDATE);
+				}
+				if (r.state == CANDIDATE) {
+					ready.add(r);
+				}
+			}
+			int room = targetPeers - counts[CONNECTING] - counts[ACTIVE];
+			if (room <= 0 || ready.isEmpty()) {
+				return;
+			}
+			Collections.sort(ready, new Comparator<PeerRecord>() {
+				public int compare(PeerRecord a, PeerRecord b)
+				{
+					return Double.compare(b.getScore(), a.getScore());	// best first
+				}
+			});
+			for (int i = 0; i < room && i < ready.size(); i++)
+			{
+				PeerRecord r = ready.get(i);
+				r.peer = (r.unused != null) ? r.unused : new Peer(r.peerID, r.port, r.ip, client);
+				r.unused = null;
+				r.attempts++;
+				setState(r, CONNECTING);
+				started.add(r.peer);
+			}
+		}
+		for (Peer p : started)
+		{
+			try {
+				client.addPeer(p);	// a failure is reported back through peerDisconnected
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}
+	}
+
+	/**
+	 * Notes that a managed peer completed its handshake.
+	 * @param p the peer
+	 */
+	public synchronized void peerConnected(Peer p)
+	{
+		PeerRecord r = records.get(addressOf(p));
+		if (r == null || r.peer != p) {	// an inbound peer
+			return;
+		}
+		r.connectedTime = System.currentTimeMillis();
+		setState(r, ACTIVE);
+	}
+
+	/**
+	 * Notes that the connection to a managed peer ended, scores the peer on the throughput
+	 * it delivered, and puts it into backoff, or bans it if it misbehaved. A connection that
+	 * delivered data counts as a success and is retried after the shortest delay; one that
+	 * failed or delivered nothing doubles the delay. A free slot is filled on the next pass.
+	 * @param p the peer
+	 */
+	public synchronized void peerDisconnected(Peer p)
+	{
+		PeerRecord r = records.get(addressOf(p));
+		if (r == null || r.peer != p || r.state == BANNED) {
+			return;
+		}
+		r.peer = null;
+		long now = System.currentTimeMillis();
+		if (r.state == ACTIVE && p.bytesDownloaded > 0) {
+			double rate = p.bytesDownloaded * 1000.0 / Math.max(1L, now - r.connectedTime);
+			r.throughput = (r.throughput == 0.0) ? rate : SCORE_WEIGHT * rate + (1 - SCORE_WEIGHT) * r.throughput;
+			r.failures = 0;
+		}
+		else {
+			r.failures++;
+			r.totalFailures++;
+		}
+		if (p.isMisbehaving) {
+			ban(r, "it answered for the wrong torrent");
+			return;
+		}
+		r.retryTime = now + getBackoff(r.failures);
+		setState(r, BACKOFF);
+	}
+
+	/**
+	 * Notes that a piece delivered by a peer failed its hash check, and bans and disconnects
+	 * the peer once it has sent MAX_HASH_FAILURES of them.
+	 * @param p the peer that delivered the piece
+	 */
+	public void hashFailed(Peer p)
+	{
+		synchronized (this) {
+			PeerRecord r = records.get(addressOf(p));
+			if (r == null || r.state == BANNED || ++r.hashFailures < MAX_HASH_FAILURES) {
+				return;
+			}
+			ban(r, "it sent " + r.hashFailures + " pieces that failed their hash check");
+		}
+		try {
+			p.disconnect();
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+	}
+
+	/**
+	 * Returns the state of a peer.
+	 * @param p the peer
+	 * @return CANDIDATE, CONNECTING, ACTIVE, BACKOFF or BANNED, or -1 if the peer isn't managed
+	 */
+	public synchronized int getState(Peer p)
+	{
+		PeerRecord r = records.get(addressOf(p));
+		return (r == null) ? -1 : r.state;
+	}
+
+	/**
+	 * Returns the number of known peers in a state.
+	 * @param state CANDIDATE, CONNECTING, ACTIVE, BACKOFF or BANNED
+	 * @return the number of peers
+	 */
+	public synchronized int getCount(int state)
+	{
+		return counts[state];
+	}
+
+	/**
+	 * Returns the delay before a peer is retried after a number of consecutive failures.
+	 * @param failures the number of consecutive failures, 0 after a successful connection
+	 * @return the delay in milliseconds
+	 */
+	public static long getBackoff(int failures)
+	{
+		if (failures <= 0) {
+			return MIN_BACKOFF_MILLIS;
+		}
+		// doubling past the cap in a few steps, so the shift never overflows
+		return Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return records.size() + " known: " + counts[ACTIVE] + " active, " + counts[CONNECTING] + " connecting, "
+				+ counts[CANDIDATE] + " candidates, " + counts[BACKOFF] + " backing off, " + counts[BANNED] + " banned";
+	}
+
+	/*
+	 * Bans a peer for the rest of the session. Called with the lock held.
+	 */
+	private void ban(PeerRecord r, String reason)
+	{
+		System.err.println("Error: Banned peer " + r.ip + ":" + r.port + " because " + reason + ".");
+		setState(r, BANNED);
+	}
+
+	/*
+	 * Moves a peer to a new state and keeps the counts. Called with the lock held.
+	 */
+	private void setState(PeerRecord r, int state)
+	{
+		counts[r.state]--;
+		counts[state]++;
+		r.state = state;
+	}
+
+	/*
+	 * Returns the key of a peer's record.
+	 */
+	private static String addressOf(Peer p)
+	{
+		return p.ip + ":" + p.port;
+	}
+
+	/*
+	 * Everything the manager knows about one peer.
+	 */
+	private static final class PeerRecord
+	{
+		final String ip;
+		final int port;
+		final byte[] peerID;
+		int state = CANDIDATE;
+		// Peer of the current connection, or null while there is none
+		Peer peer;
+		// Peer handed in with the address, used for the first connection
+		Peer unused;
+		// Number of connections attempted
+		int attempts = 0;
+		// Number of consecutive and of all failed connections
+		int failures = 0;
+		int totalFailures = 0;
+		// Number of pieces from this peer that failed their hash check
+		int hashFailures = 0;
+		// Time the current connection completed its handshake, and the peer is retried at, in milliseconds
+		long connectedTime;
+		long retryTime;
+		// Weighted average of the bytes per second delivered by past connections
+		double throughput = 0.0;
+
+		PeerRecord(String ip, int port, byte[] peerID)
+		{
+			this.ip = ip;
+			this.port = port;
+			this.peerID = peerID;
+		}
+
+		/*
+		 * Ranks the peer for promotion: peers that delivered data by their throughput, then
+		 * untried peers, then peers that only ever failed, by their number of failures.
+		 */
+		double getScore()
+		{
+			return throughput / (1 + failures) - totalFailures;
+		}
+	}
+
+}
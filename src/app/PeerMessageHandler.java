@@ -0,0 +1,148 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PeerMessageHandler.java
+ * This interface receives the messages decoded by a MessageCodec. The codec calls
+ * it directly from the thread reading the socket, passing the fields of each
+ * message as primitives so that no message object is created for them. Buffers
+ * passed to the handler are views into the codec's read buffer and are only valid
+ * for the duration of the call. Block payloads are read straight into a buffer that
+ * the handler supplies.
+ */
+public interface PeerMessageHandler
+{
+	/**
+	 * Called when the peer sends a keep-alive message.
+	 * @throws IOException
+	 */
+	public void onKeepAlive() throws IOException;
+
+	/**
+	 * Called when the peer chokes the local host.
+	 * @throws IOException
+	 */
+	public void onChoke() throws IOException;
+
+	/**
+	 * Called when the peer unchokes the local host.
+	 * @throws IOException
+	 */
+	public void onUnchoke() throws IOException;
+
+	/**
+	 * Called when the peer becomes interested in the local host.
+	 * @throws IOException
+	 */
+	public void onInterested() throws IOException;
+
+	/**
+	 * Called when the peer is no longer interested in the local host.
+	 * @throws IOException
+	 */
+	public void onUninterested() throws IOException;
+
+	/**
+	 * Called when the peer announces that it has verified a piece.
+	 * @param index the index of the piece
+	 * @throws IOException
+	 */
+	public void onHave(int index) throws IOException;
+
+	/**
+	 * Called when the peer sends the bitfield of the pieces it has.
+	 * @param bitfield the bitfield, between the buffer's position and limit
+	 * @throws IOException
+	 */
+	public void onBitfield(ByteBuffer bitfield) throws IOException;
+
+	/**
+	 * Called when the peer requests a block from the local host.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @throws IOException
+	 */
+	public void onRequest(int index, int offset, int length) throws IOException;
+
+	/**
+	 * Called as soon as the header of a block sent by the peer has been received, before
+	 * its payload. The handler returns the buffer that the payload is read into directly,
+	 * with exactly length bytes remaining, or null to have the payload skipped.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @return the destination of the payload, or null to discard it
+	 * @throws IOException
+	 */
+	public ByteBuffer onPieceHeader(int index, int offset, int length) throws IOException;
+
+	/**
+	 * Called once the whole payload of a block has been read into the buffer returned by
+	 * onPieceHeader, or skipped.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @throws IOException
+	 */
+	public void onPieceReceived(int index, int offset, int length) throws IOException;
+
+	/**
+	 * Called when the peer withdraws a request it sent to the local host.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @throws IOException
+	 */
+	public void onCancel(int index, int offset, int length) throws IOException;
+
+	/**
+	 * Called when the peer suggests a piece to download (Fast Extension).
+	 * @param index the index of the piece
+	 * @throws IOException
+	 */
+	public void onSuggest(int index) throws IOException;
+
+	/**
+	 * Called when the peer announces that it has every piece (Fast Extension).
+	 * @throws IOException
+	 */
+	public void onHaveAll() throws IOException;
+
+	/**
+	 * Called when the peer announces that it has no pieces (Fast Extension).
+	 * @throws IOException
+	 */
+	public void onHaveNone() throws IOException;
+
+	/**
+	 * Called when the peer rejects a request sent by the local host (Fast Extension).
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @throws IOException
+	 */
+	public void onReject(int index, int offset, int length) throws IOException;
+
+	/**
+	 * Called when the peer allows a piece to be requested while choked (Fast Extension).
+	 * @param index the index of the piece
+	 * @throws IOException
+	 */
+	public void onAllowedFast(int index) throws IOException;
+
+	/**
+	 * Called for an EXTENDED message (Extension Protocol). The payload is only valid
+	 * for the duration of the call.
+	 * @param extendedId the extended message ID, 0 for the extension handshake
+	 * @param payload buffer holding the bencoded payload between its position and limit
+	 * @throws IOException
+	 */
+	public void onExtended(int extendedId, ByteBuffer payload) throws IOException;
+
+}
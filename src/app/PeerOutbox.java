@@ -0,0 +1,283 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * PeerOutbox.java
+ * This class is the outbound message queue owned by a single peer. Messages are queued by
+ * whichever thread wants to send them and written to the socket later by the peer's event
+ * loop or writer thread, so no caller ever blocks on a slow socket. Control messages
+ * (everything except PIECE) are kept in their own queue and always go out ahead of queued
+ * piece payloads. Consecutive messages are encoded back to back into one buffer and sent,
+ * together with the payloads of any pieces, with a single gathering write.
+ */
+public class PeerOutbox
+{
+	/** Maximum number of buffers handed to one gathering write. */
+	public static final int MAX_GATHER = 64;
+	/** Maximum number of piece payloads sent in one gathering write. */
+	public static final int MAX_BATCH_PIECES = 8;
+	/** Size of the buffer that control messages and piece headers are encoded into. */
+	public static final int HEADER_BUFFER_SIZE = 8 * 1024;
+
+	// Queued control messages (CHOKE, UNCHOKE, HAVE, REQUEST, ...), sent first
+	private final ArrayDeque<Message> control = new ArrayDeque<Message>();
+	// Queued piece payloads, sent once no control message is waiting
+	private final ArrayDeque<Message.Piece> bulk = new ArrayDeque<Message.Piece>();
+
+	// Pool that the blocks of sent pieces are returned to
+	private final BufferPool pool;
+	// Buffer that the messages of the current batch are encoded into
+	private final ByteBuffer headers = ByteBuffer.allocateDirect(HEADER_BUFFER_SIZE);
+	// Buffers of the current batch, in the order they go on the wire
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	// Number of buffers in the current batch, and the first one not yet fully written
+	private int gatherCount = 0;
+	private int gatherIndex = 0;
+	// Pieces whose blocks are referenced by the current batch
+	private final List<Message.Piece> batchPieces = new ArrayList<Message.Piece>();
+
+	/** Number of messages written so far. */
+	long messagesSent = 0L;
+	/** Number of gathering writes issued so far. */
+	long writes = 0L;
+
+	/**
+	 * Constructor for the PeerOutbox class.
+	 * @param pool BufferPool that the blocks of sent pieces are released to
+	 */
+	public PeerOutbox(BufferPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Queues a message to be sent to the peer.
+	 * @param msg Message object to be sent
+	 */
+	public synchronized void add(Message msg)
+	{
+		if (msg instanceof Message.Piece) {
+			bulk.add((Message.Piece) msg);
+		}
+		else {
+			control.add(msg);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Queues several control messages to be sent to the peer, waking the writer only once.
+	 * @param msgs array holding the messages
+	 * @param count number of messages at the start of the array to queue
+	 */
+	public synchronized void addAll(Message[] msgs, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			control.add(msgs[i]);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Removes every queued piece that has not started going out on the wire. Used when the
+	 * peer is choked, which discards all of its pending requests. The caller is responsible
+	 * for releasing the blocks of the returned pieces.
+	 * @return the pieces that were removed from the queue
+	 */
+	public synchronized List<Message.Piece> clearBulk()
+	{
+		List<Message.Piece> removed = new ArrayList<Message.Piece>(bulk);
+		bulk.clear();
+		return removed;
+	}
+
+	/**
+	 * Releases the blocks of every queued piece, and of the pieces in a batch that was only
+	 * partly written, and drops that batch. Used once the peer's connection is gone, when
+	 * nothing flushes the outbox any more.
+	 */
+	public synchronized void releaseAll()
+	{
+		for (Message.Piece piece : bulk)
+		{
+			pool.releaseBlock(piece.block);
+		}
+		bulk.clear();
+		for (Message.Piece piece : batchPieces)
+		{
+			pool.releaseBlock(piece.block);
+		}
+		batchPieces.clear();
+		Arrays.fill(gather, 0, gatherCount, null);
+		gatherCount = 0;
+		gatherIndex = 0;
+	}
+
+	/**
+	 * Removes a queued piece that has not started going out on the wire. Used when the peer
+	 * cancels its request. The caller is responsible for releasing the block of the piece.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @return the piece that was removed from the queue, or null if none matched
+	 */
+	public synchronized Message.Piece removePiece(int index, int offset, int length)
+	{
+		for (Iterator<Message.Piece> it = bulk.iterator(); it.hasNext();)
+		{
+			Message.Piece p = it.next();
+			if (p.index == index && p.offset == offset && p.block.remaining() == length) {
+				it.remove();
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether there is nothing queued or partially written.
+	 * @return true if the outbox is empty, false otherwise
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return control.isEmpty() && bulk.isEmpty() && gatherIndex == gatherCount;
+	}
+
+	/**
+	 * Waits until a message is queued or the timeout elapses. Used by the writer thread of a
+	 * peer whose connection is not run by an event loop.
+	 * @param timeoutMillis the maximum time to wait, in milliseconds
+	 * @return true if a message is queued, false if the timeout elapsed first
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitWork(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (control.isEmpty() && bulk.isEmpty())
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes queued messages to the channel until the outbox is empty or the channel
+	 * cannot accept more bytes. Only one thread may flush an outbox at a time.
+	 * @param channel GatheringByteChannel connected to the peer
+	 * @return true if everything queued was written, false if the channel is full
+	 * @throws IOException
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException
+	{
+		while (true)
+		{
+			if (gatherIndex == gatherCount) {	// previous batch is done; build the next one
+				finishBatch();
+				if (!fillBatch()) {
+					return true;
+				}
+			}
+			long n = channel.write(gather, gatherIndex, gatherCount - gatherIndex);
+			writes++;
+			while (gatherIndex < gatherCount && !gather[gatherIndex].hasRemaining())
+			{
+				gather[gatherIndex++] = null;
+			}
+			if (n == 0 && gatherIndex < gatherCount) {	// non-blocking channel is full
+				return false;
+			}
+		}	// end of while (true)
+	}
+
+	/*
+	 * Builds the next batch from the queues. Control messages are encoded first; piece
+	 * payloads are only added once no control message is waiting, with their headers
+	 * encoded into the shared buffer and their blocks gathered straight from the slab.
+	 */
+	private synchronized boolean fillBatch()
+	{
+		headers.clear();
+		gatherCount = 0;
+		gatherIndex = 0;
+		int segmentStart = 0;
+
+		Message msg;
+		while ((msg = control.peek()) != null)
+		{
+			if (msg.getEncodedLength() > headers.remaining()) {
+				if (headers.position() == 0) {	// larger than the whole buffer (a bitfield); send it alone
+					ByteBuffer large = ByteBuffer.allocate(msg.getEncodedLength());
+					Message.encode(control.poll(), large);
+					large.flip();
+					gather[gatherCount++] = large;
+					messagesSent++;
+					return true;
+				}
+				break;
+			}
+			Message.encode(control.poll(), headers);
+			messagesSent++;
+		}	// end of while ((msg = control.peek()) != null)
+
+		Message.Piece piece;
+		while (control.isEmpty() && batchPieces.size() < MAX_BATCH_PIECES
+				&& headers.remaining() >= 13 && (piece = bulk.poll()) != null)
+		{
+			headers.putInt(piece.length);
+			headers.put(piece.id);
+			headers.putInt(piece.index);
+			headers.putInt(piece.offset);
+			gather[gatherCount++] = segment(segmentStart, headers.position());
+			segmentStart = headers.position();
+			gather[gatherCount++] = piece.block.duplicate();
+			batchPieces.add(piece);
+			messagesSent++;
+		}
+		if (headers.position() > segmentStart) {
+			gather[gatherCount++] = segment(segmentStart, headers.position());
+		}
+		return gatherCount > 0;
+	}
+
+	/*
+	 * Returns a view of the encoded bytes of the header buffer between start and end.
+	 */
+	private ByteBuffer segment(int start, int end)
+	{
+		ByteBuffer view = headers.duplicate();
+		view.limit(end);
+		view.position(start);
+		return view;
+	}
+
+	/*
+	 * Counts the pieces in the batch that was just written as uploaded and releases their
+	 * blocks.
+	 */
+	private synchronized void finishBatch()
+	{
+		for (Message.Piece piece : batchPieces)
+		{
+			TrackerConnection.uploaded.addAndGet(piece.block.remaining());
+			pool.releaseBlock(piece.block);
+		}
+		batchPieces.clear();
+	}
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * PieceAssembler.java
+ * This class holds every piece that is partly downloaded, for the whole torrent. Each piece
+ * has one pooled region and a state for every block of it, so the blocks of a piece can come
+ * from any number of peers, in any order: each block is placed by its offset, and the piece
+ * is handed to the verifier once its last block is in. When a peer disconnects in the middle
+ * of a piece, the blocks it delivered stay, and another peer picks up the rest.
+ *
+ * A peer reserves a block before its payload is read into the region, so two peers never
+ * write the same block, and a region is only handed on once no peer is writing into it.
+ * A block that is already in, or on its way from another peer, is skipped.
+ *
+ * Every request sent is noted with the peer and the time, so that peers sharing a piece
+ * request different blocks of it. A block requested from one peer is left to it until the
+ * block stalls, when another peer may request it too; whichever copy arrives first is kept
+ * and the other request is cancelled. A piece's region is taken from the pool only once its
+ * first block arrives, so requests alone pin no memory.
+ */
+public class PieceAssembler
+{
+	/** Length of every block requested, except the last block of the last piece. */
+	public static final int BLOCK_SIZE = 16384;
+	/** Constant for the default number of milliseconds before a requested block may be requested from another peer. */
+	public static final int DEFAULT_BLOCK_STALL_MILLIS = 5000;
+
+	/** State of a block that nobody has delivered. */
+	public static final byte MISSING = 0;
+	/** State of a block whose payload is being read from a peer. */
+	public static final byte RECEIVING = 1;
+	/** State of a block that is in the region. */
+	public static final byte RECEIVED = 2;
+
+	/** Number of blocks placed into regions. */
+	long blocksReceived = 0L;
+	/** Number of blocks skipped because they were in or on their way already. */
+	long blocksSkipped = 0L;
+	/** Number of pieces completed with blocks from more than one peer. */
+	long sharedPieces = 0L;
+	/** Number of stalled blocks requested from another peer. */
+	long blocksReassigned = 0L;
+
+	/** Number of milliseconds before a requested block may be requested from another peer; set from the rubt.block.stall system property. */
+	long stallMillis = Math.max(1, Integer.getInteger("rubt.block.stall", DEFAULT_BLOCK_STALL_MILLIS));
+
+	// TorrentClient whose pieces are assembled
+	private final TorrentClient client;
+	// Pieces partly downloaded or requested, keyed by their index
+	private final HashMap<Integer, Partial> pieces = new HashMap<Integer, Partial>();
+	// Largest number of pieces partly downloaded or requested at the same time
+	private int peakPieces = 0;
+	// Number of pieces holding a region, and the largest number at the same time
+	private int regions = 0;
+	private int peakRegions = 0;
+
+	/**
+	 * Constructor for the PieceAssembler class.
+	 * @param client the TorrentClient whose pieces are assembled
+	 */
+	public PieceAssembler(TorrentClient client)
+	{
+		this.client = client;
+	}
+
+	/**
+	 * Returns the number of blocks in a piece.
+	 * @param pieceLength the length of the piece
+	 * @return the number of blocks
+	 */
+	public static int getBlockCount(int pieceLength)
+	{
+		return (pieceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	/**
+	 * Reserves a block for a peer that is about to deliver it, and returns the region of its
+	 * piece. A region is taken from the pool when the first block of a piece arrives. The
+	 * peer must follow up with complete or abort.
+	 * @param p the peer delivering the block
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param length the length of the block
+	 * @return the region of the piece, or null if the block is in, on its way, or invalid
+	 */
+	public synchronized ByteBuffer reserve(Peer p, int index, int offset, int length)
+	{
+		int pieceLength = client.getPieceLength(index);
+		if (offset < 0 || offset % BLOCK_SIZE != 0 || offset >= pieceLength
+				|| length != Math.min(BLOCK_SIZE, pieceLength - offset)) {
+			System.err.println("Error: Block at offset " + offset + " does not fit in piece " + index + ".");
+			return null;
+		}
+		Partial piece = getPartial(index, pieceLength);
+		if (piece == null) {	// verified, or being verified
+			blocksSkipped++;
+			return null;
+		}
+		int block = offset / BLOCK_SIZE;
+		if (piece.states[block] != MISSING) {
+			blocksSkipped++;
+			return null;
+		}
+		if (piece.region == null) {
+			piece.region = client.pool.acquirePiece(pieceLength);
+			peakRegions = Math.max(peakRegions, ++regions);
+		}
+		piece.states[block] = RECEIVING;
+		return piece.region;
+	}
+
+	/**
+	 * Marks a reserved block as in. If it was the last block of its piece, the piece is
+	 * returned, for its region to be handed to the verifier before the piece is removed.
+	 * @param p the peer that delivered the block
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @return the complete piece, or null if blocks are still missing
+	 */
+	public synchronized Partial complete(Peer p, int index, int offset)
+	{
+		Partial piece = pieces.get(index);
+		piece.states[offset / BLOCK_SIZE] = RECEIVED;
+		piece.requesters[offset / BLOCK_SIZE] = null;
+		blocksReceived++;
+		if (piece.source == null) {
+			piece.source = p;
+		}
+		else if (piece.source != p) {
+			piece.isShared = true;
+		}
+		if (++piece.received < piece.states.length) {
+			return null;
+		}
+		if (piece.isShared) {
+			sharedPieces++;
+		}
+		piece.region.clear();
+		piece.region.limit(piece.length);
+		return piece;
+	}
+
+	/**
+	 * Removes a complete piece once its region was handed to the verifier. Until then its
+	 * blocks are all in, so none is reserved again, and from then on the verifier has it.
+	 * @param index the index of the piece
+	 */
+	public synchronized void remove(int index)
+	{
+		if (pieces.remove(index) != null) {
+			regions--;
+		}
+	}
+
+	/**
+	 * Gives up a reserved block whose payload didn't arrive in full, so that it can be
+	 * requested again.
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 */
+	public synchronized void abort(int index, int offset)
+	{
+		Partial piece = pieces.get(index);
+		if (piece != null && piece.states[offset / BLOCK_SIZE] == RECEIVING) {
+			piece.states[offset / BLOCK_SIZE] = MISSING;
+			piece.requesters[offset / BLOCK_SIZE] = null;	// free for any peer right away
+		}
+	}
+
+	/**
+	 * Notes that a peer was sent a request for a block, so that peers sharing the piece
+	 * leave the block to it until it stalls.
+	 * @param p the peer the request was sent to
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 */
+	public synchronized void request(Peer p, int index, int offset)
+	{
+		Partial piece = getPartial(index, client.getPieceLength(index));
+		if (piece == null) {
+			return;
+		}
+		int block = offset / BLOCK_SIZE;
+		if (piece.states[block] != MISSING) {
+			return;
+		}
+		if (piece.requesters[block] != null && piece.requesters[block] != p) {
+			blocksReassigned++;
+		}
+		piece.requesters[block] = p;
+		piece.requestTimes[block] = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns whether a peer should request a block: its piece is missing and nobody
+	 * delivered it or is delivering it. A peer sharing the piece also passes over a block
+	 * that was requested already, unless another peer's request for it stalled.
+	 * @param p the peer about to request the block
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param isShared true if the peer shares the piece with others at block granularity
+	 * @return true if the block is needed, false otherwise
+	 */
+	public synchronized boolean isBlockNeeded(Peer p, int index, int offset, boolean isShared)
+	{
+		Partial piece = pieces.get(index);
+		if (piece == null) {
+			return client.isPieceMissing(index);
+		}
+		int block = offset / BLOCK_SIZE;
+		if (piece.states[block] != MISSING) {
+			return false;
+		}
+		Peer requester = piece.requesters[block];
+		return !isShared || requester == null
+				|| (requester != p && System.currentTimeMillis() - piece.requestTimes[block] >= stallMillis);
+	}
+
+	/**
+	 * Returns whether a piece has a block that a peer sharing it should request.
+	 * @param p the peer
+	 * @param index the index of the piece
+	 * @return true if some block of the piece is needed, false otherwise
+	 */
+	public synchronized boolean hasNeededBlock(Peer p, int index)
+	{
+		int blocks = getBlockCount(client.getPieceLength(index));
+		for (int i = 0; i < blocks; i++)
+		{
+			if (isBlockNeeded(p, index, i * BLOCK_SIZE, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the requests sent to a peer whose connection ended, so that their blocks can
+	 * be requested from other peers right away.
+	 * @param p the peer
+	 */
+	public synchronized void forget(Peer p)
+	{
+		for (Partial piece : pieces.values())
+		{
+			for (int i = 0; i < piece.requesters.length; i++)
+			{
+				if (piece.requesters[i] == p) {
+					piece.requesters[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the regions of every partly downloaded piece to the pool. Called once no peer
+	 * is connected any more.
+	 */
+	public synchronized void clear()
+	{
+		for (Partial piece : pieces.values())
+		{
+			if (piece.region != null) {
+				client.pool.releasePiece(piece.region);
+			}
+		}
+		pieces.clear();
+		regions = 0;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return pieces.size() + " pieces in progress (peak " + peakPieces + "), " + regions + " holding regions (peak "
+				+ peakRegions + "), " + blocksReceived + " blocks received, "
+				+ blocksSkipped + " skipped, " + blocksReassigned + " stalled blocks reassigned, "
+				+ sharedPieces + " pieces shared by several peers";
+	}
+
+	/*
+	 * Returns the piece at an index, adding it if it is missing, or null if it isn't.
+	 * Called with the lock held.
+	 */
+	private Partial getPartial(int index, int pieceLength)
+	{
+		Partial piece = pieces.get(index);
+		if (piece == null && client.isPieceMissing(index)) {
+			piece = new Partial(pieceLength);
+			pieces.put(index, piece);
+			peakPieces = Math.max(peakPieces, pieces.size());
+		}
+		return piece;
+	}
+
+	/**
+	 * A piece that is partly downloaded, or complete once returned by complete.
+	 */
+	static final class Partial
+	{
+		/** Pooled region that the blocks are written into, or null until the first block arrives. */
+		ByteBuffer region;
+		/** Length of the piece. */
+		final int length;
+		// State of every block: MISSING, RECEIVING or RECEIVED
+		final byte[] states;
+		// Peer that each block was last requested from, or null, and the time of the request
+		final Peer[] requesters;
+		final long[] requestTimes;
+		// Number of blocks received
+		int received = 0;
+		/** Peer that delivered the first block. */
+		Peer source;
+		/** True if blocks came from more than one peer, so none of them can be blamed for a bad piece. */
+		boolean isShared = false;
+
+		Partial(int length)
+		{
+			this.length = length;
+			states = new byte[getBlockCount(length)];
+			requesters = new Peer[states.length];
+			requestTimes = new long[states.length];
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PieceBitfield.java
+ * This class holds one bit for every piece of the torrent, such as which pieces the local
+ * host has verified. Bits are kept in 64-bit words that are set and cleared with
+ * compare-and-set, so the peers on every event loop and the piece workers can test and
+ * update them without sharing a lock. The number of bits set is counted as they change,
+ * so completion is known without scanning the whole bitfield.
+ */
+public class PieceBitfield
+{
+	// Words of 64 bits each; bit i lives in word i / 64
+	private final AtomicLongArray words;
+	// Number of pieces
+	private final int length;
+	// Number of bits set
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Constructor for the PieceBitfield class, with every bit cleared.
+	 * @param length the number of pieces
+	 */
+	public PieceBitfield(int length)
+	{
+		this.length = length;
+		words = new AtomicLongArray((length + 63) / 64);
+	}
+
+	/**
+	 * Constructor for the PieceBitfield class, with the bits of a boolean array.
+	 * @param pieces true for every piece whose bit is set
+	 */
+	public PieceBitfield(boolean[] pieces)
+	{
+		this(pieces.length);
+		for (int i = 0; i < pieces.length; i++)
+		{
+			if (pieces[i]) {
+				set(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of pieces.
+	 * @return the number of bits in the bitfield
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns whether the bit of a piece is set.
+	 * @param index the index of the piece
+	 * @return true if the bit is set, false otherwise
+	 */
+	public boolean get(int index)
+	{
+		return (words.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Sets the bit of a piece.
+	 * @param index the index of the piece
+	 * @return true if this call set the bit, false if it was already set
+	 */
+	public boolean set(int index)
+	{
+		int word = index >>> 6;
+		long mask = 1L << index;
+		long old;
+		do {
+			old = words.get(word);
+			if ((old & mask) != 0) {
+				return false;
+			}
+		} while (!words.compareAndSet(word, old, old | mask));
+		count.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Clears the bit of a piece.
+	 * @param index the index of the piece
+	 * @return true if this call cleared the bit, false if it was already clear
+	 */
+	public boolean clear(int index)
+	{
+		int word = index >>> 6;
+		long mask = 1L << index;
+		long old;
+		do {
+			old = words.get(word);
+			if ((old & mask) == 0) {
+				return false;
+			}
+		} while (!words.compareAndSet(word, old, old & ~mask));
+		count.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the number of bits set.
+	 * @return the number of pieces whose bit is set
+	 */
+	public int cardinality()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Returns whether the bit of every piece is set.
+	 * @return true if every bit is set, false otherwise
+	 */
+	public boolean isComplete()
+	{
+		return count.get() == length;
+	}
+
+	/**
+	 * Returns the index of the first piece at or after an index whose bit is clear.
+	 * @param from the index to start looking at
+	 * @return the index of a clear bit, or -1 if every bit from there on is set
+	 */
+	public int nextClearBit(int from)
+	{
+		for (int i = from; i < length; i++)
+		{
+			long word = words.get(i >>> 6);
+			if (word == -1L) {	// skip the rest of a full word
+				i |= 63;
+				continue;
+			}
+			if ((word & (1L << i)) == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first piece at or after an index whose bit is set.
+	 * @param from the index to start looking at
+	 * @return the index of a set bit, or -1 if every bit from there on is clear
+	 */
+	public int nextSetBit(int from)
+	{
+		for (int i = from; i < length; i++)
+		{
+			long word = words.get(i >>> 6);
+			if (word == 0L) {	// skip the rest of an empty word
+				i |= 63;
+				continue;
+			}
+			if ((word & (1L << i)) != 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Encodes the bitfield as in a BITFIELD message: the high bit of the first byte is the
+	 * first piece, and spare bits at the end are cleared.
+	 * @return the encoded bitfield
+	 */
+	public byte[] toBitfield()
+	{
+		byte[] bitfield = new byte[(length + 7) / 8];
+		for (int i = 0; i < length; i++)
+		{
+			if (get(i)) {
+				bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+			}
+		}
+		return bitfield;
+	}
+
+}
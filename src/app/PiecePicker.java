@@ -0,0 +1,591 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * PiecePicker.java
+ * This class chooses which piece a peer downloads next: the rarest piece the peer has and
+ * the local host is missing. It counts how many connected peers have each piece, and keeps
+ * the pieces in one bucket per count, so the rarest pieces are found without sorting or
+ * scanning every piece. A HAVE moves one piece to the next bucket, and a disconnect moves
+ * each piece the peer had back, in O(1) per piece. Peers that have every piece are counted
+ * apart as seeds: they add the same to every piece, so they leave the order unchanged and
+ * cost nothing to add or remove.
+ *
+ * Within a bucket pieces sit in random order, so peers spread over equally rare pieces.
+ * Buckets only hold the pieces nobody has started: a piece leaves its bucket when it is first
+ * claimed, and moves to the short list of started pieces until it is verified. A peer that
+ * has every piece therefore takes the head of the lowest non-empty bucket, without passing
+ * over pieces other peers are downloading. A started piece that nobody is downloading any
+ * more, because its peers left or it failed its hash check, is resumed before new pieces.
+ *
+ * Once every missing piece is being downloaded, the picker enters endgame: a peer with
+ * nothing left to pick is given a piece that other peers are downloading, the one with the
+ * fewest copies under way, so the last pieces don't wait on the slowest peer that holds
+ * them. Whichever copy arrives first is verified and the other peers cancel theirs.
+ *
+ * Peers are classed by their measured download rate. A fast peer, one that downloads a whole
+ * piece within rubt.piece.time, gets a new piece to itself. A slow peer, or one not measured
+ * yet, shares its pieces: any other peer may join them and request the blocks the slow peer
+ * hasn't requested, or whose requests stalled. Both classes first join the pieces in progress
+ * that only sharing peers hold and that have a block left for them, which keeps the number of
+ * partly downloaded pieces, and the regions they pin, low.
+ *
+ * For streaming, the picker follows a playback cursor instead: urgent pieces such as the
+ * container's index come first, then the pieces of the readahead window after the cursor,
+ * in order. The first DEADLINE_PIECES of the window are due soonest, so a peer may download
+ * them while another peer still is, rather than leave the player waiting on a slow peer.
+ * Once the window is covered, the rest of the file is picked rarest first as before.
+ */
+public class PiecePicker
+{
+	/** Number of pieces at the playback cursor that may be downloaded from two peers at once. */
+	public static final int DEADLINE_PIECES = 2;
+	/** Most peers downloading a piece at the playback cursor at the same time. */
+	public static final int MAX_DEADLINE_COPIES = 2;
+	/** Constant for the default number of milliseconds a peer may take to download a whole piece and still get pieces to itself. */
+	public static final int DEFAULT_PIECE_TIME_MILLIS = 10000;
+
+	/** Number of milliseconds a peer may take to download a whole piece and still get pieces to itself; set from the rubt.piece.time system property. */
+	long pieceTimeMillis = Math.max(1, Integer.getInteger("rubt.piece.time", DEFAULT_PIECE_TIME_MILLIS));
+
+	// TorrentClient whose pieces are picked
+	private final TorrentClient client;
+	// Number of peers that have each piece, not counting seeds
+	private final int[] count;
+	// Neighbours of each piece in its bucket, or -1 at either end
+	private final int[] next;
+	private final int[] prev;
+	// First and last piece of the bucket for every count, or -1 if it is empty
+	private int[] heads;
+	private int[] tails;
+	// True while a piece is in a bucket, that is, nobody has started it
+	private final boolean[] linked;
+	// True while a piece is in the list of started pieces, that is, claimed once and not verified
+	private final boolean[] started;
+	// First and last piece of the list of started pieces, which shares next and prev with the buckets
+	private int startedHead = -1;
+	private int startedTail = -1;
+	// Number of peers downloading each piece, and how many of them share it at block granularity
+	private final int[] copies;
+	private final int[] sharers;
+	// No bucket below this one holds a piece
+	private int lowest = 0;
+	// Number of connected peers that have every piece
+	private int seeds = 0;
+	// True once a piece was given to a second peer
+	private boolean isEndgame = false;
+	// Piece at the playback position, or -1 unless streaming
+	private int cursor = -1;
+	// Number of pieces from the cursor on that are picked in order
+	private int readahead = 1;
+	// Pieces wanted before any other while streaming, such as the container's index
+	private final ArrayDeque<Integer> urgent = new ArrayDeque<Integer>();
+
+	/** Number of times a piece was picked that another peer was already downloading. */
+	long duplicates = 0L;
+	/** Number of pieces given to fast peers to themselves, and to slow peers to share. */
+	long fastPicks = 0L;
+	long slowPicks = 0L;
+	/** Number of times a peer joined a piece in progress held only by sharing peers. */
+	long joins = 0L;
+
+	/**
+	 * Constructor for the PiecePicker class. Every piece starts in the bucket of pieces no
+	 * peer has, in random order.
+	 * @param client the TorrentClient whose pieces are picked
+	 * @param numPieces the number of pieces
+	 */
+	public PiecePicker(TorrentClient client, int numPieces)
+	{
+		this.client = client;
+		count = new int[numPieces];
+		next = new int[numPieces];
+		prev = new int[numPieces];
+		linked = new boolean[numPieces];
+		started = new boolean[numPieces];
+		copies = new int[numPieces];
+		sharers = new int[numPieces];
+		heads = new int[8];
+		tails = new int[8];
+		Arrays.fill(heads, -1);
+		Arrays.fill(tails, -1);
+		int[] order = new int[numPieces];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < numPieces; i++)
+		{
+			int j = random.nextInt(i + 1);	// inside-out shuffle
+			order[i] = order[j];
+			order[j] = i;
+		}
+		for (int i = 0; i < numPieces; i++)
+		{
+			append(order[i], 0);
+		}
+	}
+
+	/**
+	 * Notes that a peer announced a piece with HAVE, and sets its bit in the peer's bitfield.
+	 * @param p the peer
+	 * @param index the index of the piece
+	 * @return true if the peer didn't have the piece before, false otherwise
+	 */
+	public synchronized boolean peerHas(Peer p, int index)
+	{
+		if (p.bitfield[index]) {
+			return false;
+		}
+		p.bitfield[index] = true;
+		if (!p.isUncounted) {
+			move(index, 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the pieces a peer has, as announced with BITFIELD, HAVE ALL or HAVE NONE, and
+	 * counts them. A peer announcing every piece is counted as a seed.
+	 * @param p the peer
+	 * @param pieces true for every piece the peer has
+	 */
+	public synchronized void peerBitfield(Peer p, boolean[] pieces)
+	{
+		if (p.isUncounted) {
+			System.arraycopy(pieces, 0, p.bitfield, 0, pieces.length);
+			return;
+		}
+		uncount(p);
+		System.arraycopy(pieces, 0, p.bitfield, 0, pieces.length);
+		boolean complete = true;
+		for (int i = 0; i < pieces.length && complete; i++)
+		{
+			complete = pieces[i];
+		}
+		if (complete) {
+			p.isSeed = true;
+			seeds++;
+			return;
+		}
+		for (int i = 0; i < pieces.length; i++)
+		{
+			if (pieces[i]) {
+				move(i, 1);
+			}
+		}
+	}
+
+	/**
+	 * Stops counting the pieces of a peer whose connection ended, and frees the pieces it
+	 * was downloading for other peers. Later announcements from the peer are no longer counted.
+	 * @param p the peer
+	 */
+	public synchronized void peerGone(Peer p)
+	{
+		if (p.isUncounted) {
+			return;
+		}
+		uncount(p);
+		p.isUncounted = true;
+		for (int i = p.downloading.nextSetBit(0); i != -1; i = p.downloading.nextSetBit(i + 1))
+		{
+			p.downloading.clear(i);
+			copies[i]--;
+			if (p.sharing.clear(i)) {
+				sharers[i]--;
+			}
+		}
+	}
+
+	/**
+	 * Returns the rarest piece that a peer has and the local host is missing, and marks it
+	 * as being downloaded by the peer. A piece in progress held only by sharing peers, with a
+	 * block left for the peer, comes first. In endgame, when no missing piece is left that no
+	 * peer is downloading, the peer is given the piece with the fewest copies under way.
+	 * @param p the peer
+	 * @return the index of the piece, or -1 if the peer has no missing piece to download
+	 */
+	public synchronized int pick(Peer p)
+	{
+		if (cursor != -1) {
+			int i = pickStreaming(p);
+			if (i != -1) {
+				return i;
+			}
+		}
+		// started pieces that no peer holds to itself are finished first, so fewer are in progress at once
+		boolean unclaimed = false;	// some missing piece isn't being downloaded by anyone
+		for (int i = startedHead; i != -1; i = next[i])
+		{
+			if (copies[i] != sharers[i] || !client.isPieceMissing(i)) {
+				continue;
+			}
+			unclaimed |= copies[i] == 0;
+			if (p.bitfield[i] && (copies[i] == 0 || client.assembler.hasNeededBlock(p, i))) {
+				if (!p.downloading.get(i)) {
+					joins++;
+				}
+				claim(p, i, true);
+				return i;
+			}
+		}
+		// then the rarest piece nobody has started; buckets hold nothing else
+		for (int b = lowest; b < heads.length; b++)
+		{
+			int i = heads[b];
+			if (b == lowest && i == -1) {	// nothing left this low
+				lowest++;
+				continue;
+			}
+			while (i != -1)
+			{
+				int n = next[i];
+				if (client.localHostBitfield.get(i)) {	// verified before the picker knew, such as on resume
+					unlink(i);
+					linked[i] = false;
+				}
+				else if (p.bitfield[i]) {
+					boolean isSlow = p.isSlow();
+					if (isSlow) {
+						slowPicks++;
+					}
+					else {
+						fastPicks++;
+					}
+					claim(p, i, isSlow);
+					return i;
+				}
+				else {
+					unclaimed = true;
+				}
+				i = n;
+			}
+		}
+		if (unclaimed) {	// not in endgame while other peers still have pieces to pick
+			return -1;
+		}
+		int shared = -1;
+		for (int i = startedHead; i != -1; i = next[i])
+		{
+			if (p.bitfield[i] && !p.downloading.get(i) && client.isPieceMissing(i)
+					&& (shared == -1 || copies[i] < copies[shared])) {
+				shared = i;
+			}
+		}
+		if (shared == -1) {
+			return -1;
+		}
+		if (!isEndgame) {
+			isEndgame = true;
+			System.out.println("Endgame: every missing piece is being downloaded.");
+		}
+		duplicates++;
+		claim(p, shared, false);
+		return shared;
+	}
+
+	/**
+	 * Moves the playback cursor, which puts the picker into streaming mode.
+	 * @param index the piece at the playback position
+	 */
+	public synchronized void setCursor(int index)
+	{
+		cursor = index;
+	}
+
+	/**
+	 * Sets how many pieces from the playback cursor on are picked in order while streaming.
+	 * @param pieces the number of pieces
+	 */
+	public synchronized void setReadahead(int pieces)
+	{
+		readahead = Math.max(1, pieces);
+	}
+
+	/**
+	 * Wants a piece before any other while streaming, unless it is verified already.
+	 * @param index the index of the piece
+	 */
+	public synchronized void prioritize(int index)
+	{
+		if (!client.localHostBitfield.get(index) && !urgent.contains(index)) {
+			urgent.add(index);
+		}
+	}
+
+	/**
+	 * Marks a piece as being downloaded by a peer, such as a suggested or allowed fast piece
+	 * that the peer chose itself. A slow peer shares it with other peers.
+	 * @param p the peer
+	 * @param index the index of the piece
+	 */
+	public synchronized void claim(Peer p, int index)
+	{
+		claim(p, index, p.isSlow());
+	}
+
+	/**
+	 * Marks a piece as being downloaded by a peer, to itself or shared at block granularity.
+	 * @param p the peer
+	 * @param index the index of the piece
+	 * @param isShared true if other peers may join the piece
+	 */
+	public synchronized void claim(Peer p, int index, boolean isShared)
+	{
+		if (!p.isUncounted && p.downloading.set(index)) {	// a peer that left no longer downloads
+			copies[index]++;
+			if (isShared && p.sharing.set(index)) {
+				sharers[index]++;
+			}
+			if (linked[index]) {	// started now; no longer picked from its bucket
+				unlink(index);
+				linked[index] = false;
+			}
+			if (!started[index] && !client.localHostBitfield.get(index)) {
+				appendStarted(index);
+			}
+		}
+	}
+
+	/**
+	 * Drops a verified piece from the picker for good. Called by the client for every
+	 * verified piece.
+	 * @param index the index of the piece
+	 */
+	public synchronized void pieceVerified(int index)
+	{
+		if (linked[index]) {
+			unlink(index);
+			linked[index] = false;
+		}
+		if (started[index]) {
+			unlinkStarted(index);
+		}
+	}
+
+	/**
+	 * Notes that a peer stopped downloading a piece, because the piece was handed to the
+	 * verifier, abandoned or cancelled. If the piece fails its hash check it is picked again.
+	 * @param p the peer
+	 * @param index the index of the piece
+	 * @return the number of other peers still downloading the piece
+	 */
+	public synchronized int release(Peer p, int index)
+	{
+		if (p.downloading.clear(index)) {
+			copies[index]--;
+			if (p.sharing.clear(index)) {
+				sharers[index]--;
+			}
+		}
+		return copies[index];
+	}
+
+	/**
+	 * Returns the number of peers downloading a piece.
+	 * @param index the index of the piece
+	 * @return the number of copies under way
+	 */
+	public synchronized int getCopies(int index)
+	{
+		return copies[index];
+	}
+
+	/**
+	 * Returns the number of connected peers that have a piece.
+	 * @param index the index of the piece
+	 * @return the availability of the piece
+	 */
+	public synchronized int getAvailability(int index)
+	{
+		return count[index] + seeds;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		int rarest = -1;
+		for (int b = lowest; b < heads.length && rarest == -1; b++)
+		{
+			if (heads[b] != -1) {
+				rarest = b;
+			}
+		}
+		return seeds + " seeds, rarest piece held by " + ((rarest == -1) ? "-" : Integer.toString(rarest + seeds)) + " peers, "
+				+ fastPicks + " pieces to fast peers, " + slowPicks + " shared by slow peers, " + joins + " joined in progress, "
+				+ (isEndgame ? "endgame" : "no endgame") + ", " + duplicates + " duplicate pieces"
+				+ ((cursor == -1) ? "" : ", streaming at piece " + cursor);
+	}
+
+	/*
+	 * Returns the first urgent piece, or the first piece of the readahead window, that the
+	 * peer can download, or -1. Called with the lock held.
+	 */
+	private int pickStreaming(Peer p)
+	{
+		for (Iterator<Integer> it = urgent.iterator(); it.hasNext();)
+		{
+			int i = it.next();
+			if (client.localHostBitfield.get(i)) {
+				it.remove();
+			}
+			else if (copies[i] == 0 && p.bitfield[i] && client.isPieceMissing(i)) {
+				claim(p, i);
+				return i;
+			}
+		}
+		int end = Math.min(count.length, cursor + readahead);
+		for (int i = cursor; i < end; i++)
+		{
+			if (!p.bitfield[i] || !client.isPieceMissing(i)) {
+				continue;
+			}
+			if (copies[i] == 0) {
+				claim(p, i);
+				return i;
+			}
+			if (i < cursor + DEADLINE_PIECES && copies[i] < MAX_DEADLINE_COPIES && !p.downloading.get(i)) {
+				duplicates++;
+				claim(p, i, false);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Takes a peer's current pieces out of the counts. Called with the lock held.
+	 */
+	private void uncount(Peer p)
+	{
+		if (p.isSeed) {
+			p.isSeed = false;
+			seeds--;
+			return;
+		}
+		for (int i = 0; i < p.bitfield.length; i++)
+		{
+			if (p.bitfield[i]) {
+				move(i, -1);
+			}
+		}
+	}
+
+	/*
+	 * Changes the count of a piece and moves it to the matching bucket, at a random end so
+	 * that pieces keep mixing. Called with the lock held.
+	 */
+	private void move(int index, int delta)
+	{
+		int c = count[index] + delta;
+		if (c < 0) {
+			System.err.println("Error: Availability of piece " + index + " would drop below 0; a peer's pieces were uncounted twice.");
+			return;
+		}
+		if (!linked[index]) {	// started and verified pieces are only counted
+			count[index] = c;
+			return;
+		}
+		unlink(index);
+		count[index] = c;
+		append(index, c);
+	}
+
+	/*
+	 * Removes a piece from its bucket. Called with the lock held.
+	 */
+	private void unlink(int index)
+	{
+		int b = count[index];
+		if (prev[index] == -1) {
+			heads[b] = next[index];
+		}
+		else {
+			next[prev[index]] = next[index];
+		}
+		if (next[index] == -1) {
+			tails[b] = prev[index];
+		}
+		else {
+			prev[next[index]] = prev[index];
+		}
+	}
+
+	/*
+	 * Adds a piece to the end of the list of started pieces. Called with the lock held.
+	 */
+	private void appendStarted(int index)
+	{
+		started[index] = true;
+		next[index] = -1;
+		prev[index] = startedTail;
+		if (startedTail == -1) {
+			startedHead = index;
+		}
+		else {
+			next[startedTail] = index;
+		}
+		startedTail = index;
+	}
+
+	/*
+	 * Removes a piece from the list of started pieces. Called with the lock held.
+	 */
+	private void unlinkStarted(int index)
+	{
+		if (prev[index] == -1) {
+			startedHead = next[index];
+		}
+		else {
+			next[prev[index]] = next[index];
+		}
+		if (next[index] == -1) {
+			startedTail = prev[index];
+		}
+		else {
+			prev[next[index]] = prev[index];
+		}
+		started[index] = false;
+	}
+
+	/*
+	 * Adds a piece to a bucket, at its head or tail at random. Called with the lock held.
+	 */
+	private void append(int index, int b)
+	{
+		if (b >= heads.length) {
+			int old = heads.length;
+			heads = Arrays.copyOf(heads, Math.max(b + 1, old * 2));
+			tails = Arrays.copyOf(tails, heads.length);
+			Arrays.fill(heads, old, heads.length, -1);
+			Arrays.fill(tails, old, tails.length, -1);
+		}
+		linked[index] = true;
+		if (heads[b] == -1) {
+			next[index] = prev[index] = -1;
+			heads[b] = tails[b] = index;
+		}
+		else if (ThreadLocalRandom.current().nextBoolean()) {
+			prev[index] = -1;
+			next[index] = heads[b];
+			prev[heads[b]] = index;
+			heads[b] = index;
+		}
+		else {
+			next[index] = -1;
+			prev[index] = tails[b];
+			next[tails[b]] = index;
+			tails[b] = index;
+		}
+		lowest = Math.min(lowest, b);
+	}
+
+}
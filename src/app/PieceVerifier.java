@@ -0,0 +1,237 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PieceVerifier.java
+ * This class runs the worker threads that check the SHA1 hash of every completed piece,
+ * write verified pieces into the output file and record them with the client. Pieces are
+ * sharded across the workers by index, one worker per core by default, so peers on every
+ * event loop hand off their pieces without waiting for each other and hashing spreads over
+ * all of the cores instead of running on the thread of whichever peer finished the piece.
+ * Each worker reuses its own MessageDigest, and the output file is shared through one
+ * FileChannel whose positional writes need no lock.
+ *
+ * The queues of the workers are bounded by the peers feeding them: a peer with as many
+ * pieces waiting here as the client allows stops reading its socket until one of them
+ * has been checked, so a stalled disk slows the peers down through TCP flow control
+ * instead of piling up pieces in memory.
+ */
+public class PieceVerifier
+{
+	/** Constant for the default number of workers: one for every core. */
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/** Number of pieces that passed their hash check. */
+	final AtomicLong verified = new AtomicLong();
+	/** Number of pieces that failed their hash check. */
+	final AtomicLong failed = new AtomicLong();
+
+	// Number of pieces handed to the workers whose check hasn't finished, and the most there were
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+	// TorrentClient whose pieces are verified
+	private final TorrentClient client;
+	// Pieces handed to a worker whose check hasn't finished
+	private final PieceBitfield verifying;
+	// Workers; piece i is verified by worker i % workers.length
+	private final Worker[] workers;
+
+	/**
+	 * Constructor for the PieceVerifier class. The workers are started right away.
+	 * @param client the TorrentClient whose pieces are verified
+	 * @param numWorkers the number of worker threads
+	 */
+	public PieceVerifier(TorrentClient client, int numWorkers)
+	{
+		this.client = client;
+		verifying = new PieceBitfield(client.info.piece_hashes.length);
+		workers = new Worker[Math.max(1, numWorkers)];
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Worker("Piece verifier " + i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Hands a complete piece to the worker of its shard. The piece region belongs to the
+	 * verifier from then on and is returned to the pool once the piece has been checked, or
+	 * right away if the same piece is already being checked. The peer that delivered the
+	 * piece is told once the check has finished.
+	 * @param owner the peer that delivered the piece, or null
+	 * @param blamed the peer that delivered every block of the piece, which is blamed if the piece is bad, or null
+	 * @param index the index of the piece
+	 * @param piece the pooled region holding the piece between its position and limit
+	 * @return true if the piece was queued, false if it was dropped as a duplicate
+	 */
+	public boolean submit(Peer owner, Peer blamed, int index, ByteBuffer piece)
+	{
+		if (!verifying.set(index)) {	// another peer completed the same piece first
+			client.pool.releasePiece(piece);
+			return false;
+		}
+		int depth = queueDepth.incrementAndGet();
+		int peak = peakQueueDepth.get();
+		while (depth > peak && !peakQueueDepth.compareAndSet(peak, depth))
+		{
+			peak = peakQueueDepth.get();	// another submit raised the peak first
+		}
+		workers[index % workers.length].jobs.add(new Job(owner, blamed, index, piece));
+		return true;
+	}
+
+	/**
+	 * Returns the number of pieces waiting for or undergoing their check.
+	 * @return the current depth of the workers' queues together
+	 */
+	public int getQueueDepth()
+	{
+		return queueDepth.get();
+	}
+
+	/**
+	 * Returns the largest number of pieces that waited for their check at the same time.
+	 * @return the peak depth of the workers' queues together
+	 */
+	public int getPeakQueueDepth()
+	{
+		return peakQueueDepth.get();
+	}
+
+	/**
+	 * Returns whether a piece has been handed to a worker and is still being checked.
+	 * @param index the index of the piece
+	 * @return true if the piece is being verified, false otherwise
+	 */
+	public boolean isVerifying(int index)
+	{
+		return verifying.get(index);
+	}
+
+	/**
+	 * Stops the workers. Pieces still queued are dropped.
+	 */
+	public void shutdown()
+	{
+		for (Worker worker : workers)
+		{
+			worker.isRunning = false;
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return workers.length + " workers, " + verified + " pieces verified, " + failed + " failed, "
+				+ queueDepth + " queued (peak " + peakQueueDepth + ")";
+	}
+
+	/*
+	 * Checks one piece, then writes and records it if it is valid. Whatever the outcome,
+	 * the region goes back to the pool, the piece can be downloaded again unless it was
+	 * verified, and the peer that delivered it may read again.
+	 */
+	private void verify(MessageDigest sha1, Job job)
+	{
+		try {
+			if (!TorrentClient.verifySHA1(sha1, job.piece, client.info.piece_hashes[job.index])) {
+				System.err.println("Error: Piece " + job.index + " failed its hash check.");
+				failed.incrementAndGet();
+				if (job.blamed != null) {	// a piece put together from several peers blames none of them
+					client.peerManager.hashFailed(job.blamed);
+				}
+				return;
+			}
+			System.out.println("Piece " + job.index + " validated.");
+			client.writePiece(job.index, job.piece);
+			verified.incrementAndGet();
+			client.pieceCompleted(job.index);
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+		finally {
+			client.pool.releasePiece(job.piece);
+			verifying.clear(job.index);
+			queueDepth.decrementAndGet();
+			if (job.owner != null) {
+				job.owner.pieceVerified();
+			}
+		}
+	}
+
+	/*
+	 * A complete piece waiting to be checked.
+	 */
+	private static final class Job
+	{
+		final Peer owner;
+		final Peer blamed;
+		final int index;
+		final ByteBuffer piece;
+
+		Job(Peer owner, Peer blamed, int index, ByteBuffer piece)
+		{
+			this.owner = owner;
+			this.blamed = blamed;
+			this.index = index;
+			this.piece = piece;
+		}
+	}
+
+	/*
+	 * A thread checking the pieces of one shard in the order they were completed.
+	 */
+	private final class Worker extends Thread
+	{
+		// Determines if the thread is running or not
+		volatile boolean isRunning = true;
+		// Pieces of this shard waiting to be checked
+		final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+
+		Worker(String name)
+		{
+			super(name);
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			MessageDigest sha1;
+			try {
+				sha1 = MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException nsae) {
+				nsae.printStackTrace();
+				return;
+			}
+			while (isRunning)
+			{
+				try {
+					verify(sha1, jobs.take());
+				}
+				catch (InterruptedException ie) {
+					break;
+				}
+				catch (RuntimeException re) {	// one bad piece must not stop the shard
+					re.printStackTrace();
+				}
+			}	// end of while (isRunning)
+		}
+	}
+
+}
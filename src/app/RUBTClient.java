@@ -8,7 +8,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 
 import GivenTools.BencodingException;
 import GivenTools.TorrentInfo;
@@ -88,8 +87,8 @@ public class RUBTClient
 	{
 		final String torrentFileName, fileDestName;
 
-		if (args.length != 2) {
-			System.err.println("Command line argument structure: [torrent file name] [output file destination]");
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Command line argument structure: [torrent file name] [output file destination] [session recording (optional)]");
 			return;
 		}
 		
@@ -133,26 +132,12 @@ public class RUBTClient
 			catch (IOException ioe)
 			{	ioe.printStackTrace();	}
 			
-			client.localHostBitfield = checkPieces;
+			client.localHostBitfield = new PieceBitfield(checkPieces);
 			
-			int count = 0;
-			for (int i = 0; i< client.localHostBitfield.length; i++)
-			{
-				if (client.localHostBitfield[i] == true) {
-					count++;
-				}
-			}
-			System.out.println("Number of completed pieces: " + count + " out of " + client.localHostBitfield.length);
+			System.out.println("Number of completed pieces: " + client.localHostBitfield.cardinality() + " out of " + client.localHostBitfield.length());
 			
-			// search through the bitfield to determine if there are any missing pieces
-			boolean haveFullFile = true;
-			for (int i = 0; i < client.localHostBitfield.length; i++)
-			{
-				if (client.localHostBitfield[i] == false) {
-					haveFullFile = false;
-					break;
-				}
-			}
+			// the bitfield counts its pieces, so there are no missing pieces if every bit is set
+			boolean haveFullFile = client.localHostBitfield.isComplete();
 
 			if (haveFullFile) {
 				client.isDownloading = false;
@@ -174,15 +159,16 @@ public class RUBTClient
 			}
 			catch (IOException ioe)
 			{	ioe.printStackTrace();	}
-			client.localHostBitfield = new boolean[info.piece_hashes.length];
-			Arrays.fill(client.localHostBitfield, false);
+			client.localHostBitfield = new PieceBitfield(info.piece_hashes.length);
 		}
 		try {
+			if (args.length == 3) {	// capture the session so that SessionReplayer can play it back
+				client.record(new File(args[2]));
+			}
 			client.init();
 		}
 		catch (IOException ioe)
 		{	ioe.printStackTrace();	}
-		client.isRunning = true;
 		client.start();
 	}
 
@@ -0,0 +1,249 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SessionRecorder.java
+ * This class captures every framed message exchanged with every peer into a compact
+ * binary file, so that a session can later be fed back into the client by a
+ * SessionReplayer. Each record carries the peer it belongs to and a nanosecond
+ * timestamp relative to the start of the recording.
+ *
+ * The file starts with the magic number, the format version and the info hash, and
+ * is followed by records of the form [type][peer][nanos][body], where the body of a
+ * PEER record is the peer's address, peer ID and handshake, the body of an INBOUND or
+ * OUTBOUND record is the frame's length followed by the frame including its length
+ * prefix, and a CLOSE record has no body. All numbers are big-endian.
+ */
+public class SessionRecorder
+{
+	/** Magic number at the start of a recording ("RUBT"). */
+	public static final int MAGIC = 0x52554254;
+	/** Version of the recording format. */
+	public static final short VERSION = 1;
+
+	/** Record announcing a peer after its handshake. */
+	public static final byte PEER = 0;
+	/** Record of a frame received from a peer. */
+	public static final byte INBOUND = 1;
+	/** Record of a frame sent to a peer. */
+	public static final byte OUTBOUND = 2;
+	/** Record of a closed peer connection. */
+	public static final byte CLOSE = 3;
+
+	/** Length of the fields common to every record: type, peer and timestamp. */
+	public static final int RECORD_HEADER_LENGTH = 13;
+
+	// Size of the buffer that records are staged in before they are written
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Channel of the recording file
+	private final FileChannel file;
+	// Buffer that records are staged in, kept in fill mode
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	// Time the recording started, in nanoseconds
+	private final long startTime;
+	// Number handed to the next peer that is added
+	private int nextPeer = 0;
+	// True once the recording has been closed
+	private boolean isClosed = false;
+
+	/**
+	 * Constructor for the SessionRecorder class. Creates or truncates the file and writes its header.
+	 * @param recording the file that the session is recorded into
+	 * @param infoHash the 20-byte info hash of the torrent
+	 * @throws IOException
+	 */
+	public SessionRecorder(File recording, byte[] infoHash) throws IOException
+	{
+		file = new FileOutputStream(recording).getChannel();
+		startTime = System.nanoTime();
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.put(infoHash);
+	}
+
+	/**
+	 * Records a peer whose handshake was accepted and returns the number that identifies
+	 * it in the rest of the recording.
+	 * @param ip the IP address of the peer
+	 * @param port the port of the peer
+	 * @param peerID the 20-byte peer ID of the peer
+	 * @param handshake the 68-byte handshake the peer sent
+	 * @return the number of the peer
+	 * @throws IOException
+	 */
+	public synchronized int addPeer(String ip, int port, byte[] peerID, byte[] handshake) throws IOException
+	{
+		int peer = nextPeer++;
+		byte[] address = ip.getBytes(StandardCharsets.UTF_8);
+		startRecord(PEER, peer, 2 + address.length + 4 + 20 + handshake.length);
+		buffer.putShort((short) address.length);
+		buffer.put(address);
+		buffer.putInt(port);
+		buffer.put(peerID, 0, 20);
+		buffer.put(handshake);
+		return peer;
+	}
+
+	/**
+	 * Records a complete frame held in a buffer between two absolute positions, including
+	 * its length prefix. The buffer's position and limit are not changed.
+	 * @param peer the number of the peer
+	 * @param direction INBOUND or OUTBOUND
+	 * @param frame buffer holding the frame
+	 * @param start absolute position of the length prefix
+	 * @param end absolute position just after the frame
+	 * @throws IOException
+	 */
+	public synchronized void recordFrame(int peer, byte direction, ByteBuffer frame, int start, int end) throws IOException
+	{
+		startRecord(direction, peer, 4 + end - start);
+		buffer.putInt(end - start);
+		ByteBuffer src = frame.duplicate();
+		src.limit(end);
+		src.position(start);
+		put(src);
+	}
+
+	/**
+	 * Records a PIECE frame whose payload was read somewhere other than the frame's header.
+	 * @param peer the number of the peer
+	 * @param direction INBOUND or OUTBOUND
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece
+	 * @param payload buffer holding the payload between its position and limit, or null if the payload was not kept
+	 * @param length the length of the payload
+	 * @throws IOException
+	 */
+	public synchronized void recordPiece(int peer, byte direction, int index, int offset, ByteBuffer payload, int length) throws IOException
+	{
+		int frameLength = MessageCodec.PIECE_HEADER_LENGTH + length;
+		startRecord(direction, peer, 4 + MessageCodec.PIECE_HEADER_LENGTH);
+		buffer.putInt(frameLength);
+		buffer.putInt(9 + length);
+		buffer.put(Message.PIECE_ID);
+		buffer.putInt(index);
+		buffer.putInt(offset);
+		if (payload != null) {
+			put(payload.duplicate());
+			return;
+		}
+		// a skipped payload is recorded as zeros so that the frame keeps its length
+		for (int i = 0; i < length; i++)
+		{
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) 0);
+		}
+	}
+
+	/**
+	 * Records a message by encoding it as it would appear on the wire.
+	 * @param peer the number of the peer
+	 * @param direction INBOUND or OUTBOUND
+	 * @param msg the message
+	 * @throws IOException
+	 */
+	public synchronized void recordMessage(int peer, byte direction, Message msg) throws IOException
+	{
+		if (msg instanceof Message.Piece) {	// don't stage the whole block twice
+			Message.Piece piece = (Message.Piece) msg;
+			recordPiece(peer, direction, piece.index, piece.offset, piece.block, piece.block.remaining());
+			return;
+		}
+		startRecord(direction, peer, 4 + msg.getEncodedLength());
+		buffer.putInt(msg.getEncodedLength());
+		if (buffer.remaining() < msg.getEncodedLength()) {	// only very large bitfields
+			ByteBuffer large = ByteBuffer.allocate(msg.getEncodedLength());
+			Message.encode(msg, large);
+			large.flip();
+			put(large);
+			return;
+		}
+		Message.encode(msg, buffer);
+	}
+
+	/**
+	 * Records that the connection to a peer was closed.
+	 * @param peer the number of the peer
+	 * @throws IOException
+	 */
+	public synchronized void recordClose(int peer) throws IOException
+	{
+		startRecord(CLOSE, peer, 0);
+	}
+
+	/**
+	 * Writes out every staged record and closes the file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		try {
+			drain();
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/*
+	 * Makes room for the fixed part of a record and writes the fields common to every record.
+	 */
+	private void startRecord(byte type, int peer, int fixedLength) throws IOException
+	{
+		if (isClosed) {
+			throw new IOException("Error: Session recording is already closed.");
+		}
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + fixedLength) {
+			drain();
+		}
+		buffer.put(type);
+		buffer.putInt(peer);
+		buffer.putLong(System.nanoTime() - startTime);
+	}
+
+	/*
+	 * Copies a buffer into the recording, writing the staged bytes out whenever they fill up.
+	 */
+	private void put(ByteBuffer src) throws IOException
+	{
+		while (src.remaining() > buffer.remaining())
+		{
+			int oldLimit = src.limit();
+			src.limit(src.position() + buffer.remaining());
+			buffer.put(src);
+			src.limit(oldLimit);
+			drain();
+		}
+		buffer.put(src);
+	}
+
+	/*
+	 * Writes every staged byte to the file.
+	 */
+	private void drain() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			file.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,432 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import GivenTools.BencodingException;
+import GivenTools.TorrentInfo;
+
+/**
+ * SessionReplayer.java
+ * This class plays a session captured by a SessionRecorder back into a fresh
+ * TorrentClient. Every recorded peer is stood in for by a loopback server socket
+ * that answers the client's handshake with the recorded one and then writes the
+ * frames the peer originally sent, at their original times or at a multiple of
+ * that speed, regardless of what the client asks for. The client's own messages
+ * are read and counted but not answered, so that every replay of a recording
+ * delivers the same bytes in the same order, and changes to the decoder, the piece
+ * picker or storage can be measured against real traffic. Run it with
+ * java -cp bin app.SessionReplayer [torrent file] [session recording] [output file] [speed (optional)].
+ * A speed of 0 writes every frame as fast as the client reads it.
+ */
+public class SessionReplayer
+{
+	/** Number of milliseconds the client is given to finish after the last frame is written. */
+	public static final long GRACE_MILLIS = 10000;
+
+	// Metainfo of the recorded torrent
+	private final TorrentInfo info;
+	// Multiple of the original speed that frames are written at; 0 for no delay
+	private final double speed;
+	// Recorded peers, in the order they were added to the recording
+	private final ArrayList<RecordedPeer> peers = new ArrayList<RecordedPeer>();
+	// Number of frames recorded as sent by the client
+	private long recordedOutboundFrames = 0L;
+
+	/**
+	 * Constructor for the SessionReplayer class. Reads the whole recording, which is mapped
+	 * rather than copied, so the frames are written to the sockets straight from the file.
+	 * @param info metainfo of the recorded torrent
+	 * @param recording file written by a SessionRecorder
+	 * @param speed multiple of the original speed, or 0 to replay without delay
+	 * @throws IOException if the recording is malformed or belongs to another torrent
+	 */
+	public SessionReplayer(TorrentInfo info, File recording, double speed) throws IOException
+	{
+		this.info = info;
+		this.speed = speed;
+
+		RandomAccessFile raf = new RandomAccessFile(recording, "r");
+		MappedByteBuffer map;
+		try {
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close();
+		}
+
+		if (map.remaining() < 26 || map.getInt() != SessionRecorder.MAGIC) {
+			throw new IOException("Error: " + recording + " is not a session recording.");
+		}
+		if (map.getShort() != SessionRecorder.VERSION) {
+			throw new IOException("Error: " + recording + " was written by an unsupported version.");
+		}
+		byte[] infoHash = new byte[20];
+		map.get(infoHash);
+		if (!Arrays.equals(infoHash, info.info_hash.array())) {
+			throw new IOException("Error: " + recording + " was recorded for another torrent.");
+		}
+
+		while (map.remaining() >= SessionRecorder.RECORD_HEADER_LENGTH)
+		{
+			byte type = map.get();
+			int peer = map.getInt();
+			long time = map.getLong();
+			switch (type) {
+			case (SessionRecorder.PEER): {
+				byte[] address = new byte[map.getShort()];
+				map.get(address);
+				int port = map.getInt();
+				byte[] peerID = new byte[20];
+				map.get(peerID);
+				byte[] handshake = new byte[68];
+				map.get(handshake);
+				peers.add(new RecordedPeer(new String(address, StandardCharsets.UTF_8), port, peerID, handshake));
+				break;
+			}
+			case (SessionRecorder.INBOUND):
+			case (SessionRecorder.OUTBOUND): {
+				int length = map.getInt();
+				if (length < 4 || length > map.remaining()) {
+					throw new EOFException("Error: Frame of peer " + peer + " is cut off.");
+				}
+				if (type == SessionRecorder.INBOUND) {
+					getPeer(peer).add(time, map.position(), length);
+				}
+				else {
+					recordedOutboundFrames++;
+				}
+				map.position(map.position() + length);
+				break;
+			}
+			case (SessionRecorder.CLOSE):
+				break;
+			default:
+				throw new IOException("Error: Unknown record type " + type + ".");
+			}	// end of switch (type)
+		}	// end of while (map.remaining() >= ...)
+
+		for (RecordedPeer p : peers)
+		{
+			p.recording = map;
+		}
+	}
+
+	/*
+	 * Returns the recorded peer with the given number.
+	 */
+	private RecordedPeer getPeer(int peer) throws IOException
+	{
+		if (peer < 0 || peer >= peers.size()) {
+			throw new IOException("Error: Frame belongs to unknown peer " + peer + ".");
+		}
+		return peers.get(peer);
+	}
+
+	/**
+	 * Replays the session into a new TorrentClient writing to the output file, and prints
+	 * how long the client took and how much it received.
+	 * @param outputFile the file the client downloads into; it is replaced
+	 * @return true if the client completed the file, false otherwise
+	 * @throws Exception
+	 */
+	public boolean replay(File outputFile) throws Exception
+	{
+		if (outputFile.exists() && !outputFile.delete()) {
+			throw new IOException("Error: Could not replace " + outputFile + ".");
+		}
+		outputFile.createNewFile();
+
+		TorrentClient client = new TorrentClient(info, outputFile);
+		client.localHostBitfield = new PieceBitfield(info.piece_hashes.length);
+		ArrayList<Peer> loopbackPeers = new ArrayList<Peer>();
+		ArrayList<Feeder> feeders = new ArrayList<Feeder>();
+		long startTime = System.nanoTime();
+		for (RecordedPeer p : peers)
+		{
+			Feeder feeder = new Feeder(p, startTime);
+			feeder.start();
+			feeders.add(feeder);
+			loopbackPeers.add(new Peer(p.peerID, feeder.getPort(), "127.0.0.1", client));
+		}
+
+		client.init(loopbackPeers);
+		client.start();
+
+		long framesWritten = 0L;
+		long bytesWritten = 0L;
+		long bytesRead = 0L;
+		for (Feeder feeder : feeders)
+		{
+			feeder.join();
+			framesWritten += feeder.framesWritten;
+			bytesWritten += feeder.bytesWritten;
+		}
+		client.join(GRACE_MILLIS);
+		long elapsed = System.nanoTime() - startTime;
+		boolean isComplete = client.isDownloadComplete;
+		if (client.isAlive()) {
+			client.close();
+		}
+		for (Feeder feeder : feeders)
+		{
+			feeder.close();
+			bytesRead += feeder.bytesRead;
+		}
+
+		int verified = client.localHostBitfield.cardinality();
+		System.out.println(String.format(Locale.ROOT, "Replayed %d frames (%d bytes) from %d peers at speed %s in %.3f seconds.",
+				framesWritten, bytesWritten, peers.size(), (speed == 0) ? "max" : Double.toString(speed), elapsed / 1e9));
+		System.out.println(String.format(Locale.ROOT, "Verified %d of %d pieces, %.1f KiB/s; client sent %d bytes (%d frames recorded).",
+				verified, client.localHostBitfield.length(), bytesWritten / 1024.0 / (elapsed / 1e9), bytesRead, recordedOutboundFrames));
+		return isComplete;
+	}
+
+	/**
+	 * Main method for SessionReplayer.java.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length != 3 && args.length != 4) {
+			System.err.println("Command line argument structure: [torrent file name] [session recording] [output file destination] [speed (optional)]");
+			return;
+		}
+		double speed = (args.length == 4) ? Double.parseDouble(args[3]) : 1.0;
+		if (speed < 0) {
+			System.err.println("Error: Speed must not be negative.");
+			return;
+		}
+		TorrentInfo info;
+		try {
+			info = new TorrentInfo(Files.readAllBytes(new File(args[0]).toPath()));
+		}
+		catch (BencodingException be) {
+			System.err.println("Error: " + args[0] + " is not a valid torrent file.");
+			return;
+		}
+		new SessionReplayer(info, new File(args[1]), speed).replay(new File(args[2]));
+	}
+
+	/**
+	 * A peer of the recording and the frames it sent, kept as positions in the mapped recording.
+	 */
+	static final class RecordedPeer
+	{
+		/** Address the peer was recorded at. */
+		final String ip;
+		/** Port the peer was recorded at. */
+		final int port;
+		/** Peer ID of the peer. */
+		final byte[] peerID;
+		/** Handshake the peer sent. */
+		final byte[] handshake;
+
+		/** Mapped recording holding the frames. */
+		ByteBuffer recording;
+		/** Time of each frame in nanoseconds after the start of the recording. */
+		long[] times = new long[64];
+		/** Position of each frame in the recording. */
+		int[] positions = new int[64];
+		/** Length of each frame, including its length prefix. */
+		int[] lengths = new int[64];
+		/** Number of frames. */
+		int count = 0;
+
+		/**
+		 * Constructor for the RecordedPeer class.
+		 * @param ip
+		 * @param port
+		 * @param peerID
+		 * @param handshake
+		 */
+		RecordedPeer(String ip, int port, byte[] peerID, byte[] handshake)
+		{
+			this.ip = ip;
+			this.port = port;
+			this.peerID = peerID;
+			this.handshake = handshake;
+		}
+
+		/**
+		 * Adds a frame sent by the peer.
+		 * @param time nanoseconds after the start of the recording
+		 * @param position position of the frame in the recording
+		 * @param length length of the frame
+		 */
+		void add(long time, int position, int length)
+		{
+			if (count == times.length) {
+				times = Arrays.copyOf(times, count * 2);
+				positions = Arrays.copyOf(positions, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+			}
+			times[count] = time;
+			positions[count] = position;
+			lengths[count] = length;
+			count++;
+		}
+	}
+
+	/**
+	 * A thread standing in for one recorded peer on a loopback socket.
+	 */
+	final class Feeder extends Thread
+	{
+		/** Number of frames written to the client. */
+		volatile long framesWritten = 0L;
+		/** Number of bytes written to the client. */
+		volatile long bytesWritten = 0L;
+		/** Number of bytes the client sent after its handshake. */
+		volatile long bytesRead = 0L;
+
+		// Peer this thread stands in for
+		private final RecordedPeer peer;
+		// Time the replay started, in nanoseconds
+		private final long startTime;
+		// Socket the client connects to
+		private final ServerSocketChannel server;
+		// Connection to the client
+		private volatile SocketChannel channel;
+
+		/**
+		 * Constructor for the Feeder class. Opens the loopback socket right away so that
+		 * the client can connect as soon as the thread is started.
+		 * @param peer the recorded peer
+		 * @param startTime time the replay started, in nanoseconds
+		 * @throws IOException
+		 */
+		Feeder(RecordedPeer peer, long startTime) throws IOException
+		{
+			super("Replay of " + peer.ip + ":" + peer.port);
+			this.peer = peer;
+			this.startTime = startTime;
+			server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			setDaemon(true);
+		}
+
+		/**
+		 * Returns the loopback port the client must connect to.
+		 * @return the port number
+		 */
+		int getPort()
+		{
+			return server.socket().getLocalPort();
+		}
+
+		/**
+		 * @see java.lang.Thread#run()
+		 */
+		public void run()
+		{
+			try {
+				channel = server.accept();
+				channel.socket().setTcpNoDelay(true);
+				ByteBuffer handshake = ByteBuffer.allocate(68);
+				while (handshake.hasRemaining())
+				{
+					if (channel.read(handshake) == -1) {
+						throw new EOFException("Error: Client closed the connection during the handshake.");
+					}
+				}
+				writeFully(ByteBuffer.wrap(peer.handshake));
+				startDrain();
+
+				ByteBuffer recording = peer.recording.duplicate();
+				for (int i = 0; i < peer.count; i++)
+				{
+					if (speed > 0) {	// wait until the frame's recorded time, scaled to the replay speed
+						long due = startTime + (long) (peer.times[i] / speed);
+						long wait;
+						while ((wait = due - System.nanoTime()) > 0)
+						{
+							Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						}
+					}
+					recording.limit(peer.positions[i] + peer.lengths[i]);
+					recording.position(peer.positions[i]);
+					writeFully(recording);
+					framesWritten++;
+					bytesWritten += peer.lengths[i];
+				}
+			}
+			catch (InterruptedException ie) {
+				return;
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Replay of " + peer.ip + ":" + peer.port + " stopped: " + ioe.getMessage());
+			}
+		}
+
+		/*
+		 * Starts a thread reading and counting whatever the client sends, so that the client
+		 * never blocks on a full socket.
+		 */
+		private void startDrain()
+		{
+			Thread drain = new Thread("Drain of " + getName()) {
+				public void run()
+				{
+					ByteBuffer sink = ByteBuffer.allocateDirect(MessageCodec.DEFAULT_BUFFER_SIZE);
+					try {
+						int n;
+						while ((n = channel.read(sink)) != -1)
+						{
+							bytesRead += n;
+							sink.clear();
+						}
+					}
+					catch (IOException ioe)
+					{	return;	}
+				}
+			};
+			drain.setDaemon(true);
+			drain.start();
+		}
+
+		/*
+		 * Writes a buffer to the client completely.
+		 */
+		private void writeFully(ByteBuffer buf) throws IOException
+		{
+			while (buf.hasRemaining())
+			{
+				channel.write(buf);
+			}
+		}
+
+		/**
+		 * Closes the connection to the client and the loopback socket.
+		 */
+		void close()
+		{
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				server.close();
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * StreamServer.java
+ * This class serves the file being downloaded over HTTP on the loopback interface, so that a
+ * media player can play it while it downloads. Requests may ask for a byte range, as players
+ * do when they seek, and each response is written as soon as the pieces it covers are
+ * verified: the thread serving it waits for the next piece only when it gets there. Every
+ * read moves the client's PiecePicker cursor to the piece being read, so the pieces right
+ * after it are downloaded first, in order.
+ *
+ * Players need the container's index before they can start, and for MP4 files it may sit at
+ * either end. The first and last pieces are wanted before any other, and for MP4 files the
+ * top-level boxes are walked as their headers arrive, which leads to the moov box wherever
+ * it is; its pieces are then wanted first as well.
+ */
+public class StreamServer
+{
+	/** Constant for the default number of bytes downloaded ahead of the playback position. */
+	public static final int DEFAULT_READAHEAD = 16 * 1024 * 1024;
+	/** Number of requests served at the same time. */
+	public static final int MAX_STREAMS = 8;
+	/** Number of bytes read from the file and written to a response at a time. */
+	public static final int CHUNK_SIZE = 64 * 1024;
+	/** Number of milliseconds between two checks whether the server stopped, while a request waits for a piece. */
+	public static final long WAIT_MILLIS = 1000;
+
+	/** Number of requests answered. */
+	final AtomicLong requests = new AtomicLong();
+	/** Number of bytes of the file written to responses. */
+	final AtomicLong bytesServed = new AtomicLong();
+	/** Number of times a response waited for a piece to be verified. */
+	final AtomicLong waits = new AtomicLong();
+
+	// TorrentClient whose file is served
+	private final TorrentClient client;
+	// Server bound to the loopback interface, and the threads answering its requests
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// Determines if the server is running
+	private volatile boolean isRunning = true;
+	// Offset of the next top-level MP4 box whose header hasn't been read, or -1 once the moov box is found
+	private volatile long nextBox;
+	// Buffer the box headers are read into; guarded by the server's lock
+	private final ByteBuffer header = ByteBuffer.allocate(16);
+
+	/**
+	 * Constructor for the StreamServer class. Binds the server, puts the client's piece
+	 * picker into streaming mode, and starts answering requests.
+	 * @param client the TorrentClient whose file is served
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param readahead the number of bytes downloaded ahead of the playback position
+	 * @throws IOException if the port can't be bound
+	 */
+	public StreamServer(TorrentClient client, int port, int readahead) throws IOException
+	{
+		this.client = client;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = Executors.newFixedThreadPool(MAX_STREAMS, new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Stream server");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				try {
+					serve(exchange);
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+
+		int pieces = client.info.piece_hashes.length;
+		client.picker.setReadahead(Math.max(1, readahead / client.info.piece_length));
+		client.picker.setCursor(0);
+		client.picker.prioritize(0);
+		client.picker.prioritize(pieces - 1);
+		nextBox = isMp4() ? 0L : -1L;
+		findIndex();
+		server.start();
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * @return the port number
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Wakes the requests waiting for a piece, and follows the MP4 boxes further if the
+	 * piece holds the next box header. Called by the client's PieceVerifier workers for every
+	 * verified piece, so any other piece returns right away.
+	 * @param index the index of the verified piece
+	 */
+	public void pieceCompleted(int index)
+	{
+		long box = nextBox;
+		if (box != -1L) {
+			long headerEnd = Math.min(client.info.file_length, box + header.capacity()) - 1;
+			if (index >= box / client.info.piece_length && index <= headerEnd / client.info.piece_length) {
+				findIndex();
+			}
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stops the server. Requests waiting for a piece end without the rest of their bytes.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "port " + getPort() + ": " + requests + " requests, " + bytesServed + " bytes served, "
+				+ waits + " waits for pieces";
+	}
+
+	/*
+	 * Answers a GET or HEAD request with the whole file or the byte range asked for.
+	 */
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		requests.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		boolean isHead = method.equals("HEAD");
+		Headers headers = exchange.getResponseHeaders();
+		if (!isHead && !method.equals("GET")) {
+			headers.set("Allow", "GET, HEAD");
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		long length = client.info.file_length;
+		headers.set("Accept-Ranges", "bytes");
+		headers.set("Content-Type", getContentType());
+
+		long start = 0L;
+		long end = length - 1;
+		int status = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null) {
+			long[] bounds = parseRange(range, length);
+			if (bounds == null) {
+				headers.set("Content-Range", "bytes */" + length);
+				exchange.sendResponseHeaders(416, -1);
+				return;
+			}
+			start = bounds[0];
+			end = bounds[1];
+			status = 206;
+			headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+		}
+		if (isHead) {
+			headers.set("Content-Length", Long.toString(end - start + 1));
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, end - start + 1);
+
+		OutputStream body = exchange.getResponseBody();
+		FileChannel ch = client.getFileChannel();
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		long position = start;
+		while (position <= end)
+		{
+			int index = (int) (position / client.info.piece_length);
+			client.picker.setCursor(index);
+			if (!awaitPiece(index)) {
+				return;	// stopped; the response ends short
+			}
+			long pieceEnd = (long) index * client.info.piece_length + client.getPieceLength(index);
+			chunk.clear();
+			chunk.limit((int) Math.min(CHUNK_SIZE, Math.min(end + 1, pieceEnd) - position));
+			while (chunk.hasRemaining())
+			{
+				if (ch.read(chunk, position + chunk.position()) == -1) {
+					throw new IOException("Error: Output file ends before byte " + (position + chunk.position()) + ".");
+				}
+			}
+			body.write(chunk.array(), 0, chunk.limit());
+			position += chunk.limit();
+			bytesServed.addAndGet(chunk.limit());
+		}
+		body.flush();
+	}
+
+	/*
+	 * Waits until a piece is verified. Returns false if the server stopped first.
+	 */
+	private boolean awaitPiece(int index)
+	{
+		if (client.localHostBitfield.get(index)) {
+			return true;
+		}
+		waits.incrementAndGet();
+		synchronized (this) {
+			while (isRunning && !client.localHostBitfield.get(index))
+			{
+				try {
+					wait(WAIT_MILLIS);
+				}
+				catch (InterruptedException ie) {
+					return false;
+				}
+			}
+		}
+		return isRunning;
+	}
+
+	/*
+	 * Walks the top-level MP4 boxes as far as their headers are verified, and wants the
+	 * piece of the next header, or the pieces of the moov box once it is reached, first.
+	 */
+	private synchronized void findIndex()
+	{
+		long length = client.info.file_length;
+		try {
+			while (nextBox != -1L && nextBox + 8 <= length)
+			{
+				int first = (int) (nextBox / client.info.piece_length);
+				int last = (int) (Math.min(length, nextBox + 16) - 1) / client.info.piece_length;
+				if (!client.localHostBitfield.get(first) || !client.localHostBitfield.get(last)) {
+					client.picker.prioritize(first);
+					client.picker.prioritize(last);
+					return;
+				}
+				header.clear();
+				header.limit((int) Math.min(16, length - nextBox));
+				FileChannel ch = client.getFileChannel();
+				while (header.hasRemaining())
+				{
+					if (ch.read(header, nextBox + header.position()) == -1) {
+						break;
+					}
+				}
+				header.flip();
+				long size = header.getInt() & 0xFFFFFFFFL;
+				boolean isMoov = header.get() == 'm' && header.get() == 'o' && header.get() == 'o' && header.get() == 'v';
+				if (size == 1 && header.remaining() >= 8) {	// 64-bit size after the type
+					header.position(8);
+					size = header.getLong();
+				}
+				else if (size == 0) {	// the box runs to the end of the file
+					size = length - nextBox;
+				}
+				if (size < 8) {	// not an MP4 file after all
+					nextBox = -1L;
+					return;
+				}
+				if (isMoov) {
+					System.out.println("Streaming: moov box at byte " + nextBox + ", " + size + " bytes.");
+					for (long i = nextBox / client.info.piece_length; i <= (Math.min(length, nextBox + size) - 1) / client.info.piece_length; i++)
+					{
+						client.picker.prioritize((int) i);
+					}
+					nextBox = -1L;
+					return;
+				}
+				nextBox += size;
+			}
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+	}
+
+	/*
+	 * Returns whether the file is an MP4 container, from its name.
+	 */
+	private boolean isMp4()
+	{
+		String name = client.info.file_name.toLowerCase();
+		return name.endsWith(".mp4") || name.endsWith(".m4v") || name.endsWith(".m4a") || name.endsWith(".mov");
+	}
+
+	/*
+	 * Returns the media type of the file, from its name.
+	 */
+	private String getContentType()
+	{
+		String name = client.info.file_name.toLowerCase();
+		if (name.endsWith(".mp4") || name.endsWith(".m4v")) {
+			return "video/mp4";
+		}
+		if (name.endsWith(".mov")) {
+			return "video/quicktime";
+		}
+		if (name.endsWith(".mkv")) {
+			return "video/x-matroska";
+		}
+		if (name.endsWith(".webm")) {
+			return "video/webm";
+		}
+		if (name.endsWith(".mp3")) {
+			return "audio/mpeg";
+		}
+		return "application/octet-stream";
+	}
+
+	/**
+	 * Parses a Range header with a single byte range: "bytes=first-last", "bytes=first-",
+	 * or "bytes=-suffix" for the last bytes of the file.
+	 * @param range the value of the header
+	 * @param length the length of the file
+	 * @return the first and last byte of the range, or null if it can't be satisfied
+	 */
+	public static long[] parseRange(String range, long length)
+	{
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1 || length == 0) {
+			return null;
+		}
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start;
+			long end;
+			if (first.isEmpty()) {	// suffix
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) {
+					return null;
+				}
+				start = Math.max(0L, length - suffix);
+				end = length - 1;
+			}
+			else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(last));
+			}
+			if (start < 0 || start >= length || end < start) {
+				return null;
+			}
+			return new long[] {start, end};
+		}
+		catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+}
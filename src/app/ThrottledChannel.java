@@ -0,0 +1,277 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * ThrottledChannel.java
+ * This class sits between a peer's codec and outbox and its connection, and moves only as
+ * many bytes as the peer's download and upload TokenBuckets grant. When a bucket runs dry a
+ * read or write returns 0, just like a non-blocking channel with nothing to read or no room
+ * to write, and the peer asks how long to wait before trying again. Every read and write is
+ * charged with an estimate of the TCP/IP or uTP/UDP/IP headers of the packets that carried
+ * it, so that limits bound what goes over the wire rather than the payload alone. While no
+ * level of a bucket has a rate, reads and writes go straight through and are only counted.
+ */
+public class ThrottledChannel implements ReadableByteChannel, GatheringByteChannel
+{
+	/** Header bytes of a TCP segment over IPv4. */
+	public static final int TCP_OVERHEAD = 40;
+	/** Payload bytes of a full TCP segment on an Ethernet link. */
+	public static final int TCP_SEGMENT = 1460;
+	/** Header bytes of a uTP packet over UDP and IPv4. */
+	public static final int UTP_OVERHEAD = UtpSocket.HEADER_LENGTH + 28;
+	/** Number of bytes worth of tokens a throttled peer waits for before trying again. */
+	public static final int WAKE_BYTES = 16 * 1024;
+
+	/** Bucket limiting the bytes read from the peer. */
+	final TokenBucket download;
+	/** Bucket limiting the bytes written to the peer. */
+	final TokenBucket upload;
+
+	// Connection to the peer, in both directions
+	private ReadableByteChannel in;
+	private GatheringByteChannel out;
+	// Header bytes of every packet, and the payload bytes a packet carries at most
+	private int overhead = TCP_OVERHEAD;
+	private int segment = TCP_SEGMENT;
+	// True if the last read or write was refused for lack of tokens
+	private boolean isReadThrottled = false;
+	private boolean isWriteThrottled = false;
+
+	/**
+	 * Constructor for the ThrottledChannel class.
+	 * @param download the bucket limiting the bytes read
+	 * @param upload the bucket limiting the bytes written
+	 */
+	public ThrottledChannel(TokenBucket download, TokenBucket upload)
+	{
+		this.download = download;
+		this.upload = upload;
+	}
+
+	/**
+	 * Connects the throttle to the peer's connection, and counts the peer as drawing from
+	 * its buckets until it is detached.
+	 * @param in the channel read from
+	 * @param out the channel written to
+	 * @param overhead the header bytes of every packet
+	 * @param segment the payload bytes of a full packet
+	 */
+	public void attach(ReadableByteChannel in, GatheringByteChannel out, int overhead, int segment)
+	{
+		this.in = in;
+		this.out = out;
+		this.overhead = overhead;
+		this.segment = segment;
+		download.attach();
+		upload.attach();
+	}
+
+	/**
+	 * Stops counting the peer as drawing from its buckets. Only call once, after attach.
+	 */
+	public void detach()
+	{
+		download.detach();
+		upload.detach();
+	}
+
+	/**
+	 * Reads as many bytes as the download bucket grants.
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	public int read(ByteBuffer dst) throws IOException
+	{
+		if (download.isUnlimited()) {
+			isReadThrottled = false;
+			int n = in.read(dst);
+			if (n > 0) {
+				download.record(charge(n));
+			}
+			return n;
+		}
+		int allowed = download.grant(dst.remaining());
+		isReadThrottled = allowed == 0 && dst.hasRemaining();
+		if (isReadThrottled) {
+			return 0;
+		}
+		int limit = dst.limit();
+		dst.limit(dst.position() + allowed);
+		int n;
+		try {
+			n = in.read(dst);
+		}
+		finally {
+			dst.limit(limit);
+		}
+		if (n > 0) {
+			download.consume(charge(n));
+		}
+		return n;
+	}
+
+	/**
+	 * Writes as many bytes as the upload bucket grants.
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write(ByteBuffer src) throws IOException
+	{
+		if (upload.isUnlimited()) {
+			isWriteThrottled = false;
+			int n = out.write(src);
+			if (n > 0) {
+				upload.record(charge(n));
+			}
+			return n;
+		}
+		int allowed = upload.grant(src.remaining());
+		isWriteThrottled = allowed == 0 && src.hasRemaining();
+		if (isWriteThrottled) {
+			return 0;
+		}
+		int limit = src.limit();
+		src.limit(src.position() + allowed);
+		int n;
+		try {
+			n = out.write(src);
+		}
+		finally {
+			src.limit(limit);
+		}
+		if (n > 0) {
+			upload.consume(charge(n));
+		}
+		return n;
+	}
+
+	/**
+	 * Writes as many bytes as the upload bucket grants, cutting the gathered buffers short
+	 * where the grant ends.
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		if (upload.isUnlimited()) {
+			isWriteThrottled = false;
+			long n = out.write(srcs, offset, length);
+			if (n > 0) {
+				upload.record(charge(n));
+			}
+			return n;
+		}
+		long total = 0L;
+		for (int i = offset; i < offset + length; i++)
+		{
+			total += srcs[i].remaining();
+		}
+		int allowed = upload.grant((int) Math.min(total, Integer.MAX_VALUE));
+		isWriteThrottled = allowed == 0 && total > 0;
+		if (isWriteThrottled) {
+			return 0L;
+		}
+		// end the write at the buffer where the grant runs out
+		int end = offset;
+		long room = allowed;
+		ByteBuffer cut = null;
+		int cutLimit = 0;
+		while (end < offset + length && room > 0)
+		{
+			ByteBuffer b = srcs[end++];
+			if (b.remaining() > room) {
+				cut = b;
+				cutLimit = b.limit();
+				b.limit(b.position() + (int) room);
+			}
+			room -= b.remaining();
+		}
+		long n;
+		try {
+			n = out.write(srcs, offset, end - offset);
+		}
+		finally {
+			if (cut != null) {
+				cut.limit(cutLimit);
+			}
+		}
+		if (n > 0) {
+			upload.consume(charge(n));
+		}
+		return n;
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])
+	 */
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Returns whether the last read was refused for lack of download tokens.
+	 * @return true if reading should wait for getReadDelayMillis, false otherwise
+	 */
+	public boolean isReadThrottled()
+	{
+		return isReadThrottled;
+	}
+
+	/**
+	 * Returns whether the last write was refused for lack of upload tokens.
+	 * @return true if writing should wait for getWriteDelayMillis, false otherwise
+	 */
+	public boolean isWriteThrottled()
+	{
+		return isWriteThrottled;
+	}
+
+	/**
+	 * Returns how long until reading is worth trying again.
+	 * @return the delay in milliseconds
+	 */
+	public long getReadDelayMillis()
+	{
+		return download.getDelayMillis(WAKE_BYTES);
+	}
+
+	/**
+	 * Returns how long until writing is worth trying again.
+	 * @return the delay in milliseconds
+	 */
+	public long getWriteDelayMillis()
+	{
+		return upload.getDelayMillis(WAKE_BYTES);
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen()
+	{
+		return in != null && in.isOpen();
+	}
+
+	/**
+	 * Does nothing; the peer closes its connection itself.
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close()
+	{
+	}
+
+	/*
+	 * Returns the bytes charged for a payload: the payload and the headers of the packets
+	 * carrying it.
+	 */
+	private long charge(long n)
+	{
+		return n + ((n + segment - 1) / segment) * overhead;
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.util.ArrayList;
+
+/**
+ * TimerWheel.java
+ * This class runs a single thread that fires the timeouts of the whole client: connection
+ * and handshake timeouts, keep-alives, idle and request timeouts of every peer, and the
+ * tracker's re-announces. Timeouts are kept in a hashed timer wheel, a ring of buckets
+ * that the thread advances one bucket per tick; a timeout is hashed into the bucket of
+ * the tick it is due on, so scheduling, rescheduling and cancelling it take constant time
+ * no matter how many timeouts are pending. A timeout fires up to one tick late.
+ *
+ * Tasks run on the wheel's thread and must be short; anything that blocks or touches
+ * state owned by another thread should hand itself off to that thread.
+ */
+public class TimerWheel extends Thread
+{
+	/** Number of milliseconds between two ticks of the wheel. */
+	public static final long TICK_MILLIS = 100;
+	/** Number of buckets in the wheel; a power of two. */
+	public static final int WHEEL_SIZE = 512;
+
+	/** Determines if the thread is running or not. */
+	volatile boolean isRunning = true;
+
+	// Heads of the circular lists of timeouts in every bucket
+	private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+	// Number of ticks processed so far
+	private long currentTick = 0L;
+	// Tasks of the timeouts expired in the current tick, reused between ticks
+	private final ArrayList<Runnable> expired = new ArrayList<Runnable>();
+
+	/**
+	 * Constructor for the TimerWheel class.
+	 */
+	public TimerWheel()
+	{
+		super("Timer wheel");
+		setDaemon(true);
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{
+			buckets[i] = new Timeout(null);
+		}
+	}
+
+	/**
+	 * Schedules a task to run once after a delay.
+	 * @param task the task to run on the wheel's thread
+	 * @param delayMillis the delay in milliseconds
+	 * @return the timeout, which can be rescheduled or cancelled
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMillis)
+	{
+		Timeout timeout = new Timeout(task);
+		insert(timeout, delayMillis);
+		return timeout;
+	}
+
+	/**
+	 * Moves a timeout to fire after a new delay, whether it is pending, has fired or was
+	 * cancelled.
+	 * @param timeout the timeout
+	 * @param delayMillis the delay in milliseconds
+	 */
+	public synchronized void reschedule(Timeout timeout, long delayMillis)
+	{
+		timeout.unlink();
+		insert(timeout, delayMillis);
+	}
+
+	/**
+	 * Cancels a timeout. Does nothing if it has already fired or was cancelled.
+	 * @param timeout the timeout
+	 */
+	public synchronized void cancel(Timeout timeout)
+	{
+		timeout.unlink();
+	}
+
+	/**
+	 * Stops the wheel. Pending timeouts never fire.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		interrupt();
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run()
+	{
+		long tickNanos = TICK_MILLIS * 1000000L;
+		long nextTick = System.nanoTime() + tickNanos;
+		while (isRunning)
+		{
+			long sleep = nextTick - System.nanoTime();
+			if (sleep > 0) {	// otherwise the wheel is behind and catches up tick by tick
+				try {
+					Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+				}
+				catch (InterruptedException ie) {
+					break;
+				}
+			}
+			nextTick += tickNanos;
+			synchronized (this) {
+				currentTick++;
+				Timeout head = buckets[(int) (currentTick & (WHEEL_SIZE - 1))];
+				Timeout timeout = head.next;
+				while (timeout != head)
+				{
+					Timeout next = timeout.next;
+					if (timeout.deadline <= currentTick) {	// later ones are a full turn or more away
+						timeout.unlink();
+						expired.add(timeout.task);
+					}
+					timeout = next;
+				}
+			}
+			// tasks run without the lock, so they can reschedule themselves
+			for (int i = 0; i < expired.size(); i++)
+			{
+				try {
+					expired.get(i).run();
+				}
+				catch (RuntimeException re)
+				{	re.printStackTrace();	}
+			}
+			expired.clear();
+		}	// end of while (isRunning)
+	}
+
+	/*
+	 * Links a timeout into the bucket of the tick it is due on. Called with the lock held.
+	 */
+	private void insert(Timeout timeout, long delayMillis)
+	{
+		long ticks = Math.max(1L, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+		timeout.deadline = currentTick + ticks;
+		Timeout head = buckets[(int) (timeout.deadline & (WHEEL_SIZE - 1))];
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+	}
+
+	/**
+	 * A task scheduled on the wheel. It sits in the list of one bucket while it is pending.
+	 */
+	public static final class Timeout
+	{
+		// Task to run once the timeout is due
+		private final Runnable task;
+		// Tick the timeout is due on
+		private long deadline;
+		// Neighbours in the bucket's list; both point at the timeout itself when it isn't pending
+		private Timeout prev = this;
+		private Timeout next = this;
+
+		/**
+		 * Constructor for the Timeout class.
+		 * @param task the task to run, or null for the head of a bucket
+		 */
+		Timeout(Runnable task)
+		{
+			this.task = task;
+		}
+
+		/**
+		 * Returns whether the timeout is waiting to fire. Only exact while the wheel is
+		 * locked.
+		 * @return true if the timeout is pending, false if it fired or was cancelled
+		 */
+		public boolean isPending()
+		{
+			return next != this;
+		}
+
+		/*
+		 * Removes the timeout from its bucket's list, if it is in one.
+		 */
+		private void unlink()
+		{
+			prev.next = next;
+			next.prev = prev;
+			prev = this;
+			next = this;
+		}
+	}
+
+}
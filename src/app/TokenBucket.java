@@ -0,0 +1,270 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TokenBucket.java
+ * This class limits a rate of bytes, such as a peer's download rate. Tokens accrue at the
+ * bucket's rate up to a burst of BURST_MILLIS worth of them, and every byte read or written
+ * takes one. Buckets form a hierarchy: a peer's bucket has its torrent's bucket as parent,
+ * which has the process-wide bucket as parent, and bytes are only granted when every level
+ * has tokens for them, so each level is bounded no matter how many peers share it. A rate
+ * of 0 leaves a level unlimited, and rates may be changed at any time.
+ *
+ * Levels are locked one at a time, so peers granted bytes at the same moment may overdraw a
+ * shared level slightly; the debt is paid back before it grants again, which keeps the long
+ * run rate exact. Under contention no grant is larger than an equal share of the burst
+ * among the peers attached to a level, so one peer can't drain a shared level for the rest.
+ *
+ * Unlimited levels take no lock: their byte counts are kept in LongAdders, and a chain of
+ * unlimited levels is recognised from a cached flag, so that peers on different event loops
+ * don't meet on the process-wide bucket's monitor unless some level actually has a rate.
+ */
+public class TokenBucket
+{
+	/** Number of milliseconds of tokens a bucket holds at most. */
+	public static final long BURST_MILLIS = 250;
+	/** Smallest number of tokens a limited bucket holds at most, so that slow rates still move whole blocks. */
+	public static final int MIN_BURST = 16 * 1024;
+	/** Smallest grant under contention, about one packet. */
+	public static final int MIN_SHARE = 1460;
+
+	/** Number of bytes taken from this bucket, including protocol overhead. */
+	final LongAdder bytes = new LongAdder();
+	/** Number of times a grant was refused for lack of tokens. */
+	long throttles = 0L;
+
+	// Bucket above this one, or null at the top
+	private final TokenBucket parent;
+	// Rate in bytes per second, or 0 if unlimited
+	private volatile long rate;
+	// Most tokens the bucket holds, and the tokens it holds now, negative while in debt
+	private long capacity;
+	private double tokens;
+	// Time tokens were last added, in nanoseconds
+	private long lastRefill = System.nanoTime();
+	// Number of peers currently drawing from this bucket
+	private int users = 0;
+	// Bumped by every rate change, which may change whether any chain of buckets is unlimited
+	private static volatile int generation = 0;
+	// Generation the cached answer of isUnlimited was computed in, times 2, plus 1 if it was unlimited; -1 if none
+	private volatile int unlimitedState = -1;
+
+	/**
+	 * Constructor for the TokenBucket class. The bucket starts full.
+	 * @param parent the bucket above this one, or null
+	 * @param rate the rate in bytes per second, or 0 for no limit
+	 */
+	public TokenBucket(TokenBucket parent, long rate)
+	{
+		this.parent = parent;
+		setRate(rate);
+		tokens = capacity;
+	}
+
+	/**
+	 * Changes the rate of this bucket. Tokens held beyond the new burst are dropped.
+	 * @param bytesPerSecond the rate in bytes per second, or 0 for no limit
+	 */
+	public synchronized void setRate(long bytesPerSecond)
+	{
+		refill(System.nanoTime());
+		rate = Math.max(0L, bytesPerSecond);
+		capacity = Math.max(MIN_BURST, rate * BURST_MILLIS / 1000);
+		tokens = Math.min(tokens, capacity);
+		synchronized (TokenBucket.class) {
+			generation++;
+		}
+	}
+
+	/**
+	 * Returns the rate of this bucket.
+	 * @return the rate in bytes per second, or 0 if unlimited
+	 */
+	public long getRate()
+	{
+		return rate;
+	}
+
+	/**
+	 * Returns whether neither this bucket nor any above it has a limit. The answer is cached
+	 * until the rate of any bucket changes.
+	 * @return true if every level is unlimited, false otherwise
+	 */
+	public boolean isUnlimited()
+	{
+		int g = generation;
+		int state = unlimitedState;
+		if (state >> 1 == g) {
+			return (state & 1) == 1;
+		}
+		boolean unlimited = true;
+		for (TokenBucket b = this; b != null && unlimited; b = b.parent)
+		{
+			unlimited = b.rate == 0;
+		}
+		unlimitedState = (g << 1) | (unlimited ? 1 : 0);	// one write, so the flag never pairs with another generation
+		return unlimited;
+	}
+
+	/**
+	 * Counts a peer as drawing from this bucket and every bucket above it, which lowers
+	 * the share each of them is granted under contention.
+	 */
+	public void attach()
+	{
+		for (TokenBucket b = this; b != null; b = b.parent)
+		{
+			synchronized (b) {
+				b.users++;
+			}
+		}
+	}
+
+	/**
+	 * Stops counting a peer attached with attach.
+	 */
+	public void detach()
+	{
+		for (TokenBucket b = this; b != null; b = b.parent)
+		{
+			synchronized (b) {
+				b.users--;
+			}
+		}
+	}
+
+	/**
+	 * Returns how many bytes may be moved now, without taking any tokens: as many as
+	 * wanted, bounded by the tokens and the fair share of every level.
+	 * @param wanted the number of bytes that would be moved
+	 * @return the number of bytes granted, 0 if some level is out of tokens
+	 */
+	public int grant(int wanted)
+	{
+		long now = System.nanoTime();
+		int n = wanted;
+		for (TokenBucket b = this; b != null && n > 0; b = b.parent)
+		{
+			n = b.available(n, now);
+		}
+		return n;
+	}
+
+	/**
+	 * Takes tokens for bytes that were moved from this bucket and every bucket above it.
+	 * Only limited levels are locked.
+	 * @param n the number of bytes, including protocol overhead
+	 */
+	public void consume(long n)
+	{
+		long now = System.nanoTime();
+		for (TokenBucket b = this; b != null; b = b.parent)
+		{
+			b.bytes.add(n);
+			if (b.rate > 0) {
+				synchronized (b) {
+					b.refill(now);
+					b.tokens -= n;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts bytes that were moved without a grant, because every level was unlimited.
+	 * Takes no lock.
+	 * @param n the number of bytes, including protocol overhead
+	 */
+	public void record(long n)
+	{
+		for (TokenBucket b = this; b != null; b = b.parent)
+		{
+			b.bytes.add(n);
+		}
+	}
+
+	/**
+	 * Returns how long until every level holds tokens for a number of bytes, or for a full
+	 * burst if that is smaller.
+	 * @param wanted the number of bytes
+	 * @return the delay in milliseconds, 0 if the bytes may be moved now
+	 */
+	public long getDelayMillis(int wanted)
+	{
+		long now = System.nanoTime();
+		long delay = 0L;
+		for (TokenBucket b = this; b != null; b = b.parent)
+		{
+			delay = Math.max(delay, b.getDelayNanos(wanted, now));
+		}
+		return (delay + 999999L) / 1000000L;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return ((rate == 0) ? "unlimited" : rate + " bytes/s") + ", " + bytes + " bytes, " + throttles + " throttled";
+	}
+
+	/*
+	 * Returns how many of the wanted bytes this level grants on its own.
+	 */
+	private int available(int wanted, long now)
+	{
+		if (rate == 0) {
+			return wanted;
+		}
+		synchronized (this) {
+			return availableLocked(wanted, now);
+		}
+	}
+
+	/*
+	 * Returns how many of the wanted bytes this limited level grants. Called with the lock held.
+	 */
+	private int availableLocked(int wanted, long now)
+	{
+		refill(now);
+		long share = Math.max(MIN_SHARE, capacity / Math.max(1, users));
+		long n = Math.min(Math.min(wanted, (long) tokens), share);
+		if (n <= 0) {
+			throttles++;
+			return 0;
+		}
+		return (int) n;
+	}
+
+	/*
+	 * Returns how long until this level holds tokens for the wanted bytes.
+	 */
+	private long getDelayNanos(int wanted, long now)
+	{
+		if (rate == 0) {
+			return 0L;
+		}
+		synchronized (this) {
+			refill(now);
+			double missing = Math.min(wanted, capacity) - tokens;
+			return (missing <= 0) ? 0L : (long) Math.ceil(missing * 1000000000.0 / rate);
+		}
+	}
+
+	/*
+	 * Adds the tokens accrued since the last refill. Called with the lock held.
+	 */
+	private void refill(long now)
+	{
+		if (rate > 0) {
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * (double) rate / 1000000000.0);
+		}
+		lastRefill = now;
+	}
+
+}
@@ -10,16 +10,20 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import GivenTools.TorrentInfo;
 
@@ -43,6 +47,38 @@ public class TorrentClient extends Thread
 	/** Constant for the upper bound of peers that are unchoked by this client. */
 	public static final int MAX_UNCHOKED = 4;
 
+	/** Constant for the number of event loop threads performing the I/O of every peer. */
+	public static final int EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Peer I/O mode where every connection is handled by the event loops. */
+	public static final int IO_MODE_NIO = 0;
+	/** Peer I/O mode where every connection gets blocking platform threads of its own. */
+	public static final int IO_MODE_THREAD = 1;
+	/** Peer I/O mode where every connection gets blocking virtual threads of its own (Java 21). */
+	public static final int IO_MODE_VIRTUAL = 2;
+
+	/** Transport where outbound peers are connected over TCP only. */
+	public static final int TRANSPORT_TCP = 0;
+	/** Transport where outbound peers are connected over uTP first, and over TCP if that fails. */
+	public static final int TRANSPORT_UTP = 1;
+
+	/** Constant for the default number of outbound connections that are established at the same time. */
+	public static final int DEFAULT_MAX_CONNECTING = 32;
+
+	/** Constant for the default number of inbound peers the client accepts. */
+	public static final int DEFAULT_MAX_INBOUND = 50;
+
+	/** Constant for the default number of a peer's pieces that may wait for verification before reading from it pauses. */
+	public static final int DEFAULT_MAX_PENDING_PIECES = 2;
+
+	/** Constant for the default number of threads reading the blocks that peers request. */
+	public static final int DEFAULT_DISK_READERS = 2;
+
+	/** Constant for the number of block slabs the buffer pool may allocate (4 MiB). */
+	public static final int MAX_POOLED_BLOCKS = 256;
+	/** Constant for the number of bytes the buffer pool may allocate for piece regions. */
+	public static final int MAX_POOLED_PIECE_BYTES = 64 * 1024 * 1024;
+
 	/** TrackerConnection object. */
 	TrackerConnection tConn;
 	/** TorrentInfo object. */
@@ -54,34 +90,123 @@ public class TorrentClient extends Thread
 	/** List of Peers populated from the tracker's response. */
 	ArrayList<Peer> peerList;
 
-	ServerSocket serverSock;
+	/** Acceptors listening for inbound peers, or null until the client listens. */
+	PeerAcceptor[] acceptors;
 
 	/** Port number for this client. */
 	int listenPort = -1;
 
-	/** Queue used to buffer incoming messages from peers. */
-	LinkedBlockingQueue<PeerMessage> messageQueue;
+	/** Pool of direct buffers for received blocks and pieces being assembled. */
+	BufferPool pool;
+
+	/** How peer connections are run; set from the rubt.io system property (nio, thread or virtual). */
+	int ioMode = parseIoMode(System.getProperty("rubt.io", "nio"));
+
+	/** Transport tried first for outbound peers; set from the rubt.transport system property (tcp or utp). */
+	int transport = parseTransport(System.getProperty("rubt.transport", "tcp"));
+
+	/** Multiplexer carrying every uTP connection, or null until the client listens or connects over uTP. */
+	private UtpMultiplexer utp;
+
+	/** Number of outbound connections established at the same time; set from the rubt.connects system property. */
+	int maxConnecting = Math.max(1, Integer.getInteger("rubt.connects", DEFAULT_MAX_CONNECTING));
+
+	// Peers waiting for a free connection slot, in the order they were added
+	private final ArrayDeque<Peer> connectQueue = new ArrayDeque<Peer>();
+	// Number of connection attempts in progress
+	private int connecting = 0;
+
+	/** Number of inbound peers accepted at the same time; set from the rubt.inbound system property. */
+	int maxInbound = Math.max(0, Integer.getInteger("rubt.inbound", DEFAULT_MAX_INBOUND));
+	/** Number of acceptors sharing the listen port through SO_REUSEPORT; set from the rubt.acceptors system property. */
+	int numAcceptors = Math.max(1, Integer.getInteger("rubt.acceptors", 1));
+	// Number of inbound peers that are connected or exchanging handshakes
+	private int inboundPeers = 0;
+
+	/** Event loops that the peers are spread across, started on first use. */
+	private EventLoop[] eventLoops;
+	// Index of the event loop that the next peer is handed to
+	private int nextEventLoop = 0;
+
+	/** Thread announcing verified pieces to peers. */
+	HaveBroadcaster haveBroadcaster;
+
+	/** Workers verifying and writing completed pieces; the number is set from the rubt.verifiers system property. */
+	PieceVerifier verifier;
+
+	/** Number of a peer's pieces that may wait for verification before reading from it pauses; set from the rubt.pending system property. */
+	int maxPendingPieces = Math.max(1, Integer.getInteger("rubt.pending", DEFAULT_MAX_PENDING_PIECES));
+
+	/** Download limit shared by every torrent in the process; set from the rubt.download.global system property, in bytes per second. */
+	public static final TokenBucket GLOBAL_DOWNLOAD = new TokenBucket(null, Long.getLong("rubt.download.global", 0L));
+	/** Upload limit shared by every torrent in the process; set from the rubt.upload.global system property, in bytes per second. */
+	public static final TokenBucket GLOBAL_UPLOAD = new TokenBucket(null, Long.getLong("rubt.upload.global", 0L));
+
+	/** Download limit of this torrent; set from the rubt.download.rate system property, in bytes per second. */
+	final TokenBucket downloadLimit = new TokenBucket(GLOBAL_DOWNLOAD, Long.getLong("rubt.download.rate", 0L));
+	/** Upload limit of this torrent; set from the rubt.upload.rate system property, in bytes per second. */
+	final TokenBucket uploadLimit = new TokenBucket(GLOBAL_UPLOAD, Long.getLong("rubt.upload.rate", 0L));
+	// Download and upload limits of every peer, in bytes per second; set from the rubt.download.peer and rubt.upload.peer system properties
+	private volatile long peerDownloadRate = Math.max(0L, Long.getLong("rubt.download.peer", 0L));
+	private volatile long peerUploadRate = Math.max(0L, Long.getLong("rubt.upload.peer", 0L));
+
+	/** Timer wheel firing the timeouts of every peer and the tracker's re-announces. */
+	TimerWheel timers;
+
+	/** Manager keeping the client connected to its best known peers. */
+	PeerManager peerManager;
+
+	/** Threads reading the blocks that peers request from the output file; set from the rubt.disk.readers system property. */
+	ExecutorService diskReaders;
+
+	/** Picker choosing the rarest missing piece for every peer. */
+	PiecePicker picker;
+
+	/** Pieces partly downloaded, whose blocks may come from any peer. */
+	PieceAssembler assembler;
+
+	/** Port of the HTTP server streaming the file; set from the rubt.stream system property, -1 for none. */
+	int streamPort = Integer.getInteger("rubt.stream", -1);
+	/** Number of bytes downloaded ahead of the playback position; set from the rubt.stream.readahead system property. */
+	int streamReadahead = Integer.getInteger("rubt.stream.readahead", StreamServer.DEFAULT_READAHEAD);
+	// HTTP server streaming the file, or null
+	private volatile StreamServer stream;
+
+	/** Number of block bytes received that another peer had delivered first, or that were dropped unfinished. */
+	final AtomicLong wastedBytes = new AtomicLong();
+	/** Number of requests cancelled because another peer delivered their piece first. */
+	final AtomicLong cancelsSent = new AtomicLong();
+
+	/** Recorder capturing every message exchanged with peers, or null if the session isn't recorded. */
+	SessionRecorder recorder;
 
 	/** Self-identifying peer ID. */
 	public static byte[] peerID;
 
-	/** Number of peer that are unchoked by this peer. */
-	public int currentUnchoked = 0;
+	/** Number of peer that are unchoked by this peer; changed by every peer's thread. */
+	public final AtomicInteger currentUnchoked = new AtomicInteger();
 
 	/** Determines if the client is running. */
-	boolean isRunning = false;
+	volatile boolean isRunning = false;
 
 	/** Determines if the client is downloading the file. */
-	boolean isDownloading = true;
+	volatile boolean isDownloading = true;
+
+	/** Determines if the download finished while this client was running. */
+	boolean isDownloadComplete = false;
 
 	/** Bitfield containing indices of verified pieces. */
-	public boolean[] localHostBitfield;
+	public PieceBitfield localHostBitfield;
 
 	/** Determines if the client has the complete file. */
 	public static boolean haveCompleteFile = false;
 
 	// Time that the peer connection began, in nanoseconds
 	private long startTime = 0L;
+	// Time that the first block arrived, in nanoseconds, or 0 until then
+	private volatile long firstBlockTime = 0L;
+	// Channel of the output file shared by every reader and writer, opened on first use
+	private volatile FileChannel fileChannel;
 
 	//	/** Peer that was selected to download from. */
 	//	public Peer selectedPeer = null;
@@ -98,23 +223,103 @@ public class TorrentClient extends Thread
 		this.info = info;
 		outputFile = file;
 		peerList = new ArrayList<Peer>();
+		// bound the piece regions by memory rather than count, since piece lengths vary widely
+		pool = new BufferPool(info.piece_length, MAX_POOLED_BLOCKS,
+				Math.max(MAX_UNCHOKED * 2, MAX_POOLED_PIECE_BYTES / info.piece_length));
+		haveBroadcaster = new HaveBroadcaster(this);
+		haveBroadcaster.start();
+		verifier = new PieceVerifier(this, Integer.getInteger("rubt.verifiers", PieceVerifier.DEFAULT_WORKERS));
+		diskReaders = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("rubt.disk.readers", DEFAULT_DISK_READERS)),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "Disk reader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		timers = new TimerWheel();
+		timers.start();
+		peerManager = new PeerManager(this);
+		picker = new PiecePicker(this, info.piece_hashes.length);
+		assembler = new PieceAssembler(this);
 	}
 
 
-	//	public int selectPort()
-	//	{
-	//		for (int i = MIN_PORT_RANGE; i <= MAX_PORT_RANGE; i++)
-	//		{
-	//			try {
-	//				serverSock = new ServerSocket(i);
-	//				return listenPort;
-	//			}
-	//			catch (IOException ioe)
-	//			{	ioe.printStackTrace();	}
-	//		}
-	//		System.err.print("Error: Could not open ServerSocket on port range " + MIN_PORT_RANGE + "~" + MAX_PORT_RANGE + ".");
-	//		return -1;
-	//	}
+	/**
+	 * Starts listening for inbound peers on the first free port in the client's port range.
+	 * When more than one acceptor is configured and the runtime supports SO_REUSEPORT, the
+	 * other acceptors are bound to the same port.
+	 * @return the port listened on, or -1 if no port in the range could be bound
+	 */
+	public synchronized int listen()
+	{
+		boolean reusePort = numAcceptors > 1;
+		PeerAcceptor first = null;
+		for (int port = MIN_PORT_RANGE; port <= MAX_PORT_RANGE && first == null; port++)
+		{
+			try {
+				first = new PeerAcceptor(this, port, reusePort, "Peer acceptor 0");
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Could not listen on port " + port + ": " + ioe.getMessage());
+			}
+		}
+		if (first == null) {
+			System.err.println("Error: Could not listen on port range " + MIN_PORT_RANGE + "~" + MAX_PORT_RANGE + ".");
+			return -1;
+		}
+		int count = numAcceptors;
+		if (reusePort && !first.isReusingPort()) {
+			System.err.println("Error: SO_REUSEPORT is not available; using a single acceptor.");
+			count = 1;
+		}
+		acceptors = new PeerAcceptor[count];
+		acceptors[0] = first;
+		for (int i = 1; i < count; i++)
+		{
+			try {
+				acceptors[i] = new PeerAcceptor(this, first.getPort(), true, "Peer acceptor " + i);
+			}
+			catch (IOException ioe) {	// the acceptors bound so far still serve the port
+				System.err.println("Error: Could not share port " + first.getPort() + ": " + ioe.getMessage());
+				acceptors = Arrays.copyOf(acceptors, i);
+				break;
+			}
+		}
+		for (PeerAcceptor acceptor : acceptors)
+		{
+			acceptor.start();
+		}
+		try {	// uTP peers connect to the same port number over UDP
+			utp = new UtpMultiplexer(this, first.getPort());
+			utp.start();
+		}
+		catch (IOException ioe) {
+			System.err.println("Error: Could not listen for uTP on port " + first.getPort() + ": " + ioe.getMessage());
+		}
+		System.out.println("Listening for peers on port " + first.getPort() + ".");
+		return first.getPort();
+	}
+
+	/**
+	 * Returns the multiplexer carrying the client's uTP connections. A client that doesn't
+	 * listen gets one bound to any free port the first time a peer connects over uTP.
+	 * @return the multiplexer, or null if no UDP port could be bound
+	 */
+	public synchronized UtpMultiplexer getUtpMultiplexer()
+	{
+		if (utp == null) {
+			try {
+				utp = new UtpMultiplexer(this, 0);
+				utp.start();
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Could not open a uTP socket: " + ioe.getMessage());
+			}
+		}
+		return utp;
+	}
 
 	/**
 	 * Closes any connections to Peers.
@@ -122,9 +327,33 @@ public class TorrentClient extends Thread
 	 */
 	public void close() throws IOException
 	{
-		isRunning = false;
+		synchronized (this) {
+			isRunning = false;
+			notifyAll();
+		}
+		if (stream != null) {	// before the file is closed under its readers
+			stream.shutdown();
+		}
+		haveBroadcaster.isRunning = false;
+		haveBroadcaster.interrupt();
+		verifier.shutdown();
+		peerManager.shutdown();
+		timers.shutdown();
+		synchronized (this) {	// peers still waiting for a slot are never started
+			connectQueue.clear();
+			if (acceptors != null) {
+				for (PeerAcceptor acceptor : acceptors)
+				{
+					acceptor.shutdown();
+				}
+			}
+		}
 		if (peerList != null) {
-			for (Peer peer : peerList)
+			Peer[] peers;
+			synchronized (this) {	// peers remove themselves from the list as they disconnect
+				peers = peerList.toArray(new Peer[peerList.size()]);
+			}
+			for (Peer peer : peers)
 			{ 
 				try {
 					peer.disconnect();
@@ -133,21 +362,90 @@ public class TorrentClient extends Thread
 				{	e.printStackTrace();	}
 			}
 		}	// end of if (peerList != null)
+		diskReaders.shutdownNow();	// blocks still being read are dropped with their peers
+		synchronized (this) {
+			if (eventLoops != null) {
+				for (EventLoop loop : eventLoops)
+				{
+					loop.shutdown();
+				}
+			}
+			if (utp != null) {
+				utp.shutdown();
+			}
+		}
+		if (recorder != null) {
+			recorder.close();
+		}
+		synchronized (this) {
+			if (fileChannel != null) {
+				fileChannel.close();
+			}
+		}
+		System.out.println("Piece assembly: " + assembler);
+		if (stream != null) {
+			System.out.println("Streaming: " + stream);
+		}
+		assembler.clear();	// the regions of pieces left unfinished
+		System.out.println("Buffer pool usage: " + pool);
+		System.out.println("HAVE broadcast: " + haveBroadcaster);
+		System.out.println("Piece verification: " + verifier);
+		System.out.println("Peers: " + peerManager);
+		System.out.println("Download limit: " + downloadLimit + "; upload limit: " + uploadLimit);
+		System.out.println("Piece picker: " + picker);
+		System.out.println("Endgame: " + cancelsSent + " requests cancelled, " + wastedBytes + " bytes wasted");
+		if (acceptors != null) {
+			for (PeerAcceptor acceptor : acceptors)
+			{
+				System.out.println("Inbound peers on " + acceptor);
+			}
+		}
+		if (utp != null) {
+			System.out.println("uTP on " + utp);
+		}
 	}
 
 	/**
+	 * Records every message exchanged with peers connected from now on into a file that a
+	 * SessionReplayer can play back.
+	 * @param recording the file that the session is recorded into
+	 * @throws IOException
+	 */
+	public void record(File recording) throws IOException
+	{
+		recorder = new SessionRecorder(recording, info.info_hash.array());
+	}
+
+	/**
+	 * Waits for the download to complete, then reports it to the tracker and closes every
+	 * peer connection. Peers handle their own messages, so this thread only supervises.
 	 * @see java.lang.Thread#run()
 	 */
 	public void run()
 	{
-		while (isRunning)
-		{
-			try {
-				decode();
+		try {
+			synchronized (this) {
+				while (isRunning && !isDownloadComplete)
+				{
+					wait();
+				}
+			}
+			if (isDownloadComplete) {
+				// file is done downloading; finish operation of the client
+				if (tConn != null) {
+					tConn.update(TrackerConnection.EVENT_COMPLETED);
+				}
+				synchronized (this) {	// keep seeking possible until the process is stopped
+					while (isRunning && stream != null)
+					{
+						wait();
+					}
+				}
+				close();
 			}
-			catch (Exception e)
-			{	e.printStackTrace();	}
 		}
+		catch (Exception e)
+		{	e.printStackTrace();	}
 	}
 
 	/**
@@ -157,33 +455,31 @@ public class TorrentClient extends Thread
 	 */
 	public void init() throws IOException
 	{
+		isRunning = true;	// before the acceptor and the first peers start
 		startTime = System.nanoTime();
 		peerID = Utils.generatePeerID();
-		//		listenPort = selectPort();
-		listenPort = MIN_PORT_RANGE;
+		listenPort = listen();
+		if (listenPort == -1) {	// still announce a port so that the tracker lists this client
+			listenPort = MIN_PORT_RANGE;
+		}
 		tConn = new TrackerConnection(info, peerID, listenPort, this);
 
 		ArrayList<Peer> returnedPeerList = tConn.update(TrackerConnection.EVENT_STARTED);
 
-		// TODO add timings for keep-alive
-
-		tConn.timer = new Timer();
 		tConn.trackerUpdate = new TrackerUpdate(tConn, this);
-		tConn.timer.schedule(tConn.trackerUpdate, tConn.interval * 1000, tConn.interval * 1000);
+		tConn.trackerUpdate.schedule();
 
-		messageQueue = new LinkedBlockingQueue<PeerMessage>();
+		if (streamPort >= 0) {
+			int port = serve(streamPort, streamReadahead);
+			System.out.println("Streaming at http://127.0.0.1:" + port + "/" + info.file_name);
+		}
 
 		if (returnedPeerList != null) {
 			for (Peer p : returnedPeerList)
 			{
-				// Extract the first six bytes of the peer ID to see if it's the RUBT11 peer
-				byte[] id = new byte[7];
-
-				System.arraycopy(p.peerID, 0, id, 0, 7);
-
-								if (!Arrays.equals(id, TorrentClient.RU_PEER_ID)) {	// not a Rutgers peer, ignore
-									continue;
-								}
+				if (!isRutgersPeer(p.peerID)) {	// not a Rutgers peer, ignore
+					continue;
+				}
 
 				// It's no longer needed to track RTT times
 				//				long avgRTT = getAverageRTT(p);
@@ -197,16 +493,359 @@ public class TorrentClient extends Thread
 				//					selectedPeer = p;
 				//					RTT = avgRTT;
 				//				}
-				if (!p.init()) {	// peer returned false during init method which indicates some problem
-					System.err.println("Error: Unable to connect to peer " + new String(p.peerID, "UTF-8"));
-				}
-				else {
-					peerList.add(p);
-				}
+				peerManager.addCandidate(p);
 			}
 			//			System.out.println("Using peer " + new String(selectedPeer.peerID, "UTF-8") + " with average RTT " + RTT + " ns (" + (RTT / 1000000) + "ms).");
 			//			peerList.add(selectedPeer);
 		}	// end of if (returnedPeerList != null)
+		peerManager.start();
+	}
+
+	/**
+	 * Starts serving the file over HTTP while it downloads, and puts the piece picker into
+	 * streaming mode. Must be called after the local bitfield is set.
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param readahead the number of bytes downloaded ahead of the playback position
+	 * @return the port the server listens on
+	 * @throws IOException if the port can't be bound
+	 */
+	public int serve(int port, int readahead) throws IOException
+	{
+		stream = new StreamServer(this, port, readahead);
+		return stream.getPort();
+	}
+
+	/**
+	 * Returns whether a peer ID starts with the prefix of the official Rutgers peers.
+	 * @param id the 20-byte peer ID
+	 * @return true if the peer is a Rutgers peer, false otherwise
+	 */
+	public static boolean isRutgersPeer(byte[] id)
+	{
+		// Extract the first seven bytes of the peer ID to see if it's the RUBT11 peer
+		byte[] prefix = new byte[7];
+		System.arraycopy(id, 0, prefix, 0, 7);
+		return Arrays.equals(prefix, TorrentClient.RU_PEER_ID);
+	}
+
+	/**
+	 * Initializes the client without contacting the tracker, connecting to the given
+	 * peers only. Used to replay a recorded session over loopback connections.
+	 * @param peers the peers to connect to
+	 * @throws IOException
+	 */
+	public void init(List<Peer> peers) throws IOException
+	{
+		isRunning = true;	// before the first peers start
+		startTime = System.nanoTime();
+		peerID = Utils.generatePeerID();
+		listenPort = MIN_PORT_RANGE;
+		for (Peer p : peers)
+		{
+			peerManager.addCandidate(p);
+		}
+		peerManager.start();
+	}
+
+	/**
+	 * Adds a peer to the list of peers and starts connecting to it, or queues it if as many
+	 * connections as allowed are already being established. Connections are established in
+	 * parallel and don't wait for each other, so the first peers to complete their handshake
+	 * start downloading while slower or dead peers are still being tried.
+	 * @param p the peer to connect to
+	 * @return true if the peer was added, false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPeer(Peer p) throws IOException
+	{
+		synchronized (this) {	// listed first, since a failed connection removes the peer
+			peerList.add(p);
+			if (connecting >= maxConnecting) {	// started once an earlier attempt finishes
+				connectQueue.add(p);
+				return true;
+			}
+			connecting++;
+		}
+		return startConnecting(p);
+	}
+
+	/**
+	 * Frees the connection slot of a peer whose handshake completed or whose connection
+	 * attempt failed or timed out, and starts connecting to the next queued peer.
+	 * @throws IOException
+	 */
+	public void connectAttemptFinished() throws IOException
+	{
+		Peer next;
+		synchronized (this) {
+			connecting--;
+			next = connectQueue.poll();
+			if (next == null) {
+				return;
+			}
+			connecting++;
+		}
+		startConnecting(next);
+	}
+
+	/*
+	 * Starts connecting to a peer that was given a connection slot.
+	 */
+	private boolean startConnecting(Peer p) throws IOException
+	{
+		if (!p.init()) {	// peer returned false during init method which indicates some problem
+			System.err.println("Error: Unable to connect to peer " + new String(p.peerID, "UTF-8"));
+			p.disconnect();	// frees the slot as well
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Notes that a block arrived, and reports how long after startup the first one did.
+	 */
+	public void blockReceived()
+	{
+		if (firstBlockTime != 0L) {
+			return;
+		}
+		synchronized (this) {
+			if (firstBlockTime != 0L) {
+				return;
+			}
+			firstBlockTime = System.nanoTime();
+		}
+		System.out.println("Time to first block: " + ((firstBlockTime - startTime) / 1000000L) + " ms.");
+	}
+
+	/**
+	 * Returns how long after startup the first block arrived.
+	 * @return the time to the first block in milliseconds, or -1 if no block has arrived yet
+	 */
+	public long getTimeToFirstBlock()
+	{
+		long first = firstBlockTime;
+		return (first == 0L) ? -1L : (first - startTime) / 1000000L;
+	}
+
+	/**
+	 * Takes a connection accepted from a peer and starts reading its handshake, or closes
+	 * it if the client already has as many inbound peers as it allows.
+	 * @param ch the accepted channel
+	 * @return true if the peer was added, false if the connection was closed
+	 * @throws IOException
+	 */
+	public boolean acceptPeer(SocketChannel ch) throws IOException
+	{
+		Peer p = null;
+		synchronized (this) {
+			if (isRunning && inboundPeers < maxInbound) {
+				inboundPeers++;
+				p = new Peer(ch, this);
+				peerList.add(p);
+			}
+		}
+		if (p == null) {
+			ch.close();
+			return false;
+		}
+		if (!p.accept()) {
+			p.disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a uTP connection opened by a peer and starts reading its handshake, unless the
+	 * client already has as many inbound peers as it allows. Only the event loops of the
+	 * nio I/O mode run uTP connections.
+	 * @param s the connection, answered once it has been taken
+	 * @return true if the peer was added, false if the connection should be reset
+	 * @throws IOException
+	 */
+	public boolean acceptUtpPeer(UtpSocket s) throws IOException
+	{
+		Peer p = null;
+		synchronized (this) {
+			if (isRunning && inboundPeers < maxInbound && ioMode == IO_MODE_NIO) {
+				inboundPeers++;
+				p = new Peer(s, this);
+				peerList.add(p);
+			}
+		}
+		if (p == null) {
+			return false;
+		}
+		if (!p.accept()) {
+			p.disconnect();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether another peer in the list of peers is connected with the given peer ID.
+	 * @param p the peer asking
+	 * @param id the 20-byte peer ID
+	 * @return true if the client already exchanges messages with that peer, false otherwise
+	 */
+	public synchronized boolean isDuplicatePeer(Peer p, byte[] id)
+	{
+		for (Peer other : peerList)
+		{
+			if (other != p && other.isConnected() && Arrays.equals(other.peerID, id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a peer that was disconnected from the list of peers, and tells the peer
+	 * manager, which retries the peer later.
+	 * @param p the peer that was disconnected
+	 */
+	public void peerDisconnected(Peer p)
+	{
+		synchronized (this) {
+			peerList.remove(p);
+			if (p.isInbound) {
+				inboundPeers--;
+			}
+		}
+		peerManager.peerDisconnected(p);	// outside the client's lock, since the manager calls addPeer
+	}
+
+	/**
+	 * Cancels the requests for a block, or for a whole piece, at every peer downloading the
+	 * piece, except the peer that delivered it. Only called in endgame, when a piece is
+	 * downloaded by more than one peer.
+	 * @param from the peer that delivered the block or piece
+	 * @param index the index of the piece
+	 * @param offset the byte offset of the block within the piece, or -1 for the whole piece
+	 */
+	public void cancelRequests(Peer from, int index, int offset)
+	{
+		Peer[] peers;
+		synchronized (this) {
+			peers = peerList.toArray(new Peer[peerList.size()]);
+		}
+		for (Peer p : peers)
+		{
+			if (p != from && p.downloading.get(index)) {
+				p.cancelRequests(index, offset);
+			}
+		}
+	}
+
+	/**
+	 * Changes the download and upload limits of every peer, connected or not, and of the
+	 * peers connected from now on. The limits of the torrent and of the process are changed
+	 * on downloadLimit, uploadLimit, GLOBAL_DOWNLOAD and GLOBAL_UPLOAD directly.
+	 * @param download the download limit of a peer in bytes per second, or 0 for no limit
+	 * @param upload the upload limit of a peer in bytes per second, or 0 for no limit
+	 */
+	public void setPeerRates(long download, long upload)
+	{
+		Peer[] peers;
+		synchronized (this) {
+			peerDownloadRate = Math.max(0L, download);
+			peerUploadRate = Math.max(0L, upload);
+			peers = peerList.toArray(new Peer[peerList.size()]);
+		}
+		for (Peer p : peers)
+		{
+			p.throttle.download.setRate(peerDownloadRate);
+			p.throttle.upload.setRate(peerUploadRate);
+		}
+	}
+
+	/**
+	 * Creates the throttle of a new peer, below this torrent's limits.
+	 * @return the throttle with the current per-peer limits
+	 */
+	ThrottledChannel newThrottle()
+	{
+		return new ThrottledChannel(new TokenBucket(downloadLimit, peerDownloadRate),
+				new TokenBucket(uploadLimit, peerUploadRate));
+	}
+
+	/**
+	 * Returns the peer I/O mode named by a string: nio, thread or virtual.
+	 * @param name the name of the mode
+	 * @return IO_MODE_NIO, IO_MODE_THREAD or IO_MODE_VIRTUAL
+	 */
+	public static int parseIoMode(String name)
+	{
+		if (name.equalsIgnoreCase("thread")) {
+			return IO_MODE_THREAD;
+		}
+		if (name.equalsIgnoreCase("virtual")) {
+			return IO_MODE_VIRTUAL;
+		}
+		if (!name.equalsIgnoreCase("nio")) {
+			System.err.println("Error: Unknown I/O mode " + name + "; using nio.");
+		}
+		return IO_MODE_NIO;
+	}
+
+	/**
+	 * Returns the transport named by a string: tcp or utp.
+	 * @param name the name of the transport
+	 * @return TRANSPORT_TCP or TRANSPORT_UTP
+	 */
+	public static int parseTransport(String name)
+	{
+		if (name.equalsIgnoreCase("utp")) {
+			return TRANSPORT_UTP;
+		}
+		if (!name.equalsIgnoreCase("tcp")) {
+			System.err.println("Error: Unknown transport " + name + "; using tcp.");
+		}
+		return TRANSPORT_TCP;
+	}
+
+	/**
+	 * Creates an unstarted thread for one of a peer's blocking tasks: a virtual thread in the
+	 * virtual I/O mode, or a daemon platform thread otherwise.
+	 * @param task the task the thread runs
+	 * @param name the name of the thread
+	 * @return the thread
+	 */
+	public Thread newPeerThread(Runnable task, String name)
+	{
+		if (ioMode == IO_MODE_VIRTUAL) {
+			Thread thread = Utils.newVirtualThread(task, name);
+			if (thread != null) {
+				return thread;
+			}
+			System.err.println("Error: Virtual threads need Java 21; using platform threads.");
+			ioMode = IO_MODE_THREAD;
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Returns the event loop that the next peer's connection is handed to. The loops are
+	 * started the first time a peer connects, and peers are spread across them in turn.
+	 * @return an event loop
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public synchronized EventLoop nextEventLoop() throws IOException
+	{
+		if (eventLoops == null) {
+			eventLoops = new EventLoop[EVENT_LOOPS];
+			for (int i = 0; i < eventLoops.length; i++)
+			{
+				eventLoops[i] = new EventLoop("Event loop " + i);
+				eventLoops[i].start();
+			}
+		}
+		EventLoop loop = eventLoops[nextEventLoop];
+		nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		return loop;
 	}
 
 	/**
@@ -244,124 +883,43 @@ public class TorrentClient extends Thread
 	}
 
 	/**
-	 * Attempts to read and parse an expected incoming PeerMessage. If no such Message can
-	 * be found, return. Otherwise, perform some action depending on the Message received.
-	 * @throws Exception
+	 * Records a verified piece, schedules a HAVE message for every peer that doesn't have it,
+	 * and wakes the client thread if it was the last missing piece. Called from the
+	 * PieceVerifier worker that checked the piece; the bit is set without the client's lock,
+	 * which is only taken to account for the download and for the final piece, and the HAVE
+	 * messages are queued by the HaveBroadcaster, so the worker never loops over the peers.
+	 * @param index the index of the verified piece
 	 */
-	public void decode() throws Exception
+	public void pieceCompleted(int index)
 	{
-		PeerMessage msg;
-
-		if ((msg = messageQueue.take()) != null) {	// some non-null message received
-			System.out.println("Decoding message: " + msg.msg);
-
-			switch (msg.msg.id) {
-			case (Message.CHOKE_ID):	// peer is choking local host
-				msg.peer.isChokedByPeer = true;
-			break;
-			case (Message.UNCHOKE_ID):	// peer unchoked local host
-				msg.peer.isChokedByPeer = false;
-			if (msg.peer.isInterestedInPeer == true) {
-				msg.peer.sendMessage(msg.peer.getNextRequest());
-			}
-			break;
-			case (Message.INTERESTED_ID):	// peer determined that it wants some piece
-				msg.peer.isPeerInterested = true;
-			msg.peer.sendMessage(Message.UNCHOKE);
-			break;
-			case (Message.UNINTERESTED_ID):	// peer determined that it cannot gain any new pieces
-				msg.peer.isPeerInterested = false;
-			break;
-			case (Message.HAVE_ID):	// peer confirming the verification of an earlier-requested piece
-				if (msg.peer.bitfield != null) {	// peer has a bitfield that we maintain
-					// get the piece index from the message and mark that bitfield's index as true
-					msg.peer.bitfield[((Message.Have) msg.msg).index] = true;
-
-					for (int i = 0; i < msg.peer.bitfield.length; i++)
-					{
-						// detected that the peer has a piece local host doesn't have
-						if (msg.peer.bitfield[i] == true && localHostBitfield[i] == false) {
-							msg.peer.sendMessage(Message.INTERESTED);
-							msg.peer.isInterestedInPeer = true;
-							break;
-						}
-					}	// end of for loop
-				}	// end of if (msg.peer.bitfield != null)
-			break;
-			case (Message.BITFIELD_ID):	// peer provided a bitfield of the pieces it has
-				// initialize bitfield by providing the peer's message's bitfield and number of pieces
-				boolean[] bitfield = Utils.bitfieldToBooleanArray(((Message.Bitfield) msg.msg).bitfield, info.piece_hashes.length);
-			for (int i = 0; i < bitfield.length; i++)
-			{
-				msg.peer.bitfield[i] = bitfield[i];
-			}
-			// Determine if this peer has any pieces the local host does not own
-			for (int i = 0; i < msg.peer.bitfield.length; i++)
-			{
-				if (msg.peer.bitfield[i] == true && localHostBitfield[i] == false) {
-					msg.peer.sendMessage(Message.INTERESTED);
-					msg.peer.isInterestedInPeer = true;
-					break;
-				}
-			}
-			break;
-			case (Message.PIECE_ID):	// peer sent a piece with some index, offset, and payload
-				// Create a new "Have" message to be sent after verifying the hash
-				Message.Have haveMsg = new Message.Have(((Message.Piece) msg.msg).index);
-
-			// check if local host's bitfield does not have this piece
-			if (!localHostBitfield[((Message.Piece)msg.msg).index]) {
-				if (msg.peer.appendToPiece((Message.Piece)msg.msg, info.piece_hashes, this)) {
-					localHostBitfield[((Message.Piece)msg.msg).index] = true;
-
-					// TODO Code intended to work for multiple peers, but must check in the future 
-					for (Peer peer : peerList)
-					{
-						try {
-							peer.sendMessage(haveMsg);
-						}
-						catch (IOException ioe) {
-							ioe.printStackTrace();
-						}
-					}	// end of for loop
-				}	// end of if (msg.peer.appendToPiece((Message.Piece)msg.msg), info.piece_hashes, this))
-			}	// end of if (!localHostBitfield[((Message.Piece)msg.msg).index])
-			if (isFileComplete()) {
-				// file is done downloading; finish operation of the client
-				isDownloading = false;
-				tConn.update(TrackerConnection.EVENT_COMPLETED);
-				close();	// TODO
-				return;
-			}
-			if (!msg.peer.isChokedByPeer) {
-				// as long as the peer who sent the message hasn't choked the local host, try another request
-				msg.peer.sendMessage(msg.peer.getNextRequest());
-			}
-			break;
-			}	// end of switch (msg.msg.id)
-		}	// end of if ((msg = messageQueue.take()) != null)
-		else {	// no messages received
+		if (!localHostBitfield.set(index)) {	// already recorded
 			return;
 		}
-
-	}	// end of decode()
-
-	/**
-	 * Attempts to read and store incoming Messages by placing any such Message objects into a queue.
-	 * @param msg
-	 */
-	public synchronized void receiveMessage(PeerMessage msg)
-	{
-		if (msg == null) {
-			return;
+		haveBroadcaster.announce(index);
+		picker.pieceVerified(index);
+		StreamServer s = stream;
+		if (s != null) {
+			s.pieceCompleted(index);
+		}
+		synchronized (this) {
+			// update the tracker connection with the amount downloaded
+			TrackerConnection.downloaded += getPieceLength(index);
+			System.out.println(">>Total downloaded: " + TrackerConnection.downloaded);
+			if (isFileComplete() && !isDownloadComplete) {
+				System.out.println("File complete.");
+				System.out.println("Total time to download: " + ((System.nanoTime() - startTime) / 1000000000L) + " seconds.");
+				System.out.println("Buffer pool usage: " + pool);
+				isDownloading = false;
+				isDownloadComplete = true;
+				notifyAll();
+			}
 		}
-		messageQueue.add(msg);
 	}
 
 
-	public void setUpload(int upload)
+	public void setUpload(long upload)
 	{
-		String up = Integer.toString(upload);
+		String up = Long.toString(upload);
 
 		try {
 			File trackerFile = new File(outputFile.getName() + ".stats");
@@ -389,10 +947,10 @@ public class TorrentClient extends Thread
 		if (trackerFile.exists()) {
 			in = new BufferedReader(new FileReader(trackerFile));
 			input = in.readLine();
-			TrackerConnection.uploaded = Integer.parseInt(input);
+			TrackerConnection.uploaded.set(Long.parseLong(input));
 		}
 		else {
-			TrackerConnection.uploaded = 0;
+			TrackerConnection.uploaded.set(0L);
 			TrackerConnection.downloaded = 0;
 		}
 	}
@@ -428,85 +986,135 @@ public class TorrentClient extends Thread
 	}
 
 	/**
-	 * Returns whether the file has no missing pieces by iterating through the bitfield.
+	 * Attempts to verify the SHA1 hash of a piece held in a buffer against the piece's hash in
+	 * the metainfo. The bytes between the buffer's position and limit are hashed in place.
 	 * 
-	 * @return true if bitfield contains all 1's, false otherwise
+	 * @param piece
+	 * @param SHA1hash
+	 * @return true if the two hashes are equal, false otherwise
 	 */
-	public boolean isFileComplete()
+	public static boolean verifySHA1(ByteBuffer piece, ByteBuffer SHA1hash)
 	{
-		for (int i = 0; i < localHostBitfield.length; i++)
-		{
-			if (localHostBitfield[i] == false) {	// bitfield indicates a missing piece
-				//				System.out.println("Index " + i + " of " + (localHostBitfield.length-1) + " returned false.");
-				return false;
-			}
+		MessageDigest SHA1;
+		try {
+			SHA1 = MessageDigest.getInstance("SHA-1");
 		}
-		System.out.println("File complete.");
-		System.out.println("Total time to download: " + ((System.nanoTime() - startTime) / 1000000000L) + " seconds.");
-		return true;
+		catch (NoSuchAlgorithmException nsae) {
+			nsae.printStackTrace();
+			return false;
+		}
+
+		return verifySHA1(SHA1, piece, SHA1hash);
 	}
 
 	/**
-	 * Returns an index of a piece that has not been downloaded.
-	 * Checks randomly first, then goes in order.
-	 * @return
+	 * Attempts to verify the SHA1 hash of a piece held in a buffer with a digest that the
+	 * caller reuses between pieces. The digest is reset by the check.
+	 * 
+	 * @param SHA1 a SHA-1 MessageDigest
+	 * @param piece
+	 * @param SHA1hash
+	 * @return true if the two hashes are equal, false otherwise
 	 */
-	public int getNextPieceIndex()
+	public static boolean verifySHA1(MessageDigest SHA1, ByteBuffer piece, ByteBuffer SHA1hash)
 	{
-		Random num = new Random();
-		int index = num.nextInt(localHostBitfield.length);
-		int count = 0;
-		while (count < 5)
-		{
-			if (localHostBitfield[index] == false) {
-				return index;
-			}
-			else {
-				index = num.nextInt(localHostBitfield.length);
-				count++;
-			}
-		}
-		for (int i = 0; i < localHostBitfield.length; i++)
-		{
-			if (localHostBitfield[i] == false) {
-				return i;
-			}
+		SHA1.update(piece.duplicate());
+		return Arrays.equals(SHA1.digest(), SHA1hash.array());
+	}
+
+	/**
+	 * Returns the length of the piece at the given index, which is shorter for the last piece.
+	 * 
+	 * @param index
+	 * @return the number of bytes in the piece
+	 */
+	public int getPieceLength(int index)
+	{
+		if (index == info.piece_hashes.length - 1 && info.file_length % info.piece_length != 0) {
+			return info.file_length % info.piece_length;
 		}
+		return info.piece_length;
+	}
 
-		return -1;
+	/**
+	 * Returns whether the file has no missing pieces, from the count of verified pieces.
+	 * 
+	 * @return true if bitfield contains all 1's, false otherwise
+	 */
+	public boolean isFileComplete()
+	{
+		return localHostBitfield.isComplete();
 	}
 
+	/**
+	 * Returns whether a piece still has to be downloaded: it is neither verified nor waiting
+	 * to be verified.
+	 * @param index the index of the piece
+	 * @return true if the piece is missing, false otherwise
+	 */
+	public boolean isPieceMissing(int index)
+	{
+		return !localHostBitfield.get(index) && !verifier.isVerifying(index);
+	}
 
 	/**
-	 * Writes data to the output file at a specified position and returns true if the piece
-	 * checked successfully against the hash and false otherwise. The position is determined by
-	 * calculating (pieceLength * index) + offset.
-	 * @param pieceMsg
-	 * @param SHA1hash
-	 * @param data
-	 * @return
-	 * @throws Exception
-	 */
-	public boolean updateFile(Message.Piece pieceMsg, ByteBuffer SHA1hash, byte[] data) throws Exception
-	{
-		if (verifySHA1(data, SHA1hash)) {	// first make sure the piece is validated
-			System.out.println("Piece " + pieceMsg.index + " validated.");
-			// RandomAccessFile in order to write pieces at arbitrary offsets
-			RandomAccessFile raf = new RandomAccessFile(outputFile, "rw");
-			// position is the piece's index (the first byte of the piece) + the offset
-			//			System.out.println("Seeking to " + (info.piece_length * pieceMsg.index + pieceMsg.offset) + " and writing " + data.length + " bytes.");
-			//			raf.seek(info.piece_length * pieceMsg.index + pieceMsg.offset);
-			//			System.out.println("Seeking to " + (info.piece_length * pieceMsg.index) + " and writing " + data.length + " bytes.");
-			raf.seek(info.piece_length * pieceMsg.index);
-			raf.write(data);
-			raf.close();
-			// update the tracer connection with the amount downloaded
-			TrackerConnection.downloaded += data.length;
+	 * Returns the channel of the output file, opening it the first time. The channel is
+	 * shared by the piece workers and by every peer serving blocks; its positional reads
+	 * and writes don't move a shared position, so they need no lock.
+	 * @return the channel of the output file
+	 * @throws IOException
+	 */
+	public FileChannel getFileChannel() throws IOException
+	{
+		FileChannel ch = fileChannel;
+		if (ch == null) {
+			synchronized (this) {
+				if ((ch = fileChannel) == null) {
+					fileChannel = ch = new RandomAccessFile(outputFile, "rw").getChannel();
+				}
+			}
+		}
+		return ch;
+	}
 
-			return true;
+	/**
+	 * Writes a verified piece held in a buffer into the output file at (pieceLength * index),
+	 * straight from the buffer between its position and limit.
+	 * @param index
+	 * @param data
+	 * @throws IOException
+	 */
+	public void writePiece(int index, ByteBuffer data) throws IOException
+	{
+		FileChannel ch = getFileChannel();
+		// position is the piece's index (the first byte of the piece)
+		ByteBuffer src = data.duplicate();
+		long position = (long) info.piece_length * index;
+		while (src.hasRemaining())
+		{
+			position += ch.write(src, position);
 		}
-		else {	// piece was not correctly downloaded
-			return false;
+	}
+
+	/**
+	 * Reads a block of a verified piece from the output file into a buffer, starting at the
+	 * buffer's position and filling it up to its limit.
+	 * @param index
+	 * @param offset
+	 * @param block
+	 * @throws IOException
+	 */
+	public void readBlock(int index, int offset, ByteBuffer block) throws IOException
+	{
+		FileChannel ch = getFileChannel();
+		long position = (long) info.piece_length * index + offset;
+		while (block.hasRemaining())
+		{
+			int n = ch.read(block, position);
+			if (n == -1) {
+				throw new IOException("Error: Output file ends before piece " + index + ".");
+			}
+			position += n;
 		}
 	}
 
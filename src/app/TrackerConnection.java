@@ -13,7 +13,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import GivenTools.Bencoder2;
 import GivenTools.BencodingException;
@@ -57,7 +57,7 @@ public class TrackerConnection
 	public byte[] peerID;
 	
 	public static int downloaded;
-	public static int uploaded;
+	public static final AtomicLong uploaded = new AtomicLong();
 	
 	public int left;
 	private int port;
@@ -71,7 +71,6 @@ public class TrackerConnection
 	private TorrentClient client;
 	private Map<ByteBuffer, Object> trackerResponse;
 	
-	public Timer timer;
 	public TrackerUpdate trackerUpdate;
 	
 
@@ -95,7 +94,7 @@ public class TrackerConnection
 		
 		if (event.equals(EVENT_STARTED)) {
 			downloaded = 0;
-			uploaded = 0;
+			uploaded.set(0L);
 		}
 		
 		requestURL = getRequestURL(announce);
@@ -216,7 +215,7 @@ public class TrackerConnection
 		line += "?info_hash=" + Utils.toHexString(infohash);
 		line += "&peer_id=" + Utils.toHexString(peerID);
 		line += "&port=" + port;
-		line += "&uploaded=" + uploaded;
+		line += "&uploaded=" + uploaded.get();
 		line += "&downloaded=" + downloaded;
 		line += "&left=" + left;
 		
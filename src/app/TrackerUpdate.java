@@ -1,10 +1,8 @@
 package app;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.TimerTask;
 
-public class TrackerUpdate extends TimerTask
+public class TrackerUpdate implements Runnable
 {
 	/**	The tracker.	*/
 	TrackerConnection tConn;
@@ -25,29 +23,46 @@ public class TrackerUpdate extends TimerTask
 	}
 	
 	/**
-	 * @see java.util.TimerTask#run()
+	 * Schedules the next announce on the client's timer wheel, after the interval the
+	 * tracker last asked for. The announce blocks on the tracker, so it runs on a thread
+	 * of its own rather than on the wheel's.
+	 */
+	public void schedule()
+	{
+		client.timers.schedule(new Runnable() {
+			public void run()
+			{
+				Thread announce = new Thread(TrackerUpdate.this, "Tracker announce");
+				announce.setDaemon(true);
+				announce.start();
+			}
+		}, tConn.interval * 1000L);
+	}
+	
+	/**
+	 * Announces to the tracker, hands the peers it returned to the peer manager, which
+	 * connects to the ones it didn't know yet, and schedules the next announce.
+	 * @see java.lang.Runnable#run()
 	 */
 	public void run()
 	{
-		// Get a new list of peers from the tracker
-		ArrayList<Peer> peers = tConn.update("");
-		boolean isAlreadyPeer = false;
-		
-		// 
-		for (Peer p1 : peers)
-		{
-			for (Peer p2 : client.peerList)
+		try {
+			// Get a new list of peers from the tracker
+			ArrayList<Peer> peers = tConn.update("");
+			if (peers == null) {
+				return;
+			}
+			for (Peer p : peers)
 			{
-				if (Arrays.equals(p1.peerID, p2.peerID)) {
-					isAlreadyPeer = true;
-					break;
+				if (TorrentClient.isRutgersPeer(p.peerID)) {
+					client.peerManager.addCandidate(p);
 				}
 			}
-			if (isAlreadyPeer == false) {
-				client.peerList.add(p1);
-			}
-			else {
-				isAlreadyPeer = false;
+			client.peerManager.maintain();
+		}
+		finally {
+			if (client.isRunning) {
+				schedule();
 			}
 		}
 	}
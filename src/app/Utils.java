@@ -7,6 +7,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 import GivenTools.ToolKit;
@@ -99,6 +101,96 @@ public class Utils extends ToolKit
 		return pieceArray;
 	}
 	
+	/**
+	 * Takes a boolean array of pieces and returns the bitfield byte array that represents it.
+	 * 
+	 * @param pieceArray
+	 * @return the bitfield, with the high bit of the first byte standing for piece 0
+	 */
+	public static byte[] booleanArrayToBitfield(boolean[] pieceArray)
+	{
+		byte[] bitfield = new byte[(pieceArray.length + 7) / 8];
+		for (int i = 0; i < pieceArray.length; i++)
+		{
+			if (pieceArray[i]) {
+				bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+			}
+		}
+		return bitfield;
+	}
+	
+	/**
+	 * Generates the allowed fast set for a peer as specified by the Fast Extension (BEP 6).
+	 * The set depends only on the peer's /24 network and the info hash, so both sides can
+	 * compute the same set.
+	 * 
+	 * @param k the number of pieces in the set
+	 * @param ipv4 the 4-byte IPv4 address of the peer
+	 * @param infoHash the info hash of the torrent
+	 * @param numPieces the number of pieces in the torrent
+	 * @return the piece indices in the set, in the order they were generated
+	 */
+	public static int[] generateAllowedFastSet(int k, byte[] ipv4, byte[] infoHash, int numPieces)
+	{
+		k = Math.min(k, numPieces);
+		int[] set = new int[k];
+		int size = 0;
+		MessageDigest SHA1;
+		try {
+			SHA1 = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			nsae.printStackTrace();
+			return new int[0];
+		}
+		// x is the peer's address with the last byte masked off, followed by the info hash
+		byte[] x = new byte[4 + infoHash.length];
+		System.arraycopy(ipv4, 0, x, 0, 3);
+		System.arraycopy(infoHash, 0, x, 4, infoHash.length);
+		while (size < k)
+		{
+			x = SHA1.digest(x);
+			for (int i = 0; i < 5 && size < k; i++)
+			{
+				long y = ByteBuffer.wrap(x, i * 4, 4).getInt() & 0xFFFFFFFFL;
+				int index = (int) (y % numPieces);
+				boolean seen = false;
+				for (int j = 0; j < size; j++)
+				{
+					if (set[j] == index) {
+						seen = true;
+						break;
+					}
+				}
+				if (!seen) {
+					set[size++] = index;
+				}
+			}
+		}	// end of while (size < k)
+		return set;
+	}
+	
+	/**
+	 * Reads a bitfield held in a buffer into an existing boolean array, one bit per piece.
+	 * The buffer's position is not modified.
+	 * 
+	 * @param bitfield the bitfield, between the buffer's position and limit
+	 * @param pieceArray the boolean array to fill, one entry per piece
+	 * @return false if the bitfield is too short for the number of pieces, true otherwise
+	 */
+	public static boolean bitfieldToBooleanArray(ByteBuffer bitfield, boolean[] pieceArray)
+	{
+		if (bitfield.remaining() < (pieceArray.length + 7) / 8) {
+			return false;
+		}
+		int start = bitfield.position();
+		for (int i = 0; i < pieceArray.length; i++)
+		{
+			pieceArray[i] = ((bitfield.get(start + i / 8) << (i % 8)) & 0x80) == 0x80;
+		}
+		return true;
+	}
+	
 	/**
 	 * Returns a boolean array containing which pieces have been verified as fully downloaded.
 	 * 
@@ -146,6 +238,27 @@ public class Utils extends ToolKit
 		return verifiedPieces;
 	}
 	
+	/**
+	 * Creates an unstarted virtual thread. Virtual threads only exist from Java 21 on, and
+	 * the client is built for Java 8, so the thread builder is looked up reflectively.
+	 * 
+	 * @param task the task the thread runs
+	 * @param name the name of the thread
+	 * @return the thread, or null if this JVM has no virtual threads
+	 */
+	public static Thread newVirtualThread(Runnable task, String name)
+	{
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+		}
+		catch (ReflectiveOperationException roe) {	// not available, or a preview feature that isn't enabled
+			return null;
+		}
+	}
+
 	/*
 	 * Helper method to read some block of data at a specified piece index and offset.
 	 */
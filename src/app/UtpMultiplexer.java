@@ -0,0 +1,454 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * UtpMultiplexer.java
+ * This class runs the thread that carries every uTP connection of the client over one
+ * UDP socket, bound to the same port number as the client's TCP listener. Packets are
+ * routed to their UtpSocket by the sender's address and connection ID, a SYN from an
+ * unknown connection is handed to the client as an inbound peer, and the retransmission
+ * timers of every connection are checked on each tick. Packets for connections that don't
+ * exist are answered with a RESET, which makes a peer fall back to TCP quickly.
+ *
+ * For testing over loopback, the link can be made to behave like a slower and longer one:
+ * the rubt.utp.delay system property delays every packet sent by the given number of
+ * milliseconds, and rubt.utp.rate sends at most the given number of bytes per second,
+ * queuing the rest the way a router in front of a slow link would.
+ */
+public class UtpMultiplexer extends Thread
+{
+	/** Number of milliseconds between two checks of the retransmission timers. */
+	public static final long TICK_MILLIS = 50;
+
+	/** Determines if the thread is running or not. */
+	volatile boolean isRunning = true;
+
+	/** Number of milliseconds every packet sent is delayed by; set from the rubt.utp.delay system property. */
+	long simulatedDelay = Math.max(0, Long.getLong("rubt.utp.delay", 0L));
+	/** Number of bytes per second packets are sent at, or 0 for no limit; set from the rubt.utp.rate system property. */
+	long simulatedRate = Math.max(0, Long.getLong("rubt.utp.rate", 0L));
+
+	/** Number of packets sent and received. */
+	long packetsSent = 0L;
+	long packetsReceived = 0L;
+	/** Number of connections accepted from peers, and refused because the client had no room. */
+	long accepted = 0L;
+	long rejected = 0L;
+
+	// TorrentClient that inbound connections are handed to
+	private final TorrentClient client;
+	// Socket carrying every connection, and the selector waiting for its packets
+	private final DatagramChannel channel;
+	private final Selector selector;
+	// Port the socket is bound to
+	private final int port;
+	// Buffer that every packet is received into
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	// Connections by the address of the other side and the connection ID of their packets
+	private final HashMap<String, UtpSocket> sockets = new HashMap<String, UtpSocket>();
+	// Packets held back by the simulated link, in the order they are due
+	private final ArrayDeque<DelayedPacket> delayLine = new ArrayDeque<DelayedPacket>();
+	// Time the simulated link finishes sending the packets queued on it, in nanoseconds
+	private long linkFreeTime = 0L;
+	// Time the retransmission timers were last checked, in milliseconds
+	private long lastTick = 0L;
+
+	/**
+	 * Constructor for the UtpMultiplexer class. Binds the UDP socket right away.
+	 * @param client the TorrentClient that inbound connections are handed to
+	 * @param port the port to bind, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public UtpMultiplexer(TorrentClient client, int port) throws IOException
+	{
+		super("uTP multiplexer");
+		this.client = client;
+		setDaemon(true);
+		channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			this.port = channel.socket().getLocalPort();
+		}
+		catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Returns the port the UDP socket is bound to.
+	 * @return the local port
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Opens a connection to a peer by sending its SYN. The peer is told once it is answered.
+	 * @param remote the address of the peer
+	 * @param peer the peer using the connection
+	 * @return the connection
+	 */
+	public UtpSocket connect(InetSocketAddress remote, Peer peer)
+	{
+		UtpSocket s;
+		synchronized (this) {
+			int recvId;
+			do {
+				recvId = ThreadLocalRandom.current().nextInt(0x10000);
+			} while (sockets.containsKey(keyOf(remote, recvId)));
+			s = new UtpSocket(this, remote, recvId, (recvId + 1) & 0xFFFF);
+			sockets.put(keyOf(remote, recvId), s);
+		}
+		s.setPeer(peer);
+		s.connect();
+		return s;
+	}
+
+	/**
+	 * Forgets a connection that was closed; later packets for it are answered with a RESET.
+	 * @param s the connection
+	 */
+	synchronized void remove(UtpSocket s)
+	{
+		String key = keyOf(s.getRemoteAddress(), s.recvId);
+		if (sockets.get(key) == s) {
+			sockets.remove(key);
+		}
+	}
+
+	/**
+	 * Sends a packet, or queues it on the simulated link. A packet the socket has no room
+	 * for is dropped, like on any congested link, and is retransmitted by its connection.
+	 * @param remote the address of the other side
+	 * @param packet the array holding the packet
+	 * @param length the length of the packet
+	 */
+	void send(SocketAddress remote, byte[] packet, int length)
+	{
+		if (simulatedDelay > 0 || simulatedRate > 0) {
+			delay(remote, packet, length);
+			return;
+		}
+		try {
+			channel.send(ByteBuffer.wrap(packet, 0, length), remote);
+			packetsSent++;
+		}
+		catch (IOException ioe) {
+			System.err.println("Error: Could not send a uTP packet to " + remote + ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the thread and closes the UDP socket. Open connections are closed by their peers.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run()
+	{
+		try {
+			while (isRunning)
+			{
+				selector.select(getSelectTimeout());
+				selector.selectedKeys().clear();
+				receivePackets();
+				releaseDelayed();
+				long now = System.currentTimeMillis();
+				if (now - lastTick >= TICK_MILLIS) {
+					lastTick = now;
+					checkTimeouts(now);
+				}
+			}	// end of while (isRunning)
+		}
+		catch (IOException ioe) {
+			if (isRunning) {
+				ioe.printStackTrace();
+			}
+		}
+		finally {
+			try {
+				synchronized (delayLine) {	// the FINs of closed connections are still on the simulated link
+					for (DelayedPacket p : delayLine)
+					{
+						channel.send(ByteBuffer.wrap(p.data), p.remote);
+					}
+					delayLine.clear();
+				}
+				selector.close();
+				channel.close();
+			}
+			catch (IOException ioe)
+			{	ioe.printStackTrace();	}
+		}
+	}
+
+	/*
+	 * Reads every packet waiting on the socket and hands each to its connection.
+	 */
+	private void receivePackets() throws IOException
+	{
+		while (true)
+		{
+			receiveBuffer.clear();
+			SocketAddress from = channel.receive(receiveBuffer);
+			if (from == null) {
+				return;
+			}
+			packetsReceived++;
+			receiveBuffer.flip();
+			try {
+				handlePacket((InetSocketAddress) from, receiveBuffer);
+			}
+			catch (RuntimeException re) {	// one bad packet must not stop every connection
+				re.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Parses the header of a packet and routes it. A SYN opens a connection unless it
+	 * repeats one whose answer was lost.
+	 */
+	private void handlePacket(InetSocketAddress from, ByteBuffer packet)
+	{
+		if (packet.remaining() < UtpSocket.HEADER_LENGTH) {
+			return;
+		}
+		int first = packet.get() & 0xFF;
+		int type = first >>> 4;
+		if ((first & 0x0F) != UtpSocket.VERSION || type > UtpSocket.ST_SYN) {
+			return;
+		}
+		int extension = packet.get() & 0xFF;
+		int connId = packet.getShort() & 0xFFFF;
+		long timestamp = packet.getInt() & 0xFFFFFFFFL;
+		long delay = packet.getInt() & 0xFFFFFFFFL;
+		long window = packet.getInt() & 0xFFFFFFFFL;
+		int seq = packet.getShort() & 0xFFFF;
+		int ack = packet.getShort() & 0xFFFF;
+		while (extension != 0)	// no extensions are supported; skip over them
+		{
+			if (packet.remaining() < 2) {
+				return;
+			}
+			extension = packet.get() & 0xFF;
+			int length = packet.get() & 0xFF;
+			if (packet.remaining() < length) {
+				return;
+			}
+			packet.position(packet.position() + length);
+		}
+
+		UtpSocket s;
+		if (type == UtpSocket.ST_SYN) {
+			int recvId = (connId + 1) & 0xFFFF;
+			synchronized (this) {
+				s = sockets.get(keyOf(from, recvId));
+			}
+			if (s == null) {
+				acceptConnection(from, recvId, connId, seq);
+				return;
+			}
+		}
+		else {
+			synchronized (this) {
+				s = sockets.get(keyOf(from, connId));
+			}
+			if (s == null) {
+				if (type != UtpSocket.ST_RESET) {
+					sendReset(from, connId, seq);
+				}
+				return;
+			}
+		}
+		if (s.receive(type, seq, ack, timestamp, delay, window, packet)) {
+			s.notifyPeer();
+		}
+	}
+
+	/*
+	 * Hands a new connection to the client and answers its SYN, or resets it if the client
+	 * has no room for another inbound peer, so that the peer falls back to TCP.
+	 */
+	private void acceptConnection(InetSocketAddress from, int recvId, int sendId, int synSeq)
+	{
+		UtpSocket s = new UtpSocket(this, from, recvId, sendId);
+		synchronized (this) {
+			sockets.put(keyOf(from, recvId), s);
+		}
+		try {
+			if (client.acceptUtpPeer(s)) {
+				accepted++;
+				s.accept(synSeq);	// the peer's handshake is read as soon as it arrives
+				return;
+			}
+		}
+		catch (IOException ioe)
+		{	ioe.printStackTrace();	}
+		rejected++;
+		remove(s);
+		sendReset(from, sendId, synSeq);
+	}
+
+	/*
+	 * Sends a RESET for a connection this side doesn't know.
+	 */
+	private void sendReset(InetSocketAddress to, int connId, int seq)
+	{
+		ByteBuffer header = ByteBuffer.allocate(UtpSocket.HEADER_LENGTH);
+		header.put((byte) ((UtpSocket.ST_RESET << 4) | UtpSocket.VERSION));
+		header.put((byte) 0);
+		header.putShort((short) connId);
+		header.putInt((int) UtpSocket.nowMicros());
+		header.putInt(0);
+		header.putInt(0);
+		header.putShort((short) ThreadLocalRandom.current().nextInt(0x10000));
+		header.putShort((short) seq);
+		send(to, header.array(), header.capacity());
+	}
+
+	/*
+	 * Checks the retransmission timers of every connection, and tells the peers of those
+	 * that failed.
+	 */
+	private void checkTimeouts(long now)
+	{
+		UtpSocket[] snapshot;
+		synchronized (this) {	// a failing connection removes itself
+			snapshot = sockets.values().toArray(new UtpSocket[sockets.size()]);
+		}
+		for (UtpSocket s : snapshot)
+		{
+			if (s.checkTimeouts(now)) {
+				s.notifyPeer();
+			}
+		}
+	}
+
+	/*
+	 * Queues a packet on the simulated link: it leaves once the packets ahead of it have
+	 * been sent at the simulated rate, and arrives the simulated delay later.
+	 */
+	private void delay(SocketAddress remote, byte[] packet, int length)
+	{
+		long now = System.nanoTime();
+		boolean wasEmpty;
+		synchronized (delayLine) {
+			long departure = Math.max(now, linkFreeTime);
+			if (simulatedRate > 0) {
+				departure += length * 1000000000L / simulatedRate;
+			}
+			linkFreeTime = departure;
+			wasEmpty = delayLine.isEmpty();
+			delayLine.add(new DelayedPacket(remote, Arrays.copyOf(packet, length),
+					departure + simulatedDelay * 1000000L));
+		}
+		if (wasEmpty && Thread.currentThread() != this) {	// the select timeout must shrink
+			selector.wakeup();
+		}
+	}
+
+	/*
+	 * Sends the packets of the simulated link that are due.
+	 */
+	private void releaseDelayed()
+	{
+		long now = System.nanoTime();
+		while (true)
+		{
+			DelayedPacket p;
+			synchronized (delayLine) {
+				p = delayLine.peek();
+				if (p == null || p.due - now > 0) {
+					return;
+				}
+				delayLine.poll();
+			}
+			try {
+				channel.send(ByteBuffer.wrap(p.data), p.remote);
+				packetsSent++;
+			}
+			catch (IOException ioe) {
+				System.err.println("Error: Could not send a uTP packet to " + p.remote + ": " + ioe.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Returns how long to wait for packets: until the next tick, or until the next packet
+	 * of the simulated link is due.
+	 */
+	private long getSelectTimeout()
+	{
+		long timeout = TICK_MILLIS;
+		synchronized (delayLine) {
+			DelayedPacket p = delayLine.peek();
+			if (p != null) {
+				timeout = Math.min(timeout, (p.due - System.nanoTime()) / 1000000L);
+			}
+		}
+		return Math.max(1, timeout);	// 0 would wait forever
+	}
+
+	/*
+	 * Returns the key of a connection.
+	 */
+	private static String keyOf(InetSocketAddress remote, int connId)
+	{
+		return remote.getAddress().getHostAddress() + ":" + remote.getPort() + "/" + connId;
+	}
+
+	/**
+	 * @see java.lang.Thread#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return "port " + getPort() + ": " + sockets.size() + " open, " + accepted + " accepted, " + rejected + " rejected, "
+				+ packetsSent + " packets sent, " + packetsReceived + " received";
+	}
+
+	/*
+	 * A packet held back by the simulated link.
+	 */
+	private static final class DelayedPacket
+	{
+		final SocketAddress remote;
+		final byte[] data;
+		// Time the packet is sent, in nanoseconds
+		final long due;
+
+		DelayedPacket(SocketAddress remote, byte[] data, long due)
+		{
+			this.remote = remote;
+			this.data = data;
+			this.due = due;
+		}
+	}
+
+}
@@ -0,0 +1,772 @@
+/*
+ * Andrew Lee
+ */
+package app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * UtpSocket.java
+ * This class is one connection of the uTP transport (BEP 29): a reliable, ordered byte
+ * stream carried in UDP packets that a UtpMultiplexer sends and receives for every
+ * connection of the client over a single DatagramChannel. Like a non-blocking
+ * SocketChannel, reads return whatever has arrived and writes take whatever fits in the
+ * send buffer, so a peer's codec and outbox work on it unchanged; the peer is told when
+ * data arrives or buffer space frees up instead of being woken by a selector.
+ *
+ * Sending is paced by LEDBAT (RFC 6817). Every packet carries the time it was sent, and
+ * the receiver echoes how long ago that was when it arrived; the lowest echo over the
+ * last two minutes is taken as the link's base delay, and anything above it as delay
+ * caused by queues. The congestion window grows while the queuing delay is below the
+ * 100 ms target and shrinks as it rises above it, so uTP yields to TCP and other
+ * traffic on a shared link instead of filling its queues.
+ */
+public class UtpSocket implements ByteChannel, GatheringByteChannel
+{
+	/** Packet type carrying data. */
+	public static final int ST_DATA = 0;
+	/** Packet type ending the stream of a side. */
+	public static final int ST_FIN = 1;
+	/** Packet type carrying only an acknowledgement. */
+	public static final int ST_STATE = 2;
+	/** Packet type aborting the connection. */
+	public static final int ST_RESET = 3;
+	/** Packet type opening a connection. */
+	public static final int ST_SYN = 4;
+	/** Version of the uTP header. */
+	public static final int VERSION = 1;
+
+	/** Length of the uTP header. */
+	public static final int HEADER_LENGTH = 20;
+	/** Largest packet sent, chosen to fit the MTU of common links. */
+	public static final int MAX_PACKET_SIZE = 1400;
+	/** Largest payload of a packet. */
+	public static final int MAX_PAYLOAD = MAX_PACKET_SIZE - HEADER_LENGTH;
+	/** Number of bytes that may be received ahead of the reader. */
+	public static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+	/** Number of bytes that may be written ahead of the network. */
+	public static final int SEND_BUFFER_SIZE = 256 * 1024;
+
+	/** Queuing delay that LEDBAT aims for, in microseconds. */
+	public static final long TARGET_DELAY_MICROS = 100000;
+	/** Most the congestion window grows in one round trip, in bytes. */
+	public static final int MAX_WINDOW_INCREASE = 3000;
+	/** Smallest congestion window, in bytes. */
+	public static final int MIN_WINDOW = 2 * MAX_PAYLOAD;
+	/** Largest congestion window, in bytes. */
+	public static final int MAX_WINDOW = RECEIVE_BUFFER_SIZE;
+	/** Number of minutes of delay samples the base delay is the lowest of. */
+	public static final int BASE_HISTORY = 2;
+
+	/** Retransmission timeout before any round trip has been measured, in milliseconds. */
+	public static final long INITIAL_RTO_MILLIS = 1000;
+	/** Lower bound of the retransmission timeout, in milliseconds. */
+	public static final long MIN_RTO_MILLIS = 500;
+	/** Upper bound of the retransmission timeout, in milliseconds. */
+	public static final long MAX_RTO_MILLIS = 8000;
+	/** Number of times a packet is retransmitted before the connection is given up. */
+	public static final int MAX_RETRANSMITS = 6;
+	/** Number of duplicate acknowledgements that retransmit the first unacknowledged packet. */
+	public static final int DUPLICATE_ACKS = 3;
+
+	// States of the connection
+	private static final int SYN_SENT = 0;
+	private static final int CONNECTED = 1;
+	private static final int CLOSED = 2;
+
+	// Multiplexer sending this connection's packets
+	private final UtpMultiplexer mux;
+	// Address of the other side
+	private final InetSocketAddress remote;
+	// Connection IDs of the packets received and sent
+	final int recvId;
+	final int sendId;
+	// Peer told about new data and free buffer space, or null
+	private volatile Peer peer;
+
+	private int state = SYN_SENT;
+	// Reason the connection failed, or null
+	private String error;
+	// True once every byte up to the other side's FIN has been received
+	private boolean isEndOfStream = false;
+
+	// Sequence number of the next packet sent, and of the last packet received in order
+	private int seqNr = 1;
+	private int ackNr = 0;
+	// Sequence number of the other side's FIN, or -1 until it arrives
+	private int finSeq = -1;
+	// Bytes received in order but not read yet, and written but not sent yet
+	private final ByteRing receiveBuffer = new ByteRing(RECEIVE_BUFFER_SIZE);
+	private final ByteRing sendBuffer = new ByteRing(SEND_BUFFER_SIZE);
+	// Payloads received ahead of a missing packet, by sequence number
+	private final HashMap<Integer, byte[]> reordered = new HashMap<Integer, byte[]>();
+	private int reorderedBytes = 0;
+	// Packets sent and not yet acknowledged, oldest first
+	private final ArrayDeque<Packet> unacked = new ArrayDeque<Packet>();
+	// Number of payload bytes in unacknowledged packets
+	private int inFlight = 0;
+	// Receive window last advertised by each side
+	private long peerWindow = MAX_PACKET_SIZE;
+	private int advertisedWindow = RECEIVE_BUFFER_SIZE;
+
+	// Congestion window in bytes
+	private double cwnd = MIN_WINDOW;
+	// Lowest delay sample of each of the last minutes, in microseconds, and the minute being filled
+	private final long[] baseDelays = new long[BASE_HISTORY];
+	private int baseIndex = 0;
+	private long baseMinuteStart = 0L;
+	private boolean hasBaseDelay = false;
+	// Delay of the latest packet received, echoed in every packet sent, in microseconds
+	private long replyMicros = 0L;
+	// Latest queuing delay measured, in microseconds
+	private long queuingDelay = 0L;
+
+	// Smoothed round trip time and its variation, and the retransmission timeout, in milliseconds
+	private double rtt = 0.0;
+	private double rttVar = 0.0;
+	private long rto = INITIAL_RTO_MILLIS;
+	// Consecutive timeouts of the oldest packet, and duplicate acknowledgements of it
+	private int retransmits = 0;
+	private int duplicateAcks = 0;
+	// Time anything was last sent, in milliseconds
+	private long lastSendTime = 0L;
+
+	/** Number of packets sent, including retransmissions. */
+	long packetsSent = 0L;
+	/** Number of packets retransmitted. */
+	long packetsRetransmitted = 0L;
+
+	/**
+	 * Constructor for the UtpSocket class. Connections are made by a UtpMultiplexer.
+	 * @param mux the multiplexer sending the packets
+	 * @param remote the address of the other side
+	 * @param recvId the connection ID of packets from the other side
+	 * @param sendId the connection ID of packets to the other side
+	 */
+	UtpSocket(UtpMultiplexer mux, InetSocketAddress remote, int recvId, int sendId)
+	{
+		this.mux = mux;
+		this.remote = remote;
+		this.recvId = recvId;
+		this.sendId = sendId;
+	}
+
+	/**
+	 * Sends the SYN that opens the connection. The peer is told once the other side answers.
+	 */
+	synchronized void connect()
+	{
+		sendPacket(newPacket(ST_SYN, 0));
+	}
+
+	/**
+	 * Answers a SYN from the other side, which opens the connection right away.
+	 * @param synSeq the sequence number of the SYN
+	 */
+	synchronized void accept(int synSeq)
+	{
+		if (state == CLOSED) {	// the peer taking it failed to start
+			return;
+		}
+		state = CONNECTED;
+		ackNr = synSeq;
+		seqNr = ThreadLocalRandom.current().nextInt(0x10000);
+		sendState();
+	}
+
+	/**
+	 * Sets the peer that is told about new data, free buffer space and failures.
+	 * @param peer the peer using this connection
+	 */
+	public void setPeer(Peer peer)
+	{
+		this.peer = peer;
+	}
+
+	/**
+	 * Returns the address of the other side.
+	 * @return the remote address
+	 */
+	public InetSocketAddress getRemoteAddress()
+	{
+		return remote;
+	}
+
+	/**
+	 * Returns whether the other side answered the SYN and the connection is still open.
+	 * @return true if the connection is established, false otherwise
+	 */
+	public synchronized boolean isConnected()
+	{
+		return state == CONNECTED;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public synchronized boolean isOpen()
+	{
+		return state != CLOSED;
+	}
+
+	/**
+	 * Reads as many received bytes as fit into the buffer.
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 * @return the number of bytes read, 0 if none have arrived, or -1 at the end of the stream
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		if (error != null) {
+			throw new IOException(error);
+		}
+		int n = receiveBuffer.get(dst);
+		if (n == 0) {
+			if (isEndOfStream) {
+				return -1;
+			}
+			if (state == CLOSED) {
+				throw new ClosedChannelException();
+			}
+			return 0;
+		}
+		// a sender stopped by a nearly closed window is told that it opened again
+		if (advertisedWindow < 4 * MAX_PAYLOAD && getReceiveWindow() >= 4 * MAX_PAYLOAD) {
+			sendState();
+		}
+		return n;
+	}
+
+	/**
+	 * Queues as many bytes as fit into the send buffer and sends what the windows allow.
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 * @return the number of bytes queued, 0 if the send buffer is full
+	 */
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		if (error != null) {
+			throw new IOException(error);
+		}
+		if (state != CONNECTED) {
+			throw new ClosedChannelException();
+		}
+		int n = sendBuffer.put(src);
+		sendPackets(false);
+		return n;
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		long total = 0L;
+		for (int i = offset; i < offset + length; i++)
+		{
+			int n = write(srcs[i]);
+			total += n;
+			if (srcs[i].hasRemaining()) {	// send buffer is full
+				break;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])
+	 */
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Sends a FIN and forgets the connection. Data still unacknowledged is not retransmitted.
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close()
+	{
+		synchronized (this) {
+			if (state == CLOSED) {
+				return;
+			}
+			if (state == CONNECTED) {
+				sendPacket(newPacket(ST_FIN, 0));
+			}
+			state = CLOSED;
+		}
+		mux.remove(this);
+	}
+
+	/**
+	 * Handles a packet from the other side. Called on the multiplexer's thread.
+	 * @param type the packet type
+	 * @param seq the sequence number of the packet
+	 * @param ack the sequence number the other side acknowledges
+	 * @param timestamp the time the packet was sent, in the other side's microseconds
+	 * @param delay the delay of this side's latest packet as measured by the other side, in microseconds
+	 * @param window the other side's receive window
+	 * @param payload the payload of the packet
+	 * @return true if the peer should be told, since data arrived, space freed up or the state changed
+	 */
+	synchronized boolean receive(int type, int seq, int ack, long timestamp, long delay, long window, ByteBuffer payload)
+	{
+		if (state == CLOSED) {
+			return false;
+		}
+		replyMicros = (nowMicros() - timestamp) & 0xFFFFFFFFL;
+		peerWindow = window;
+		if (type == ST_RESET) {
+			fail("Error: uTP connection reset by " + remote + ".");
+			return true;
+		}
+		if (state == SYN_SENT) {
+			if (type != ST_STATE) {
+				return false;
+			}
+			state = CONNECTED;
+			ackNr = (seq - 1) & 0xFFFF;	// the answer doesn't use up a sequence number
+			processAck(type, ack, delay);
+			return true;
+		}
+		boolean changed = processAck(type, ack, delay);
+		if (type == ST_SYN) {	// our answer was lost
+			sendState();
+			return changed;
+		}
+		if (type == ST_DATA || type == ST_FIN) {
+			if (type == ST_FIN) {
+				finSeq = seq;
+			}
+			changed |= receiveData(type, seq, payload);
+			sendState();
+		}
+		sendPackets(false);
+		return changed;
+	}
+
+	/**
+	 * Retransmits the oldest packet if it timed out, and gives the connection up after too
+	 * many retransmissions. Called on the multiplexer's thread.
+	 * @param now the current time in milliseconds
+	 * @return true if the peer should be told, since the connection failed
+	 */
+	synchronized boolean checkTimeouts(long now)
+	{
+		if (state == CLOSED) {
+			return false;
+		}
+		Packet oldest = unacked.peek();
+		if (oldest != null && now - oldest.sentTime >= rto) {
+			if (++retransmits > MAX_RETRANSMITS) {
+				fail("Error: uTP connection to " + remote + " timed out.");
+				return true;
+			}
+			cwnd = MIN_WINDOW;	// the link may have gone away entirely
+			rto = Math.min(MAX_RTO_MILLIS, rto * 2);
+			retransmit(oldest);
+		}
+		else if (oldest == null && state == CONNECTED && sendBuffer.size() > 0 && now - lastSendTime >= rto) {
+			sendPackets(true);	// probe a window that closed while the update was lost
+		}
+		return false;
+	}
+
+	/*
+	 * Acknowledges the packets up to ack, measures the round trip time, and resizes the
+	 * congestion window from the delay the other side measured. Returns true if packets
+	 * were acknowledged, which frees space in the send buffer. Only STATE packets count as
+	 * duplicate acknowledgements, since DATA packets repeat the same one while the other
+	 * side is sending.
+	 */
+	private boolean processAck(int type, int ack, long delay)
+	{
+		long now = System.currentTimeMillis();
+		int flightBefore = inFlight;
+		int acked = 0;
+		boolean removed = false;
+		Packet p;
+		while ((p = unacked.peek()) != null && seqLessOrEqual(p.seq, ack))
+		{
+			unacked.poll();
+			removed = true;
+			acked += p.payloadLength;
+			inFlight -= p.payloadLength;
+			if (p.transmissions == 1) {	// retransmitted packets give ambiguous samples
+				updateRtt(now - p.sentTime);
+			}
+		}
+		if (!removed) {
+			if (type == ST_STATE && !unacked.isEmpty() && ack == ((unacked.peek().seq - 1) & 0xFFFF) && ++duplicateAcks == DUPLICATE_ACKS) {
+				cwnd = Math.max(MIN_WINDOW, cwnd / 2);	// a packet was lost
+				retransmit(unacked.peek());
+			}
+			return false;
+		}
+		duplicateAcks = 0;
+		retransmits = 0;
+		if (acked > 0 && delay != 0) {
+			updateWindow(acked, delay, flightBefore);
+		}
+		return true;
+	}
+
+	/*
+	 * Applies LEDBAT: the window grows in proportion to how far the queuing delay is below
+	 * the target and shrinks in proportion to how far it is above it, by at most
+	 * MAX_WINDOW_INCREASE per round trip. It only grows while it is actually used.
+	 */
+	private void updateWindow(int acked, long delay, int flightBefore)
+	{
+		updateBaseDelay(delay);
+		long base = baseDelays[0];
+		for (int i = 1; i < BASE_HISTORY; i++)
+		{
+			if ((int) (baseDelays[i] - base) < 0) {
+				base = baseDelays[i];
+			}
+		}
+		queuingDelay = Math.max(0, (int) (delay - base));	// the clocks' difference cancels out
+		double offTarget = (TARGET_DELAY_MICROS - queuingDelay) / (double) TARGET_DELAY_MICROS;
+		double change = MAX_WINDOW_INCREASE * offTarget * acked / cwnd;
+		if (change > 0 && flightBefore + MAX_PAYLOAD < cwnd) {	// not limited by the window
+			change = 0;
+		}
+		cwnd = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, cwnd + change));
+	}
+
+	/*
+	 * Records a delay sample in the minute it was taken in.
+	 */
+	private void updateBaseDelay(long delay)
+	{
+		long now = System.currentTimeMillis();
+		if (!hasBaseDelay) {
+			for (int i = 0; i < BASE_HISTORY; i++)
+			{
+				baseDelays[i] = delay;
+			}
+			baseMinuteStart = now;
+			hasBaseDelay = true;
+		}
+		else if (now - baseMinuteStart >= 60000L) {
+			baseIndex = (baseIndex + 1) % BASE_HISTORY;
+			baseDelays[baseIndex] = delay;
+			baseMinuteStart = now;
+		}
+		else if ((int) (delay - baseDelays[baseIndex]) < 0) {	// compared modulo 2^32
+			baseDelays[baseIndex] = delay;
+		}
+	}
+
+	/*
+	 * Updates the round trip time and the retransmission timeout as in RFC 6298.
+	 */
+	private void updateRtt(long sample)
+	{
+		if (rtt == 0.0) {
+			rtt = sample;
+			rttVar = sample / 2.0;
+		}
+		else {
+			rttVar += (Math.abs(rtt - sample) - rttVar) / 4;
+			rtt += (sample - rtt) / 8;
+		}
+		rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, (long) (rtt + 4 * rttVar)));
+	}
+
+	/*
+	 * Takes a DATA or FIN packet: delivers it if it is the next one, together with any
+	 * packets that arrived ahead of it, or holds it until the gap is filled. Returns true
+	 * if data became readable or the stream ended.
+	 */
+	private boolean receiveData(int type, int seq, ByteBuffer payload)
+	{
+		int next = (ackNr + 1) & 0xFFFF;
+		if (seq != next) {
+			if (!seqLessOrEqual(seq, ackNr) && payload.remaining() <= getReceiveWindow() && !reordered.containsKey(seq)) {
+				byte[] data = new byte[payload.remaining()];
+				payload.get(data);
+				reordered.put(seq, data);
+				reorderedBytes += data.length;
+			}
+			return false;
+		}
+		if (type == ST_DATA) {
+			if (payload.remaining() > receiveBuffer.free()) {	// dropped; the sender retransmits it
+				return false;
+			}
+			receiveBuffer.put(payload);
+		}
+		ackNr = seq;
+		// the gap is filled; deliver what arrived behind it
+		byte[] data;
+		while ((data = reordered.remove((ackNr + 1) & 0xFFFF)) != null)
+		{
+			reorderedBytes -= data.length;
+			receiveBuffer.put(ByteBuffer.wrap(data));
+			ackNr = (ackNr + 1) & 0xFFFF;
+		}
+		if (finSeq != -1 && ((ackNr + 1) & 0xFFFF) == finSeq) {
+			ackNr = finSeq;
+		}
+		if (finSeq != -1 && ackNr == finSeq) {
+			isEndOfStream = true;
+		}
+		return true;
+	}
+
+	/*
+	 * Sends as much of the send buffer as the congestion window and the other side's
+	 * receive window allow. A probe sends one packet even if the windows are closed.
+	 */
+	private void sendPackets(boolean probe)
+	{
+		while (state == CONNECTED && sendBuffer.size() > 0)
+		{
+			int pending = Math.min(MAX_PAYLOAD, sendBuffer.size());
+			int room = (int) Math.min((long) cwnd, peerWindow) - inFlight;
+			if (probe) {
+				room = pending;
+				probe = false;
+			}
+			if (room <= 0 || (room < pending && inFlight > 0)) {	// no tiny packets while others are in flight
+				return;
+			}
+			Packet p = newPacket(ST_DATA, Math.min(pending, room));
+			sendBuffer.get(p.data, HEADER_LENGTH, p.payloadLength);
+			inFlight += p.payloadLength;
+			sendPacket(p);
+		}
+	}
+
+	/*
+	 * Creates a packet with the next sequence number. Every packet but STATE uses one up.
+	 */
+	private Packet newPacket(int type, int payloadLength)
+	{
+		Packet p = new Packet(type, seqNr, payloadLength);
+		seqNr = (seqNr + 1) & 0xFFFF;
+		return p;
+	}
+
+	/*
+	 * Sends a packet for the first time; all but FIN are kept until acknowledged.
+	 */
+	private void sendPacket(Packet p)
+	{
+		if (p.type != ST_FIN) {
+			unacked.add(p);
+		}
+		transmit(p);
+	}
+
+	/*
+	 * Sends a packet again.
+	 */
+	private void retransmit(Packet p)
+	{
+		packetsRetransmitted++;
+		transmit(p);
+	}
+
+	/*
+	 * Stamps a packet's header with the current time, acknowledgement and window, and
+	 * hands it to the multiplexer.
+	 */
+	private void transmit(Packet p)
+	{
+		p.transmissions++;
+		p.sentTime = System.currentTimeMillis();
+		writeHeader(p.data, p.type, p.seq);
+		mux.send(remote, p.data, p.data.length);
+		lastSendTime = p.sentTime;
+		packetsSent++;
+	}
+
+	/*
+	 * Sends an acknowledgement of everything received in order.
+	 */
+	private void sendState()
+	{
+		byte[] header = new byte[HEADER_LENGTH];
+		writeHeader(header, ST_STATE, seqNr);
+		mux.send(remote, header, header.length);
+		lastSendTime = System.currentTimeMillis();
+		packetsSent++;
+	}
+
+	/*
+	 * Writes the 20-byte uTP header at the start of a packet.
+	 */
+	private void writeHeader(byte[] b, int type, int seq)
+	{
+		advertisedWindow = getReceiveWindow();
+		ByteBuffer header = ByteBuffer.wrap(b, 0, HEADER_LENGTH);
+		header.put((byte) ((type << 4) | VERSION));
+		header.put((byte) 0);	// no extensions
+		header.putShort((short) ((type == ST_SYN) ? recvId : sendId));
+		header.putInt((int) nowMicros());
+		header.putInt((int) replyMicros);
+		header.putInt(advertisedWindow);
+		header.putShort((short) seq);
+		header.putShort((short) ackNr);
+	}
+
+	/*
+	 * Returns the number of bytes the other side may send beyond what was received in order.
+	 */
+	private int getReceiveWindow()
+	{
+		return Math.max(0, receiveBuffer.free() - reorderedBytes);
+	}
+
+	/*
+	 * Closes the connection after an error, which the next read or write reports.
+	 */
+	private void fail(String reason)
+	{
+		error = reason;
+		state = CLOSED;
+		mux.remove(this);
+	}
+
+	/**
+	 * Tells the peer using this connection that it can read, write or has failed.
+	 */
+	void notifyPeer()
+	{
+		Peer p = peer;
+		if (p != null) {
+			p.transportReady();
+		}
+	}
+
+	/**
+	 * Returns the current time in microseconds, as carried in the uTP header.
+	 * @return the low 32 bits of a monotonic clock in microseconds
+	 */
+	public static long nowMicros()
+	{
+		return (System.nanoTime() / 1000L) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns whether a sequence number comes before or is another, modulo 2^16.
+	 * @param a a sequence number
+	 * @param b a sequence number
+	 * @return true if a is b or less than half the sequence space behind it
+	 */
+	public static boolean seqLessOrEqual(int a, int b)
+	{
+		return ((b - a) & 0xFFFF) < 0x8000;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return "uTP " + remote + ": window " + (int) cwnd + " bytes, queuing delay " + (queuingDelay / 1000) + " ms, rtt "
+				+ (long) rtt + " ms, " + packetsSent + " packets sent, " + packetsRetransmitted + " retransmitted";
+	}
+
+	/*
+	 * A packet sent and possibly waiting for its acknowledgement.
+	 */
+	private static final class Packet
+	{
+		final int type;
+		final int seq;
+		final int payloadLength;
+		// Header followed by the payload
+		final byte[] data;
+		// Time the packet was last sent, in milliseconds, and the number of times it was sent
+		long sentTime;
+		int transmissions = 0;
+
+		Packet(int type, int seq, int payloadLength)
+		{
+			this.type = type;
+			this.seq = seq;
+			this.payloadLength = payloadLength;
+			data = new byte[HEADER_LENGTH + payloadLength];
+		}
+	}
+
+	/*
+	 * A fixed-size circular buffer of bytes.
+	 */
+	private static final class ByteRing
+	{
+		private final byte[] bytes;
+		// Index of the first byte and number of bytes held
+		private int head = 0;
+		private int count = 0;
+
+		ByteRing(int capacity)
+		{
+			bytes = new byte[capacity];
+		}
+
+		int size()
+		{
+			return count;
+		}
+
+		int free()
+		{
+			return bytes.length - count;
+		}
+
+		/*
+		 * Appends as many bytes of the buffer as fit and returns how many did.
+		 */
+		int put(ByteBuffer src)
+		{
+			int n = Math.min(src.remaining(), free());
+			int tail = (head + count) % bytes.length;
+			int first = Math.min(n, bytes.length - tail);
+			src.get(bytes, tail, first);
+			src.get(bytes, 0, n - first);
+			count += n;
+			return n;
+		}
+
+		/*
+		 * Moves as many bytes as fit into the buffer and returns how many did.
+		 */
+		int get(ByteBuffer dst)
+		{
+			int n = Math.min(dst.remaining(), count);
+			int first = Math.min(n, bytes.length - head);
+			dst.put(bytes, head, first);
+			dst.put(bytes, 0, n - first);
+			head = (head + n) % bytes.length;
+			count -= n;
+			return n;
+		}
+
+		/*
+		 * Moves length bytes into an array; the ring must hold at least that many.
+		 */
+		void get(byte[] dst, int offset, int length)
+		{
+			int first = Math.min(length, bytes.length - head);
+			System.arraycopy(bytes, head, dst, offset, first);
+			System.arraycopy(bytes, 0, dst, offset + first, length - first);
+			head = (head + length) % bytes.length;
+			count -= length;
+		}
+	}
+
+}